@@ -1,12 +1,15 @@
 'use strict';
 (function() {
-	angular.module('app').factory("dataservice", ['logger', '$http', function (logger, $http) {
+	angular.module('app').factory("dataservice", ['logger', '$http', 'tableresults', function (logger, $http, tableresults) {
 
 	    breeze.config.initializeAdapterInstance("modelLibrary", "backingStore", true); // backingStore is the modelLibrary for Angular
 
 	    var serviceName = 'breeze/northbreeze'; // route to the (same origin) Web Api controller
 
-	    var manager = new breeze.EntityManager(serviceName);  // gets metadata from /breeze/NorthBreeze/Metadata
+	    // the table adapter reads results of queries with $format=table, and passes other results to the webApi adapter
+	    var dataService = new breeze.DataService({ serviceName: serviceName, jsonResultsAdapter: tableresults });
+
+	    var manager = new breeze.EntityManager({ dataService: dataService });  // gets metadata from /breeze/NorthBreeze/Metadata
 
 	    var _isSaving = false;
 
@@ -38,7 +41,8 @@
 	                .from("Customers")
 	                .orderBy("companyName")
 	                .skip(skip).take(take)
-	                .inlineCount(true);
+	                .inlineCount(true)
+	                .withParameters({ $format: 'table' });  // columns and rows, instead of an object per customer
 	        if (searchText) {
 	            query = query.where("companyName", "contains", searchText);
 	        }
@@ -50,7 +54,8 @@
 	        var query = breeze.EntityQuery
 	                .from("Orders").expand("customer,employee")
 	                .skip(skip).take(take)
-	                .inlineCount(true);
+	                .inlineCount(true)
+	                .withParameters({ $types: 'indexed' });  // each class name is sent once
 	        return manager.executeQuery(query);
 	    }
 	    
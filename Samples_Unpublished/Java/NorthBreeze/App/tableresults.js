@@ -0,0 +1,66 @@
+'use strict';
+
+(function() {
+	angular.module('app').factory('tableresults', [function() {
+
+		var webApiAdapter = breeze.config.getAdapterInstance('dataService', 'webApi').jsonResultsAdapter;
+
+		/**
+		 * JsonResultsAdapter for queries with $format=table.  The server sends the columns once,
+		 * followed by an array of values for each entity:
+		 *   {"$type":"northwind.model.Customer", "Columns":[...], "DataTypes":[...], "Rows":[[...],...]}
+		 * This rebuilds an object for each row, and then maps it as the webApi adapter does.
+		 * It also reads results of queries with $types=indexed, in which each class name is sent
+		 * the first time it is used, and after that its index in the order of first use.
+		 */
+		return new breeze.JsonResultsAdapter({
+			name: 'table',
+			extractResults: extractResults,
+			visitNode: webApiAdapter.visitNode
+		});
+
+		function extractResults(data) {
+			var results = data.results;
+			if (results && results.Columns && results.Rows) {
+				return rowsToNodes(results);
+			}
+			var httpResponse = data.httpResponse;
+			var params = httpResponse && httpResponse.config && httpResponse.config.params;
+			if (params && params.$types === 'indexed') {
+				// start from the whole response, so the types are counted as they were written
+				resolveTypes(httpResponse.data, []);
+			}
+			return results;
+		}
+
+		// replace each indexed $type with its name, visiting the nodes in the order they were written
+		function resolveTypes(node, types) {
+			if (node == null || typeof node !== 'object') return;
+			if (Array.isArray(node)) {
+				node.forEach(function (n) { resolveTypes(n, types); });
+				return;
+			}
+			var type = node.$type;
+			if (typeof type === 'number') {
+				node.$type = types[type];
+			} else if (type !== undefined) {
+				types.push(type);
+			}
+			for (var key in node) {
+				if (key.charAt(0) !== '$') resolveTypes(node[key], types);
+			}
+		}
+
+		function rowsToNodes(table) {
+			var columns = table.Columns;
+			var len = columns.length;
+			return table.Rows.map(function (row) {
+				var node = { $type: table.$type };
+				for (var i = 0; i < len; i++) {
+					node[columns[i]] = row[i];
+				}
+				return node;
+			});
+		}
+	}]);
+})();
@@ -4,6 +4,8 @@ import java.util.List;
 
 import javax.ws.rs.QueryParam;
 
+import com.sun.json.JSONSerializer.TypeFormat;
+
 /**
  * A simple parser for OData URL strings.  Does NOT implement complete OData parsing.
  * @author Steve
@@ -66,6 +68,12 @@ public class OdataParameters {
 		else if ("$select".equals(name)) {
 			op.select = value;		
 		}
+		else if ("$types".equals(name)) {
+			op.types = value;
+		}
+		else if ("$policy".equals(name)) {
+			op.policy = value;
+		}
 	}
 	
 	public boolean hasInlineCount()
@@ -73,6 +81,27 @@ public class OdataParameters {
 		return ("allpages".equals(inlinecount));
 	}
 	
+	/**
+	 * The $types parameter is not part of OData.  It chooses how the $type of each object is written:
+	 * "breeze" for Breeze type names, e.g. "Order:#northwind.model", or "indexed" to write each
+	 * class name once, and its index after that.  The default is the Java class name.
+	 * @return the TypeFormat for the $types parameter
+	 */
+	public TypeFormat typeFormat()
+	{
+		if ("breeze".equals(types)) return TypeFormat.BREEZE;
+		if ("indexed".equals(types)) return TypeFormat.INDEXED;
+		return TypeFormat.CLASS_NAME;
+	}
+	
+	/**
+	 * @return true if $format=table, to return the results as columns and rows instead of objects
+	 */
+	public boolean isTableFormat()
+	{
+		return ("table".equals(format));
+	}
+	
 	public String toString()
 	{
 		StringBuilder sb = new StringBuilder();
@@ -85,6 +114,8 @@ public class OdataParameters {
 		if (format != null) sb.append(" $format=").append(format);
 		if (inlinecount != null) sb.append(" $inlinecount=").append(inlinecount);
 		if (select != null) sb.append(" $select=").append(select);
+		if (types != null) sb.append(" $types=").append(types);
+		if (policy != null) sb.append(" $policy=").append(policy);
 		return sb.toString();
 	}
 	
@@ -129,5 +160,15 @@ public class OdataParameters {
 	@QueryParam("$select")
 	public String select;
 	
+	@QueryParam("$types")
+	public String types;
+	
+	/**
+	 * The $policy parameter is not part of OData.  It names a SerializationPolicy registered with the
+	 * QueryService, e.g. to limit the depth of the results; without it, all the properties are written.
+	 */
+	@QueryParam("$policy")
+	public String policy;
+	
 	
 }
@@ -0,0 +1,148 @@
+package com.breezejs.hib;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.ws.rs.core.Response;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.jboss.logging.Logger;
+
+import com.breezejs.util.Json;
+import com.sun.json.JSONDeserializer;
+
+/**
+ * Class to delete or update all the entities matching an OData $filter, with a single HQL statement.
+ * The entities are not loaded, so this is much faster than a save bundle for large sets, but
+ * beforeSaveEntity, the entity locks and the SaveOutbox are bypassed, and the second-level cache
+ * regions of the entity are invalidated by Hibernate.
+ * @author Steve
+ *
+ */
+public class BulkService {
+
+	public static final Logger log = Logger.getLogger(BulkService.class);
+	private SessionFactory sessionFactory;
+	private Metadata metadata;
+
+	public BulkService(SessionFactory sessionFactory, Metadata metadata) {
+		this.sessionFactory = sessionFactory;
+		this.metadata = metadata;
+	}
+
+	/**
+	 * Delete the entities matching the filter.  Cascades in the mapping are not applied.
+	 * @param clazz entity class
+	 * @param filter OData $filter, e.g. "shipCountry eq 'Brazil'".  Required, so that a missing
+	 * filter does not delete the whole table.
+	 * @return response containing {"Count": number of rows deleted}, or 400 if the filter is not handled
+	 */
+	public Response bulkDelete(Class clazz, String filter) {
+		SaveDescriptor sd = metadata.getSaveDescriptor(clazz);
+		Map<String, Object> params = new HashMap<String, Object>();
+		String hql;
+		try {
+			hql = "delete from " + sd.entityName + " where " + toWhere(filter, sd, params);
+		} catch (IllegalArgumentException e) {
+			return badRequest("bulkDelete", e);
+		}
+		return execute("bulkDelete", hql, params);
+	}
+
+	/**
+	 * Update the entities matching the filter, setting the properties given in the body.
+	 * @param clazz entity class
+	 * @param filter OData $filter, e.g. "shipCountry eq 'Brazil'".  Required.
+	 * @param source JSON object of property names and new values, e.g. {"freight": 0}
+	 * @param versioned if true, the version property of each updated entity is incremented,
+	 * so that clients holding the old version get a concurrency error when they save
+	 * @return response containing {"Count": number of rows updated}, or 400 if the filter or properties are not handled
+	 */
+	public Response bulkUpdate(Class clazz, String filter, String source, boolean versioned) {
+		log.debugv("bulkUpdate: source={0}", source);
+		SaveDescriptor sd = metadata.getSaveDescriptor(clazz);
+		Map<String, Object> params = new HashMap<String, Object>();
+		String hql;
+		try {
+			StringBuilder sb = new StringBuilder("update ");
+			if (versioned && sd.versionIndex >= 0) sb.append("versioned ");
+			sb.append(sd.entityName).append(" set ");
+			Map values = Json.fromJson(source);
+			if (values == null || values.isEmpty())
+				throw new IllegalArgumentException("No properties to update");
+			int i = 0;
+			for (Iterator it = values.entrySet().iterator(); it.hasNext(); i++) {
+				Map.Entry entry = (Map.Entry) it.next();
+				String name = (String) entry.getKey();
+				int index = sd.getPropertyIndex(name);
+				if (index < 0 || index == sd.versionIndex || sd.propertyTypes[index].isAssociationType())
+					throw new IllegalArgumentException("Property " + name + " cannot be updated");
+				String param = "v" + i;
+				params.put(param, convert(entry.getValue(), sd.propertyTypes[index].getReturnedClass()));
+				if (i > 0) sb.append(", ");
+				sb.append(name).append(" = :").append(param);
+			}
+			sb.append(" where ").append(toWhere(filter, sd, params));
+			hql = sb.toString();
+		} catch (IllegalArgumentException e) {
+			return badRequest("bulkUpdate", e);
+		}
+		return execute("bulkUpdate", hql, params);
+	}
+
+	private String toWhere(String filter, SaveDescriptor sd, Map<String, Object> params) {
+		if (filter == null || filter.trim().isEmpty())
+			throw new IllegalArgumentException("A $filter is required");
+		return OdataCriteria.toHqlWhere(filter.trim(), sd, params);
+	}
+
+	private Object convert(Object value, Class type) {
+		if (value == null || type.isInstance(value)) return value;
+		try {
+			return JSONDeserializer.convert(value, type);
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Value " + value + " cannot be converted to " + type.getName(), e);
+		}
+	}
+
+	/**
+	 * Execute the HQL statement in its own transaction
+	 * @return response containing {"Count": number of rows affected}
+	 */
+	private Response execute(String method, String hql, Map<String, Object> params) {
+		log.debugv("{0}: hql={1} params={2}", method, hql, params);
+		Response response;
+		Session session = sessionFactory.openSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			Query query = session.createQuery(hql);
+			for (Map.Entry<String, Object> entry : params.entrySet()) {
+				query.setParameter(entry.getKey(), entry.getValue());
+			}
+			int count = query.executeUpdate();
+			tx.commit();
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("Count", count);
+			response = Response.ok(Json.toJson(map)).build();
+		}
+		catch (Exception e) {
+			if (tx != null && tx.isActive()) tx.rollback();
+			log.errorv(e, "{0}: exception {1}", method, e.getMessage());
+			response = Response.serverError().entity(Json.toJson(e)).build();
+		}
+		finally {
+			session.close();
+		}
+		return response;
+	}
+
+	private Response badRequest(String method, IllegalArgumentException e) {
+		log.errorv("{0}: {1}", method, e.getMessage());
+		return Response.status(Response.Status.BAD_REQUEST).entity(Json.toJson(e)).build();
+	}
+}
@@ -0,0 +1,218 @@
+package com.breezejs.hib;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import com.breezejs.save.SaveEvent;
+import com.breezejs.save.SaveOutbox;
+import com.breezejs.save.SaveResult;
+import com.breezejs.save.TempKeyMap;
+
+/**
+ * A save that is sent in several chunks, each of which is a normal save bundle.
+ * All chunks are saved in one transaction, which is committed when the client commits the session.
+ * Each chunk is validated, saved and flushed as it arrives, and then the Hibernate session is cleared,
+ * so the session's first-level cache does not grow with the number of chunks.
+ * <p>
+ * Chunks must arrive in order, starting at 0.  A chunk that has already been saved may be sent again
+ * (e.g. when the client did not get the response); it is not saved twice, and the result it got
+ * the first time is returned again.  For that, the result of each chunk is kept until the session is closed.
+ * @author Steve
+ */
+public class ChunkedSaveSession {
+
+	private String id;
+	private Session session;
+	private Transaction tx;
+	private Metadata metadata;
+	private TempKeyMap tempKeyMap;
+	private ExecutorService validationExecutor;
+	private SaveOutbox outbox;
+	private boolean changedPropertyUpdates;
+	private SaveEvent saveEvent;
+	private int nextChunkIndex;
+	/** result of each chunk that was saved, indexed by chunkIndex */
+	private List<ChunkResult> chunkResults = new ArrayList<ChunkResult>();
+	private long lastAccessTime;
+	private boolean closed;
+
+	/**
+	 * Result of saving a chunk: the SaveResult, and whether the save session is still usable.
+	 */
+	public static class ChunkResult {
+		public final SaveResult saveResult;
+		public final boolean aborted;
+		public ChunkResult(SaveResult saveResult, boolean aborted) {
+			this.saveResult = saveResult;
+			this.aborted = aborted;
+		}
+	}
+
+	/**
+	 * Open a new Hibernate session and begin the transaction for the chunked save.
+	 * @param sessionFactory
+	 * @param metadata metadata from MetadataBuilder
+	 */
+	public ChunkedSaveSession(SessionFactory sessionFactory, Metadata metadata) {
+		this.id = UUID.randomUUID().toString();
+		this.metadata = metadata;
+		this.tempKeyMap = new TempKeyMap();
+		this.session = sessionFactory.openSession();
+		this.session.setFlushMode(FlushMode.MANUAL);
+		this.tx = session.beginTransaction();
+		this.lastAccessTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param validationExecutor executor to run beforeSaveEntity in parallel for the entities in each chunk
+	 */
+	public void setValidationExecutor(ExecutorService validationExecutor) {
+		this.validationExecutor = validationExecutor;
+	}
+
+	/**
+	 * @param outbox outbox to receive one SaveEvent, for all the chunks, when the session is committed
+	 */
+	public void setOutbox(SaveOutbox outbox) {
+		this.outbox = outbox;
+	}
+
+	/**
+	 * @param changedPropertyUpdates whether modified entities are updated by writing only the changed properties
+	 */
+	public void setChangedPropertyUpdates(boolean changedPropertyUpdates) {
+		this.changedPropertyUpdates = changedPropertyUpdates;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the index of the next chunk expected from the client
+	 */
+	public synchronized int getNextChunkIndex() {
+		return nextChunkIndex;
+	}
+
+	public synchronized long getLastAccessTime() {
+		return lastAccessTime;
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Save a chunk of entities.  The entities are flushed to the database but not committed.
+	 * If the chunk has validation errors, nothing is saved and the chunk may be sent again.
+	 * If the database rejects the chunk, the whole save session is rolled back.
+	 * @param chunkIndex index of this chunk, starting at 0
+	 * @param source save bundle containing the entities in this chunk
+	 * @return result of the chunk.  If the chunkIndex was already saved, the same result is returned again.
+	 * @throws IllegalStateException if the session is closed or the chunkIndex is out of sequence
+	 */
+	public synchronized ChunkResult saveChunk(int chunkIndex, Reader source) {
+		checkOpen();
+		lastAccessTime = System.currentTimeMillis();
+		if (chunkIndex < 0) {
+			throw new IllegalStateException("Invalid chunk index " + chunkIndex);
+		}
+		if (chunkIndex < nextChunkIndex) {
+			return chunkResults.get(chunkIndex);
+		}
+		if (chunkIndex > nextChunkIndex) {
+			throw new IllegalStateException("Expected chunk " + nextChunkIndex + " but received chunk " + chunkIndex);
+		}
+
+		HibernateContext context = new HibernateContext(session, metadata);
+		context.setTempKeyMap(tempKeyMap);
+		context.setValidationExecutor(validationExecutor);
+		context.setOutbox(outbox);
+		context.setChangedPropertyUpdates(changedPropertyUpdates);
+		SaveResult sr;
+		try {
+			sr = context.saveChanges(source);
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+
+		boolean aborted = false;
+		if (sr.hasErrors()) {
+			if (!tx.isActive() || context.isFlushed()) {
+				// the database rejected the chunk, or it was saved and then rejected by afterSaveEntities
+				close();
+				aborted = true;
+			}
+		} else {
+			nextChunkIndex++;
+			if (context.getSaveEvent() != null) {
+				if (saveEvent == null) saveEvent = context.getSaveEvent();
+				else saveEvent.addAll(context.getSaveEvent());
+			}
+		}
+		// release the entities from the session; they are only needed for the response
+		if (!closed) session.clear();
+
+		ChunkResult result = new ChunkResult(sr, aborted);
+		if (!sr.hasErrors()) chunkResults.add(result);
+		return result;
+	}
+
+	/**
+	 * Commit all the chunks that have been saved.
+	 * <p>
+	 * Unlike the SaveResult of a single-request save, which holds the saved entities and the KeyMappings
+	 * of that save, the result of commit holds no entities: they were returned with each chunk.
+	 * Its KeyMappings are those of all the chunks together, mapping each temporary key to its real key.
+	 * @return SaveResult with no entities, and the KeyMappings for all the chunks
+	 */
+	public synchronized SaveResult commit() {
+		checkOpen();
+		try {
+			tx.commit();
+		} finally {
+			close();
+		}
+		if (outbox != null && saveEvent != null) {
+			outbox.appendCommitted(saveEvent);
+		}
+		return new SaveResult(new ArrayList<Object>(), tempKeyMap.toKeyMappings());
+	}
+
+	/**
+	 * Roll back all the chunks that have been saved, and close the session.
+	 */
+	public synchronized void abort() {
+		if (!closed) {
+			close();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Save session " + id + " is closed");
+		}
+	}
+
+	private void close() {
+		closed = true;
+		chunkResults.clear();
+		try {
+			if (tx.isActive()) {
+				tx.rollback();
+			}
+		} finally {
+			session.close();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.breezejs.hib;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks for entities, keyed by entity name and id.  Saves that change the same entities
+ * take the same locks, so they run one after the other instead of failing on the version check
+ * at the end of the save.  Saves of different entities usually take different locks and run in parallel.
+ * <p>
+ * Locks are always acquired in order of stripe number, so two saves cannot deadlock.
+ * @author Steve
+ */
+public class EntityLockManager {
+
+	private ReentrantLock[] stripes;
+	private int mask;
+	private long timeoutMillis;
+
+	/**
+	 * @param stripeCount number of locks; rounded up to a power of 2
+	 * @param timeoutMillis maximum time to wait for the locks
+	 */
+	public EntityLockManager(int stripeCount, long timeoutMillis) {
+		int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+		this.stripes = new ReentrantLock[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		this.mask = size - 1;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * @param entityName name of the root entity of the class hierarchy, so subclasses share locks
+	 * @param id identifier of the entity; an array for a composite key
+	 * @return the stripe for the entity
+	 */
+	public int getStripe(String entityName, Object id) {
+		int h = entityName.hashCode() * 31 + (id instanceof Object[] ? Arrays.hashCode((Object[]) id) : id.hashCode());
+		h ^= (h >>> 16);
+		return h & mask;
+	}
+
+	/**
+	 * Lock the stripes, in order.  Either all the stripes are locked, or none are.
+	 * @param stripeNumbers from getStripe; may contain duplicates
+	 * @return the stripes that were locked, to pass to unlock, or null if the locks could not be acquired in time
+	 */
+	public int[] lock(int[] stripeNumbers) {
+		int[] sorted = stripeNumbers.clone();
+		Arrays.sort(sorted);
+		int n = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (n == 0 || sorted[n - 1] != sorted[i]) sorted[n++] = sorted[i];
+		}
+		sorted = Arrays.copyOf(sorted, n);
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		for (int i = 0; i < n; i++) {
+			boolean locked;
+			try {
+				locked = stripes[sorted[i]].tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				locked = false;
+			}
+			if (!locked) {
+				unlock(Arrays.copyOf(sorted, i));
+				return null;
+			}
+		}
+		return sorted;
+	}
+
+	/**
+	 * Unlock the stripes returned by lock
+	 * @param lockedStripes
+	 */
+	public void unlock(int[] lockedStripes) {
+		for (int i = lockedStripes.length - 1; i >= 0; i--) {
+			stripes[lockedStripes[i]].unlock();
+		}
+	}
+}
@@ -2,22 +2,26 @@ package com.breezejs.hib;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
-import org.hibernate.EntityMode;
 import org.hibernate.FlushMode;
+import org.hibernate.LockOptions;
 import org.hibernate.PropertyValueException;
+import org.hibernate.Query;
 import org.hibernate.Session;
-import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
 import org.hibernate.Transaction;
 import org.hibernate.metadata.ClassMetadata;
-import org.hibernate.type.ComponentType;
-import org.hibernate.type.Type;
+import org.json.JSONException;
 
 import com.breezejs.save.*;
+import com.sun.json.JSONDeserializer;
 
 public class HibernateContext extends ContextProvider {
 
@@ -25,6 +29,13 @@ public class HibernateContext extends ContextProvider {
 	private Session session;
 	private List<EntityError> entityErrors = new ArrayList<EntityError>();
 	private Map<EntityInfo, KeyMapping> entityKeyMapping = new HashMap<EntityInfo, KeyMapping>();
+	private TempKeyMap tempKeyMap;
+	private boolean flushed;
+	private boolean committed;
+	private EntityLockManager lockManager;
+	private boolean changedPropertyUpdates;
+	private boolean pendingActions;
+	private UpsertWriter upsertWriter;
 
 	/**
 	 * @param session Hibernate session to be used for saving
@@ -35,6 +46,44 @@ public class HibernateContext extends ContextProvider {
 		this.metadataMap = metadataMap;
 	}
 	
+	/**
+	 * Set the map of temporary keys from earlier parts of a chunked save.  Foreign keys in this save
+	 * that refer to those temporary keys are resolved to the real keys, and the KeyMappings created
+	 * by this save are added to the map.
+	 * @param tempKeyMap
+	 */
+	public void setTempKeyMap(TempKeyMap tempKeyMap) {
+		this.tempKeyMap = tempKeyMap;
+	}
+	
+	/**
+	 * Set the lock manager used to serialize saves of the same entities.  Unless the SaveOptions
+	 * allowConcurrentSaves, the modified and deleted entities are locked before they are saved,
+	 * and unlocked after the commit.
+	 * @param lockManager
+	 */
+	public void setLockManager(EntityLockManager lockManager) {
+		this.lockManager = lockManager;
+	}
+	
+	/**
+	 * Set whether modified entities are updated by writing only the properties in their originalValuesMap,
+	 * instead of every column.  The update checks the version, if the entity has one.  Entities whose
+	 * changes cannot be written this way (e.g. a changed component) are updated normally.
+	 * @param changedPropertyUpdates
+	 */
+	public void setChangedPropertyUpdates(boolean changedPropertyUpdates) {
+		this.changedPropertyUpdates = changedPropertyUpdates;
+	}
+	
+	/**
+	 * @return true if the entities have been flushed to the database by saveChangesCore,
+	 * even if the transaction has not been committed
+	 */
+	public boolean isFlushed() {
+		return flushed;
+	}
+	
 	/**
      * Allows subclasses to process entities before they are saved.  This method is called
      * after BeforeSaveEntities(saveMap), and before any session.Save methods are called.
@@ -56,6 +105,81 @@ public class HibernateContext extends ContextProvider {
 	 * @param saveWorkState
 	 */
 	protected void saveChangesCore(SaveWorkState saveWorkState) {
+		if (!checkUpserts(saveWorkState.saveMap)) {
+			saveWorkState.entityErrors = entityErrors;
+			return;
+		}
+		int[] locks = null;
+		if (lockManager != null && !saveWorkState.saveOptions.allowConcurrentSaves) {
+			locks = lockEntities(saveWorkState.saveMap);
+			if (locks == null) {
+				entityErrors.add(new EntityError("ConcurrentSave", null, null, null,
+						"Timed out waiting for another save of the same entities"));
+				saveWorkState.entityErrors = entityErrors;
+				return;
+			}
+		}
+		try {
+			saveEntities(saveWorkState);
+		} finally {
+			if (locks != null) lockManager.unlock(locks);
+		}
+	}
+	
+	/**
+	 * Add an EntityError for each entity in the Upsert state that cannot be upserted, because its key is
+	 * generated or missing.
+	 * @param saveMap
+	 * @return true if all the upserts are valid
+	 * @see UpsertWriter#checkUpsert(SaveDescriptor, Object)
+	 */
+	protected boolean checkUpserts(Map<Class, List<EntityInfo>> saveMap) {
+		boolean valid = true;
+		for (Entry<Class, List<EntityInfo>> entry : saveMap.entrySet()) {
+			SaveDescriptor sd = metadataMap.getSaveDescriptor(entry.getKey());
+			for (EntityInfo entityInfo : entry.getValue()) {
+				if (entityInfo.entityState != EntityState.Upsert) continue;
+				String error = UpsertWriter.checkUpsert(sd, entityInfo.entity);
+				if (error != null) {
+					Object[] keyValues = sd.getIdentifier(entityInfo.entity) == null ? null
+							: getIdentifierAsArray(entityInfo.entity, sd);
+					entityErrors.add(new EntityError("UpsertNotAllowed", sd.entityName, keyValues, sd.identifierName, error));
+					valid = false;
+				}
+			}
+		}
+		return valid;
+	}
+	
+	/**
+	 * Lock the modified, upserted and deleted entities in the saveMap.  Added entities are not locked,
+	 * because no other save can refer to them yet.
+	 * @param saveMap
+	 * @return the locked stripes, or null if they could not be locked
+	 */
+	protected int[] lockEntities(Map<Class, List<EntityInfo>> saveMap) {
+		int count = 0;
+		for (List<EntityInfo> infos : saveMap.values()) count += infos.size();
+		int[] stripes = new int[count];
+		int n = 0;
+		for (Entry<Class, List<EntityInfo>> entry : saveMap.entrySet()) {
+			SaveDescriptor sd = metadataMap.getSaveDescriptor(entry.getKey());
+			for (EntityInfo entityInfo : entry.getValue()) {
+				EntityState state = entityInfo.entityState;
+				if (state == EntityState.Modified || state == EntityState.Deleted || state == EntityState.Upsert) {
+					Object id = sd.getIdentifier(entityInfo.entity);
+					if (id != null) stripes[n++] = lockManager.getStripe(sd.rootEntityName, id);
+				}
+			}
+		}
+		return lockManager.lock(Arrays.copyOf(stripes, n));
+	}
+	
+	/**
+	 * Save the entities in a transaction.  If the session already has a transaction, it is not committed.
+	 * @param saveWorkState
+	 */
+	protected void saveEntities(SaveWorkState saveWorkState) {
 		Map<Class, List<EntityInfo>> saveMap = saveWorkState.saveMap;
 		session.setFlushMode(FlushMode.MANUAL);
 		Transaction tx = session.getTransaction();
@@ -66,16 +190,34 @@ public class HibernateContext extends ContextProvider {
 			// Relate entities in the saveMap to other entities, so Hibernate can save the FK values.
 			RelationshipFixer fixer = getRelationshipFixer(saveMap);			
 			List<EntityInfo> saveOrder = fixer.fixupRelationships();
+			if (fixer.getEntityErrors() != null) {
+				// cyclic dependencies; nothing has been saved
+				if (!hasExistingTransaction)
+					tx.rollback();
+				saveWorkState.entityErrors = fixer.getEntityErrors();
+				return;
+			}
 			
 			// Allow subclass to process entities before we save them
 			saveOrder = beforeSaveEntityGraph(saveOrder);
 			
+			int partitionSize = saveWorkState.saveOptions.partitionSize;
+			if (partitionSize > 0 && !hasExistingTransaction && !fixer.hasDeferredRelationships()) {
+				saveInPartitions(saveWorkState, saveOrder, partitionSize, tx);
+				fixer.removeRelationships();
+				return;
+			}
+			
 			processSaves(saveOrder);
+			fixer.restoreDeferredRelationships();
 
 			session.flush();
+			flushed = true;
 			refreshFromSession(saveMap);
-			if (!hasExistingTransaction)
+			if (!hasExistingTransaction) {
 				tx.commit();
+				committed = true;
+			}
 			fixer.removeRelationships();
 		} catch (PropertyValueException pve) {
 			// Hibernate can throw this
@@ -93,6 +235,100 @@ public class HibernateContext extends ContextProvider {
 		}
 
 		saveWorkState.keyMappings = updateAutoGeneratedKeys(saveWorkState.entitiesWithAutoGeneratedKeys);
+		if (tempKeyMap != null && saveWorkState.entityErrors == null) {
+			addToTempKeyMap(saveWorkState.entitiesWithAutoGeneratedKeys);
+		}
+	}
+	
+	/**
+	 * Save the entities in partitions of the saveOrder, each committed in its own transaction, clearing the session
+	 * between them.  Because the saveOrder is sorted by dependency, each partition only refers to entities in
+	 * the partitions before it, whose keys are already real.  If a partition fails, it is rolled back and the
+	 * save stops, leaving the earlier partitions committed; the saveWorkState then has the errors, the
+	 * partitions, and the entities and KeyMappings of the committed partitions, which are sent to the outbox.
+	 * @param saveWorkState
+	 * @param saveOrder entities sorted by dependency
+	 * @param partitionSize maximum number of entities in each partition
+	 * @param tx active transaction, used for the first partition
+	 */
+	protected void saveInPartitions(SaveWorkState saveWorkState, List<EntityInfo> saveOrder, int partitionSize, Transaction tx) {
+		List<SavePartition> partitions = new ArrayList<SavePartition>();
+		for (int start = 0; start < saveOrder.size(); start += partitionSize) {
+			partitions.add(new SavePartition(partitions.size(), Math.min(partitionSize, saveOrder.size() - start)));
+		}
+		List<KeyMapping> keyMappings = new ArrayList<KeyMapping>();
+		List<EntityInfo> savedEntityInfos = new ArrayList<EntityInfo>();
+		saveWorkState.partitions = partitions;
+		saveWorkState.keyMappings = keyMappings;
+		
+		for (SavePartition partition : partitions) {
+			int start = partition.getIndex() * partitionSize;
+			List<EntityInfo> entityInfos = saveOrder.subList(start, start + partition.getEntityCount());
+			if (!tx.isActive())
+				tx = session.beginTransaction();
+			try {
+				processSaves(entityInfos);
+				session.flush();
+				pendingActions = false;
+				refreshEntities(entityInfos);
+				tx.commit();
+			} catch (RuntimeException ex) {
+				if (tx.isActive())
+					tx.rollback();
+				String entityName = null, propertyName = null;
+				if (ex instanceof PropertyValueException) {
+					entityName = ((PropertyValueException) ex).getEntityName();
+					propertyName = ((PropertyValueException) ex).getPropertyName();
+				}
+				partition.setError(ex.getMessage());
+				entityErrors.add(new EntityError(ex.getClass().getSimpleName(), entityName, null, propertyName,
+						"Partition " + partition.getIndex() + " failed: " + ex.getMessage()));
+				saveWorkState.entityErrors = entityErrors;
+				saveWorkState.savedEntityInfos = savedEntityInfos;
+				session.clear();
+				return;
+			}
+			partition.setCommitted(true);
+			flushed = true;
+			
+			List<EntityInfo> withKeys = new ArrayList<EntityInfo>();
+			for (EntityInfo entityInfo : entityInfos) {
+				savedEntityInfos.add(entityInfo);
+				if (entityInfo.autoGeneratedKey != null) withKeys.add(entityInfo);
+			}
+			keyMappings.addAll(updateAutoGeneratedKeys(withKeys));
+			// the committed entities are no longer needed in the persistence context
+			session.clear();
+		}
+		committed = true;
+	}
+	
+	/**
+	 * Add the KeyMappings to the tempKeyMap, keyed by the root entity name
+	 * so they can be found from foreign keys to a superclass.
+	 * @param entitiesWithAutoGeneratedKeys
+	 */
+	protected void addToTempKeyMap(List<EntityInfo> entitiesWithAutoGeneratedKeys) {
+		for (EntityInfo entityInfo : entitiesWithAutoGeneratedKeys) {
+			KeyMapping km = entityKeyMapping.get(entityInfo);
+			if (km != null && km.getRealValue() != null) {
+				SaveDescriptor sd = metadataMap.getSaveDescriptor(entityInfo.entity.getClass());
+				tempKeyMap.add(sd.rootEntityName, km);
+			}
+		}
+	}
+	
+	/**
+	 * @return true if saveChangesCore committed the transaction, false if the transaction was begun by the caller
+	 */
+	@Override
+	protected boolean isCommitted() {
+		return committed;
+	}
+	
+	@Override
+	protected Object getEntityKey(Object entity) {
+		return getIdentifier(entity, (SaveDescriptor) null);
 	}
 	
 	/**
@@ -101,62 +337,172 @@ public class HibernateContext extends ContextProvider {
 	 * @return
 	 */
 	protected RelationshipFixer getRelationshipFixer(Map<Class, List<EntityInfo>> saveMap) {
-		// Get the map of foreign key relationships
-		Map<String, String> fkMap = metadataMap.foreignKeyMap;
-		return new RelationshipFixer(saveMap, fkMap, session);
+		RelationshipFixer fixer = new RelationshipFixer(saveMap, metadataMap, session);
+		fixer.setTempKeyMap(tempKeyMap);
+		return fixer;
 	}
 
 	/**
-	 * Persist the changes to the entities in the saveOrder.
+	 * Persist the changes to the entities in the saveOrder.  Consecutive upserts of the same class
+	 * are written together by processUpserts.
 	 * @param saveMap
 	 */
 	protected void processSaves(List<EntityInfo> saveOrder) {
 
-		SessionFactory sf = session.getSessionFactory();
+		List<EntityInfo> upserts = new ArrayList<EntityInfo>();
+		SaveDescriptor upsertDescriptor = null;
 		for (EntityInfo entityInfo : saveOrder) {
 	        Class entityType = entityInfo.entity.getClass();
-	        ClassMetadata classMeta = sf.getClassMetadata(entityType);
-	        addKeyMapping(entityInfo, entityType, classMeta);
-	        processEntity(entityInfo, classMeta);
+	        SaveDescriptor sd = metadataMap.getSaveDescriptor(entityType);
+	        if (entityInfo.entityState == EntityState.Upsert) {
+	        	if (sd != upsertDescriptor) {
+	        		processUpserts(upserts, upsertDescriptor);
+	        		upsertDescriptor = sd;
+	        	}
+	        	upserts.add(entityInfo);
+	        	continue;
+	        }
+	        processUpserts(upserts, upsertDescriptor);
+	        addKeyMapping(entityInfo, entityType, sd);
+	        processEntity(entityInfo, sd);
+		}
+		processUpserts(upserts, upsertDescriptor);
+	}
+
+	/**
+	 * Insert or update the entities in the Upsert state, using the UpsertWriter, and clear the list.
+	 * @param upserts entities of the same class
+	 * @param sd SaveDescriptor for their class
+	 */
+	protected void processUpserts(List<EntityInfo> upserts, SaveDescriptor sd) {
+		if (upserts.isEmpty()) return;
+		if (upsertWriter == null) {
+			upsertWriter = new UpsertWriter(session);
+		}
+		// earlier inserts must reach the database first, e.g. a new entity that these refer to
+		if (pendingActions) {
+			session.flush();
+			pendingActions = false;
 		}
+		if (!upsertWriter.upsert(sd, upserts)) {
+			pendingActions = true;
+		}
+		upserts.clear();
 	}
 
 	/**
 	 * Add, update, or delete the entity according to its EntityState.
 	 * @param entityInfo
-	 * @param classMeta
+	 * @param sd
 	 */
-	protected void processEntity(EntityInfo entityInfo, ClassMetadata classMeta) {
+	protected void processEntity(EntityInfo entityInfo, SaveDescriptor sd) {
 		Object entity = entityInfo.entity;
 		EntityState state = entityInfo.entityState;
 
 		// Restore the old value of the concurrency column so Hibernate will be able to save the entity
-		if (classMeta.isVersioned()) {
-			restoreOldVersionValue(entityInfo, classMeta);
+		if (sd.versionIndex >= 0) {
+			restoreOldVersionValue(entityInfo, sd);
 		}
 
 		if (state == EntityState.Modified) {
-			session.update(entity);
+			if (!changedPropertyUpdates || !updateChangedProperties(entityInfo, sd)) {
+				session.update(entity);
+				pendingActions = true;
+			}
 		} else if (state == EntityState.Added) {
 			session.save(entity);
+			pendingActions = true;
 		} else if (state == EntityState.Deleted) {
 			session.delete(entity);
+			pendingActions = true;
 		} else {
 	        // Ignore EntityState.Unchanged.  Too many problems using session.Lock or session.Merge
 	        //session.Lock(entity, LockMode.None);
 		}
 	}
 
+	/**
+	 * Update only the properties named in the originalValuesMap, and the version, with an HQL statement.
+	 * Foreign key properties that are mapped as read-only are written through their navigation properties.
+	 * The entity is then associated with the session without being updated again.
+	 * @param entityInfo
+	 * @param sd
+	 * @return false if the entity must be updated normally instead, because the changes cannot be
+	 * written this way
+	 * @throws StaleObjectStateException if the entity was not found with the expected version
+	 */
+	protected boolean updateChangedProperties(EntityInfo entityInfo, SaveDescriptor sd) {
+		Map original = entityInfo.originalValuesMap;
+		if (original == null || original.isEmpty() || sd.identifierName == null || sd.identifierType.isComponentType())
+			return false;
+		Object entity = entityInfo.entity;
+		
+		StringBuilder sb = new StringBuilder("update ");
+		if (sd.versionIndex >= 0) sb.append("versioned ");
+		sb.append(sd.entityName).append(" set ");
+		Set<String> names = new HashSet<String>();
+		List<Object> values = new ArrayList<Object>();
+		for (Object key : original.keySet()) {
+			String name = (String) key;
+			if (name.equals(sd.versionName)) continue;
+			int index = sd.getPropertyIndex(name);
+			if (index < 0) return false;
+			Object value;
+			if (sd.propertyUpdateability[index]) {
+				if (sd.propertyTypes[index].isComponentType()) return false;
+				value = sd.persister.getPropertyValue(entity, index);
+			} else {
+				// a read-only foreign key; write the relationship instead
+				NavigationDescriptor nav = sd.getNavigationForForeignKey(name);
+				if (nav == null || nav.componentType != null || nav.propertyIndex == SaveDescriptor.IDENTIFIER_INDEX
+						|| !sd.propertyUpdateability[nav.propertyIndex])
+					return false;
+				name = nav.name;
+				value = sd.getNavigationValue(entity, nav);
+			}
+			if (names.add(name)) {
+				if (values.size() > 0) sb.append(", ");
+				sb.append(name).append(" = :p").append(values.size());
+				values.add(value);
+			}
+		}
+		if (values.isEmpty()) return false;
+		
+		Object id = sd.getIdentifier(entity);
+		Object version = sd.versionIndex >= 0 ? sd.persister.getPropertyValue(entity, sd.versionIndex) : null;
+		sb.append(" where ").append(sd.identifierName).append(" = :id");
+		if (version != null) sb.append(" and ").append(sd.versionName).append(" = :version");
+		
+		// earlier inserts and deletes must reach the database first, e.g. a new entity that this one now refers to
+		if (pendingActions) {
+			session.flush();
+			pendingActions = false;
+		}
+		Query query = session.createQuery(sb.toString());
+		for (int i = 0; i < values.size(); i++) {
+			query.setParameter("p" + i, values.get(i));
+		}
+		query.setParameter("id", id);
+		if (version != null) query.setParameter("version", version);
+		if (query.executeUpdate() == 0) {
+			throw new StaleObjectStateException(sd.entityName, (Serializable) id);
+		}
+		
+		// attach it unchanged, so it is not written again; refreshFromSession reads the new version
+		session.buildLockRequest(LockOptions.NONE).lock(entity);
+		return true;
+	}
+
 	/**
 	 * Record the value of the temporary key in EntityKeyMapping
 	 * @param entityInfo
 	 * @param type
-	 * @param meta
+	 * @param sd
 	 */
-	protected void addKeyMapping(EntityInfo entityInfo, Class type, ClassMetadata meta) {
+	protected void addKeyMapping(EntityInfo entityInfo, Class type, SaveDescriptor sd) {
 		if (entityInfo.entityState == EntityState.Added) {
 			Object entity = entityInfo.entity;
-			Object id = getIdentifier(entity, meta);
+			Object id = getIdentifier(entity, sd);
 			KeyMapping km = new KeyMapping(type.getName(), id);
 			entityKeyMapping.put(entityInfo, km);
 		}
@@ -166,43 +512,23 @@ public class HibernateContext extends ContextProvider {
 	 * Get the identifier value for the entity.  If the entity does not have an
 	 * identifier property, or natural identifiers defined, then the entity itself is returned.
 	 * @param entity
-	 * @param meta
+	 * @param sd SaveDescriptor for the entity's class, or null to look it up
 	 * @return
 	 */
-	protected Object getIdentifier(Object entity, ClassMetadata meta) {
-		Class type = entity.getClass();
-		if (meta == null)
-			meta = session.getSessionFactory().getClassMetadata(type);
-
-		Type idType = meta.getIdentifierType();
-		if (idType != null) {
-			Serializable id = meta.getIdentifier(entity, null);
-			if (idType.isComponentType()) {
-				ComponentType compType = (ComponentType) idType;
-				return compType.getPropertyValues(id, EntityMode.POJO);
-			} else {
-				return id;
-			}
-		} else if (meta.hasNaturalIdentifier()) {
-			int[] idprops = meta.getNaturalIdentifierProperties();
-			Object[] values = meta.getPropertyValues(entity);
-			Object[] idvalues = new Object[idprops.length];
-			for (int i = 0; i < idprops.length; i++) {
-				idvalues[i] = values[idprops[i]];
-			}
-			return idvalues;
-		}
-		return entity;
+	protected Object getIdentifier(Object entity, SaveDescriptor sd) {
+		if (sd == null)
+			sd = metadataMap.getSaveDescriptor(entity.getClass());
+		return sd.getIdentifier(entity);
 	}
 
 	/**
 	 * Get the identifier value for the entity as an object[].  This is needed for creating an EntityError.
 	 * @param entity
-	 * @param meta
+	 * @param sd
 	 * @return
 	 */
-	protected Object[] getIdentifierAsArray(Object entity, ClassMetadata meta) {
-		Object value = getIdentifier(entity, meta);
+	protected Object[] getIdentifierAsArray(Object entity, SaveDescriptor sd) {
+		Object value = getIdentifier(entity, sd);
 		if (value.getClass().isArray()) {
 			return (Object[]) value;
 		} else {
@@ -214,25 +540,80 @@ public class HibernateContext extends ContextProvider {
 	 * Restore the old value of the concurrency column so Hibernate will save the entity.
 	 * Otherwise it will complain because Breeze has already changed the value.
 	 * @param entityInfo
-	 * @param classMeta
+	 * @param sd
 	 */
-	protected void restoreOldVersionValue(EntityInfo entityInfo, ClassMetadata classMeta) {
+	protected void restoreOldVersionValue(EntityInfo entityInfo, SaveDescriptor sd) {
 		if (entityInfo.originalValuesMap == null || entityInfo.originalValuesMap.size() == 0)
 			return;
-		int vcol = classMeta.getVersionProperty();
-		String vname = classMeta.getPropertyNames()[vcol];
-		Object oldVersion = entityInfo.originalValuesMap.get(vname);
+		Object oldVersion = entityInfo.originalValuesMap.get(sd.versionName);
 		if (oldVersion != null) {
 			Object entity = entityInfo.entity;
-			//        Class vtype = classMeta.getPropertyTypes()[vcol].getReturnedClass();
-			//        if (vtype != oldVersion.getClass()) {
-			//        	// because JsonConvert makes all integers Int64
-			//        	oldVersion = vtype.getConstructor(oldVersion.getClass()).newInstance(oldVersion);
-			//        } 
-			classMeta.setPropertyValue(entity, vname, oldVersion);
+			if (!sd.versionType.isInstance(oldVersion)) {
+				// numbers are read as the narrowest of Integer, Long or Double, not as the version type
+				try {
+					oldVersion = JSONDeserializer.convert(oldVersion, sd.versionType);
+				} catch (JSONException e) {
+					throw new RuntimeException("Version " + oldVersion + " of " + entity.getClass().getName()
+							+ " cannot be converted to " + sd.versionType.getName(), e);
+				}
+			}
+			sd.setVersion(entity, oldVersion);
 		}
 	}
 
+	/*
+	 * The methods below take the ClassMetadata, as they did before the SaveDescriptors were added.
+	 * They are kept for subclasses that call them, but the save no longer calls them, so overriding
+	 * them has no effect; override the SaveDescriptor versions instead.
+	 */
+
+	/**
+	 * @deprecated use {@link #processEntity(EntityInfo, SaveDescriptor)}
+	 */
+	@Deprecated
+	protected void processEntity(EntityInfo entityInfo, ClassMetadata classMeta) {
+		processEntity(entityInfo, saveDescriptor(entityInfo.entity, classMeta));
+	}
+
+	/**
+	 * @deprecated use {@link #addKeyMapping(EntityInfo, Class, SaveDescriptor)}
+	 */
+	@Deprecated
+	protected void addKeyMapping(EntityInfo entityInfo, Class type, ClassMetadata meta) {
+		addKeyMapping(entityInfo, type, saveDescriptor(entityInfo.entity, meta));
+	}
+
+	/**
+	 * @deprecated use {@link #getIdentifier(Object, SaveDescriptor)}
+	 */
+	@Deprecated
+	protected Object getIdentifier(Object entity, ClassMetadata meta) {
+		return getIdentifier(entity, saveDescriptor(entity, meta));
+	}
+
+	/**
+	 * @deprecated use {@link #getIdentifierAsArray(Object, SaveDescriptor)}
+	 */
+	@Deprecated
+	protected Object[] getIdentifierAsArray(Object entity, ClassMetadata meta) {
+		return getIdentifierAsArray(entity, saveDescriptor(entity, meta));
+	}
+
+	/**
+	 * @deprecated use {@link #restoreOldVersionValue(EntityInfo, SaveDescriptor)}
+	 */
+	@Deprecated
+	protected void restoreOldVersionValue(EntityInfo entityInfo, ClassMetadata classMeta) {
+		restoreOldVersionValue(entityInfo, saveDescriptor(entityInfo.entity, classMeta));
+	}
+
+	/**
+	 * @return the SaveDescriptor for the class of the ClassMetadata, or for the class of the entity if it is null
+	 */
+	private SaveDescriptor saveDescriptor(Object entity, ClassMetadata meta) {
+		return metadataMap.getSaveDescriptor(meta != null ? meta.getMappedClass() : entity.getClass());
+	}
+
 	/**
 	 * Update the KeyMappings with their real values.
 	 * @param entitiesWithAutoGeneratedKeys
@@ -244,7 +625,7 @@ public class HibernateContext extends ContextProvider {
 			KeyMapping km = entityKeyMapping.get(entityInfo);
 			if (km != null && km.getTempValue() != null) {
 				Object entity = entityInfo.entity;
-				Object id = getIdentifier(entity, null);
+				Object id = getIdentifier(entity, (SaveDescriptor) null);
 				km.setRealValue(id);
 				list.add(km);
 			}
@@ -259,11 +640,20 @@ public class HibernateContext extends ContextProvider {
 	 */
 	protected void refreshFromSession(Map<Class, List<EntityInfo>> saveMap) {
     	for (Entry<Class, List<EntityInfo>> entry : saveMap.entrySet()) {
-            for (EntityInfo entityInfo : entry.getValue()) {
-                if (entityInfo.entityState == EntityState.Added || entityInfo.entityState == EntityState.Modified)
-                    session.refresh(entityInfo.entity);
-            }
+            refreshEntities(entry.getValue());
         }    	
 		
 	}
+
+	/**
+	 * Refresh the added, modified and upserted entities in the list from the database.
+	 * @param entityInfos
+	 */
+	protected void refreshEntities(List<EntityInfo> entityInfos) {
+        for (EntityInfo entityInfo : entityInfos) {
+            EntityState state = entityInfo.entityState;
+            if (state == EntityState.Added || state == EntityState.Modified || state == EntityState.Upsert)
+                session.refresh(entityInfo.entity);
+        }
+	}
 }
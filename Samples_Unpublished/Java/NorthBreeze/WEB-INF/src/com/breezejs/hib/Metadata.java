@@ -13,4 +13,22 @@ public class Metadata extends LinkedHashMap<String, Object> {
 	 * "Models.NorthwindIB.NH.Order.Customer": "CustomerID"
 	 */
 	HashMap<String, String> foreignKeyMap;
+	
+	/**
+	 * Map of entity class to the information needed to save it.
+	 */
+	HashMap<Class, SaveDescriptor> saveDescriptors;
+	
+	/**
+	 * @param entityClass
+	 * @return the SaveDescriptor for the entity class
+	 * @throws IllegalArgumentException if the class is not a mapped entity
+	 */
+	public SaveDescriptor getSaveDescriptor(Class entityClass) {
+		SaveDescriptor sd = saveDescriptors.get(entityClass);
+		if (sd == null) {
+			throw new IllegalArgumentException("No metadata for entity type " + entityClass.getName());
+		}
+		return sd;
+	}
 }
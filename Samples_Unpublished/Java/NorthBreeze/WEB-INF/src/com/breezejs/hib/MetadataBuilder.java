@@ -104,6 +104,12 @@ public class MetadataBuilder {
             addClass(meta);
         }
 		
+		// The foreign keys are all known now, so make the descriptors used when saving
+		for (ClassMetadata meta : classMeta.values())
+        {
+			_map.saveDescriptors.put(meta.getMappedClass(), new SaveDescriptor(meta, _fkMap, _sessionFactory));
+        }
+		
         return _map;
     }
     
@@ -122,6 +128,7 @@ public class MetadataBuilder {
         _map.put("structuralTypes", _typeList);
         _map.put("resourceEntityTypeMap",_resourceMap);
         _map.foreignKeyMap = _fkMap;
+        _map.saveDescriptors = new HashMap<Class, SaveDescriptor>();
     }
 
     /**
@@ -153,12 +160,9 @@ public class MetadataBuilder {
         if (meta instanceof EntityPersister) {
             EntityPersister entityPersister = (EntityPersister) meta;
             IdentifierGenerator generator = entityPersister != null ? entityPersister.getIdentifierGenerator() : null;
-            if (generator != null)
+            String genType = getAutoGeneratedKeyType(generator);
+            if (genType != null)
             {
-                String genType = null;
-                if (generator instanceof IdentityGenerator) genType = "Identity";
-                else if (generator instanceof Assigned || generator instanceof ForeignGenerator) genType = "None";
-                else genType = "KeyGenerator";
                 cmap.put("autoGeneratedKeyType", genType); // TODO find the real generator
             }
         }
@@ -557,6 +561,19 @@ public class MetadataBuilder {
         return nmap;
     }
     
+    /**
+     * Get the Breeze autoGeneratedKeyType for the identifier generator
+     * @param generator
+     * @return "Identity", "None", "KeyGenerator", or null if generator is null
+     */
+    static String getAutoGeneratedKeyType(IdentifierGenerator generator)
+    {
+        if (generator == null) return null;
+        if (generator instanceof IdentityGenerator) return "Identity";
+        else if (generator instanceof Assigned || generator instanceof ForeignGenerator) return "None";
+        else return "KeyGenerator";
+    }
+    
     /**
      * Get the type name in the form "Order:#northwind.model"
      * @param clazz
@@ -0,0 +1,55 @@
+package com.breezejs.hib;
+
+import org.hibernate.type.ComponentType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.ForeignKeyDirection;
+
+/**
+ * A many-to-one or one-to-one navigation property of an entity, with its foreign key and target class.
+ * These are built once per entity class by MetadataBuilder, and held in the SaveDescriptor, so that
+ * relationship fixup can work through an array instead of looking up names in the foreignKeyMap.
+ * @author Steve
+ */
+public class NavigationDescriptor {
+
+	/** Name of the navigation property, e.g. "customer" */
+	public final String name;
+	/**
+	 * Index of the property in the ClassMetadata, or SaveDescriptor.IDENTIFIER_INDEX.
+	 * If the navigation property is part of a component, this is the index of the component property.
+	 */
+	public final int propertyIndex;
+	/** Index of the navigation property within the component, or -1 if it is not in a component */
+	public final int componentIndex;
+	/** Type of the component containing the navigation property, or null */
+	public final ComponentType componentType;
+	public final EntityType type;
+	/** Class of the related entity */
+	public final Class targetClass;
+	/** Name of the root of the related entity's class hierarchy */
+	public final String targetRootEntityName;
+	/** True for a one-to-one association, false for many-to-one */
+	public final boolean oneToOne;
+	/** True if the foreign key is in the related entity, i.e. the related entity depends on this one */
+	public final boolean foreignKeyToParent;
+	/** True if the property may be null, so it can be set after the entity is inserted */
+	public final boolean nullable;
+	/** Foreign key holding the id of the related entity, or null if none was found in the metadata */
+	public final SaveDescriptor.ForeignKey foreignKey;
+
+	NavigationDescriptor(String name, int propertyIndex, int componentIndex, ComponentType componentType,
+			EntityType type, String targetRootEntityName, boolean nullable, SaveDescriptor.ForeignKey foreignKey) {
+		this.name = name;
+		this.propertyIndex = propertyIndex;
+		this.componentIndex = componentIndex;
+		this.componentType = componentType;
+		this.type = type;
+		this.targetClass = type.getReturnedClass();
+		this.targetRootEntityName = targetRootEntityName;
+		this.oneToOne = type.isOneToOne();
+		this.foreignKeyToParent = type.getForeignKeyDirection() == ForeignKeyDirection.FOREIGN_KEY_TO_PARENT;
+		this.nullable = nullable;
+		this.foreignKey = foreignKey;
+	}
+
+}
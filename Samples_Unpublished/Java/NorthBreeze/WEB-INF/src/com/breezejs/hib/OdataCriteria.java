@@ -1,7 +1,11 @@
 package com.breezejs.hib;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import org.hibernate.Criteria;
 import org.hibernate.criterion.Order;
@@ -10,6 +14,7 @@ import org.hibernate.internal.CriteriaImpl;
 import org.hibernate.internal.CriteriaImpl.OrderEntry;
 
 import com.breezejs.OdataParameters;
+import com.sun.json.JSONDeserializer;
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
@@ -37,6 +42,9 @@ public class OdataCriteria {
 	
 	public static final String WHITESPACE = "\\s+";
 	
+	// Property paths allowed in HQL, e.g. "shipAddress.city"
+	private static final Pattern PROPERTY_PATH = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)*");
+	
 	/**
 	 * Apply the OData $top, $skip, $orderby, and (crude) $filter parameters to the Criteria
 	 * @param crit
@@ -147,6 +155,117 @@ public class OdataCriteria {
 		
 	}
 	
+	/**
+	 * Convert an OData $filter to an HQL where clause, for bulk operations.  Handles filters of the form
+	 * [field] [op] [value], joined by "and".  Values become named parameters, which are added to params,
+	 * and are converted to the type of the property when it is a property of the entity.
+	 * A value of null becomes "is null" or "is not null", and true and false become Boolean parameters.
+	 * @param filterString OData $filter, e.g. "shipCountry eq 'Brazil' and freight lt 10"
+	 * @param sd SaveDescriptor of the entity, used to convert the values
+	 * @param params receives the parameter values, by name
+	 * @return where clause, without the "where"
+	 * @throws IllegalArgumentException if the filter is not handled
+	 */
+	static String toHqlWhere(String filterString, SaveDescriptor sd, Map<String, Object> params)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (String clause : splitAnd(filterString)) {
+			String[] filter = clause.split(WHITESPACE, 3);
+			if (filter.length != 3)
+				throw new IllegalArgumentException("Filter string not handled: " + clause);
+
+			String field = filter[0].replace('/', '.');
+			String op = filter[1].toLowerCase();
+			String restrictionOp = operatorMap.get(op);
+			String stringValue = filter[2];
+			if (restrictionOp == null || !PROPERTY_PATH.matcher(field).matches())
+				throw new IllegalArgumentException("Filter string not handled: " + clause);
+
+			if (sb.length() > 0) sb.append(" and ");
+			sb.append(field).append(' ');
+			if ("null".equals(stringValue)) {
+				// "= null" is never true in SQL
+				if (op.equals("eq")) {
+					sb.append("is null");
+				} else if (op.equals("ne")) {
+					sb.append("is not null");
+				} else {
+					throw new IllegalArgumentException("Filter string not handled: " + clause);
+				}
+				continue;
+			}
+			sb.append(restrictionOp).append(' ');
+
+			Object value;
+			if (stringValue.charAt(0) == '\'') {
+				if (stringValue.length() < 2 || stringValue.charAt(stringValue.length() - 1) != '\'')
+					throw new IllegalArgumentException("Filter string not handled: " + clause);
+				value = stringValue.substring(1, stringValue.length() - 1).replace("''", "'");
+			} else if ("true".equals(stringValue) || "false".equals(stringValue)) {
+				value = Boolean.valueOf(stringValue);
+			} else {
+				value = Ints.tryParse(stringValue);
+				if (value == null) {
+					value = Longs.tryParse(stringValue);
+				}
+				if (value == null) {
+					value = Doubles.tryParse(stringValue);
+				}
+				if (value == null) {
+					// expression comparing two properties
+					String other = stringValue.replace('/', '.');
+					if (!PROPERTY_PATH.matcher(other).matches())
+						throw new IllegalArgumentException("Filter string not handled: " + clause);
+					sb.append(other);
+					continue;
+				}
+			}
+			
+			int index = sd.getPropertyIndex(field);
+			Class type = index >= 0 ? sd.propertyTypes[index].getReturnedClass() 
+					: field.equals(sd.identifierName) ? sd.identifierType.getReturnedClass() : null;
+			if (type != null && !type.isInstance(value)) {
+				try {
+					value = JSONDeserializer.convert(value, type);
+				} catch (Exception e) {
+					throw new IllegalArgumentException("Value " + stringValue + " cannot be converted to " + type.getName(), e);
+				}
+			}
+			String name = "f" + params.size();
+			params.put(name, value);
+			sb.append(':').append(name);
+		}
+		if (sb.length() == 0)
+			throw new IllegalArgumentException("Filter string not handled: " + filterString);
+		return sb.toString();
+	}
+	
+	/**
+	 * Split the filter into clauses separated by "and", ignoring "and" inside quoted strings
+	 * @param filterString
+	 * @return
+	 */
+	private static List<String> splitAnd(String filterString)
+	{
+		List<String> clauses = new ArrayList<String>();
+		String lower = filterString.toLowerCase();
+		boolean quoted = false;
+		int start = 0;
+		for (int i = 0; i < filterString.length(); i++) {
+			char c = filterString.charAt(i);
+			if (c == '\'') {
+				quoted = !quoted;
+			} else if (!quoted && Character.isWhitespace(c) && lower.startsWith("and", i + 1)
+					&& i + 4 < filterString.length() && Character.isWhitespace(filterString.charAt(i + 4))) {
+				clauses.add(filterString.substring(start, i).trim());
+				start = i + 5;
+				i += 4;
+			}
+		}
+		clauses.add(filterString.substring(start).trim());
+		return clauses;
+	}
+	
 	/*
 Eq Equal /Suppliers?$filter=Address/City eq Redmond 
 Ne Not equal /Suppliers?$filter=Address/City ne London 
@@ -1,14 +1,29 @@
 package com.breezejs.hib;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.ws.rs.core.StreamingOutput;
 
 import org.hibernate.Criteria;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.metadata.ClassMetadata;
 import org.jboss.logging.Logger;
+import org.json.CborJSONWriter;
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.json.Utf8JSONWriter;
+
 import com.breezejs.OdataParameters;
 import com.breezejs.QueryResult;
 import com.breezejs.util.Json;
+import com.sun.json.SerializationPolicy;
 
 /**
  * Class to handle query strings and return JSON results
@@ -18,12 +33,61 @@ import com.breezejs.util.Json;
 public class QueryService {
 	
 	public static final Logger log = Logger.getLogger(QueryService.class);
+	/** Bytes of output held back by queryToOutput, so an error before they are filled can still be reported */
+	public static int outputBufferSize = 64 * 1024;
 	private SessionFactory sessionFactory;
+	private SerializationPolicy serializationPolicy;
+	private Map<String, SerializationPolicy> namedPolicies = new ConcurrentHashMap<String, SerializationPolicy>();
 
 	public QueryService(SessionFactory sessionFactory) {
 		this.sessionFactory = sessionFactory;
 	}
 
+	/**
+	 * Set the policy for the properties written by queryToStream for queries without a $policy,
+	 * e.g. to limit the depth of the graph or to exclude properties.  By default all properties are written.
+	 * The entity classes of the policy are set from the sessionFactory, if they have not been set.
+	 * @param serializationPolicy
+	 */
+	public void setSerializationPolicy(SerializationPolicy serializationPolicy) {
+		this.serializationPolicy = withEntityClasses(serializationPolicy);
+	}
+	
+	/**
+	 * Add a policy that a query chooses with the $policy parameter, e.g. $policy=lean,
+	 * so clients that expect the whole graph are not affected by it.
+	 * The entity classes of the policy are set from the sessionFactory, if they have not been set.
+	 * @param name value of the $policy parameter
+	 * @param serializationPolicy
+	 */
+	public void addSerializationPolicy(String name, SerializationPolicy serializationPolicy) {
+		namedPolicies.put(name, withEntityClasses(serializationPolicy));
+	}
+	
+	private SerializationPolicy withEntityClasses(SerializationPolicy policy) {
+		if (policy != null && policy.getEntityClasses() == null) {
+			List<Class> classes = new ArrayList<Class>();
+			for (ClassMetadata meta : sessionFactory.getAllClassMetadata().values()) {
+				classes.add(meta.getMappedClass());
+			}
+			policy.entityClasses(classes);
+		}
+		return policy;
+	}
+	
+	/**
+	 * @return the policy named by the $policy parameter, or the default policy if there is none
+	 * @throws IllegalArgumentException if no policy has the name
+	 */
+	private SerializationPolicy policyFor(OdataParameters op) {
+		if (op.policy == null) return serializationPolicy;
+		SerializationPolicy policy = namedPolicies.get(op.policy);
+		if (policy == null) {
+			throw new IllegalArgumentException("Unknown $policy " + op.policy);
+		}
+		return policy;
+	}
+
 	/**
 	 * Create and execute a query using the given parameters
 	 * @param clazz the entity class, e.g. Customer
@@ -83,29 +147,194 @@ public class QueryService {
 	 * @see HibernateExpander
 	 */
 	public String queryToJson(Criteria crit, boolean inlineCount, String[] expands) {
+		String json = Json.toJson(queryResult(crit, inlineCount, expands));
+		log.debugv("queryToJson: result={0}", json);
+		return json;
+	}
+	
+	/**
+	 * Create and execute a query using the given parameters, and write the results to the stream
+	 * as UTF-8 encoded JSON.  This avoids building the whole result as a String, which for large
+	 * results is much faster and uses much less memory than queryToJson.
+	 * @param clazz the entity class, e.g. Customer
+	 * @param op OdataParameters representing the OData operations on the query
+	 * @param out stream, e.g. the body of the response
+	 */
+	public void queryToStream(Class clazz, OdataParameters op, OutputStream out) {
+		queryToStream(clazz, op, out, false);
+	}
+	
+	/**
+	 * Create and execute a query using the given parameters, and write the results to the stream
+	 * as JSON or CBOR.  CBOR has the same structure as the JSON, but is smaller and faster to write.
+	 * The properties are chosen by the policy named by $policy, or by the default policy.
+	 * @param clazz the entity class, e.g. Customer
+	 * @param op OdataParameters representing the OData operations on the query
+	 * @param out stream, e.g. the body of the response
+	 * @param cbor true to write CBOR, false to write UTF-8 encoded JSON
+	 */
+	public void queryToStream(Class clazz, OdataParameters op, OutputStream out, boolean cbor) {
+		queryToStream(clazz, op, out, cbor, policyFor(op));
+	}
+	
+	/**
+	 * Create and execute a query using the given parameters, and write the results to the stream
+	 * as JSON or CBOR, with the properties chosen by the policy.
+	 * @param clazz the entity class, e.g. Customer
+	 * @param op OdataParameters representing the OData operations on the query
+	 * @param out stream, e.g. the body of the response
+	 * @param cbor true to write CBOR, false to write UTF-8 encoded JSON
+	 * @param policy policy for this query, or null to write all properties
+	 */
+	public void queryToStream(Class clazz, OdataParameters op, OutputStream out, boolean cbor, SerializationPolicy policy) {
+		log.debugv("queryToStream: class={0}, odataParameters={1}", clazz, op);
+
+		Session session = sessionFactory.openSession();
+		try {
+			session.beginTransaction();
+	    	Criteria crit = session.createCriteria(clazz);
+	    	OdataCriteria.applyParameters(crit, op);
+			log.debugv("queryToStream: criteria={0}", crit);
+
+			Object result = queryResult(crit, op.hasInlineCount(), op.expands());
+			writeResult(clazz, op, result, out, cbor, policy);
+			session.getTransaction().commit();
+		}
+    	catch (RuntimeException e) {
+    		session.getTransaction().rollback();
+    	    throw e;
+    	}
+    	finally {
+    		session.close();
+    	}    	
+	}
+	
+	/**
+	 * Execute the query now, and return output that writes the results as JSON or CBOR when the response is written.
+	 * Errors in the query are thrown from this method, before the response status is sent, so they produce
+	 * an error response.  The output is held back until outputBufferSize bytes have been written, so an error
+	 * while writing a smaller result also produces an error response instead of a truncated body.
+	 * The session stays open, for lazy properties, until the output has been written.
+	 * @param clazz the entity class, e.g. Customer
+	 * @param op OdataParameters representing the OData operations on the query
+	 * @param cbor true to write CBOR, false to write UTF-8 encoded JSON
+	 * @return output for the response entity; it must be written, to close the session
+	 */
+	public StreamingOutput queryToOutput(Class clazz, OdataParameters op, boolean cbor) {
+		return queryToOutput(clazz, op, cbor, policyFor(op));
+	}
+	
+	/**
+	 * Execute the query now, and return output that writes the results with the properties chosen by the policy.
+	 * @see #queryToOutput(Class, OdataParameters, boolean)
+	 * @param policy policy for this query, or null to write all properties
+	 */
+	public StreamingOutput queryToOutput(final Class clazz, final OdataParameters op, final boolean cbor,
+			final SerializationPolicy policy) {
+		log.debugv("queryToOutput: class={0}, odataParameters={1}", clazz, op);
+
+		final Session session = sessionFactory.openSession();
+		final Object result;
+		try {
+			session.beginTransaction();
+	    	Criteria crit = session.createCriteria(clazz);
+	    	OdataCriteria.applyParameters(crit, op);
+			log.debugv("queryToOutput: criteria={0}", crit);
+			result = queryResult(crit, op.hasInlineCount(), op.expands());
+		}
+    	catch (RuntimeException e) {
+    		session.getTransaction().rollback();
+    		session.close();
+    	    throw e;
+    	}
+		return new StreamingOutput() {
+			public void write(OutputStream out) throws IOException {
+				try {
+					BufferedOutputStream buffered = new BufferedOutputStream(out, outputBufferSize);
+					writeResult(clazz, op, result, buffered, cbor, policy);
+					session.getTransaction().commit();
+				}
+		    	catch (RuntimeException e) {
+		    		log.errorv(e, "queryToOutput: exception writing {0}", clazz.getName());
+		    		session.getTransaction().rollback();
+		    	    throw e;
+		    	}
+		    	finally {
+		    		session.close();
+		    	}
+			}
+		};
+	}
+	
+	/**
+	 * Write the result of the query as a table, or as JSON or CBOR objects, and flush the stream.
+	 */
+	private void writeResult(Class clazz, OdataParameters op, Object result, OutputStream out, boolean cbor, SerializationPolicy policy) {
+		if (op.isTableFormat() && op.expand == null) {
+			writeTable(clazz, result, out, cbor, policy);
+		} else if (cbor) {
+			Json.toCbor(result, out, true, op.typeFormat(), policy);
+		} else {
+			Json.toJson(result, out, true, op.typeFormat(), policy);
+		}
+	}
+	
+	/**
+	 * Write the result as a table of columns and rows, which is much smaller than the objects for wide entities.
+	 * @param result List of entities, or QueryResult; the table is written in place of the List
+	 * @param policy excludes columns and puts large byte arrays in its BlobStore, or null
+	 * @see TableWriter
+	 */
+	private void writeTable(Class clazz, Object result, OutputStream out, boolean cbor, SerializationPolicy policy) {
+		TableWriter table = new TableWriter(clazz, sessionFactory.getClassMetadata(clazz), policy);
+		try {
+			if (cbor) {
+				CborJSONWriter writer = new CborJSONWriter(out);
+				writeTable(table, result, writer);
+				writer.flush();
+			} else {
+				Utf8JSONWriter writer = new Utf8JSONWriter(out);
+				writeTable(table, result, writer);
+				writer.flush();
+			}
+		} catch (JSONException e) {
+			throw new RuntimeException("Exception writing " + clazz.getName() + " table", e);
+		}
+	}
+	
+	private void writeTable(TableWriter table, Object result, JSONWriter writer) throws JSONException {
+		if (result instanceof QueryResult) {
+			QueryResult qr = (QueryResult) result;
+			writer.object().key("Results");
+			table.write((List) qr.get("Results"), writer);
+			writer.key("InlineCount").value(qr.get("InlineCount"));
+			writer.endObject();
+		} else {
+			table.write((List) result, writer);
+		}
+	}
+	
+	/**
+	 * Execute the Criteria query, and initialize the expands.
+	 * @return If inlineCount is false, the List of entities; if inlineCount is true, a QueryResult.
+	 */
+	private Object queryResult(Criteria crit, boolean inlineCount, String[] expands) {
 		List result = crit.list();
-		log.debugv("queryToJson: result size={0}", result.size());
+		log.debugv("queryResult: result size={0}", result.size());
 		
 		if (expands != null && expands.length > 0) {
 			HibernateExpander.initializeList(result, expands);
 		}
 		
-		String json;
 		if (inlineCount) {
 
 			OdataCriteria.applyInlineCount(crit);
 			long countResult = (long) crit.uniqueResult();
-			log.debugv("queryToJson: inline count={0}", countResult);
-			
-			QueryResult qr = new QueryResult(result, countResult);
-			json = Json.toJson(qr);
+			log.debugv("queryResult: inline count={0}", countResult);
 			
-		} else {
-			json = Json.toJson(result);
+			return new QueryResult(result, countResult);
 		}
-		
-		log.debugv("queryToJson: result={0}", json);
-		return json;
+		return result;
 	}
 	
 	/**
@@ -5,23 +5,21 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
-import org.hibernate.EntityMode;
 import org.hibernate.LockOptions;
 import org.hibernate.Session;
-import org.hibernate.SessionFactory;
-import org.hibernate.metadata.ClassMetadata;
-import org.hibernate.persister.entity.AbstractEntityPersister;
-import org.hibernate.type.ComponentType;
-import org.hibernate.type.EntityType;
 import org.hibernate.type.ForeignKeyDirection;
-import org.hibernate.type.Type;
 
+import com.breezejs.save.EntityError;
 import com.breezejs.save.EntityInfo;
 import com.breezejs.save.EntityState;
+import com.breezejs.save.TempKeyMap;
 
 
 /**
@@ -35,34 +33,50 @@ import com.breezejs.save.EntityState;
  */
 public class RelationshipFixer {
     private Map<Class, List<EntityInfo>> saveMap;
-    private Map<String, String> fkMap;
+    private Metadata metadata;
     private Session session;
-    private SessionFactory sessionFactory;
-    private List<EntityInfo> saveOrder;
-    private List<EntityInfo> deleteOrder;
-    private Map<EntityInfo, List<EntityInfo>> dependencyGraph;
+    // dependency graph: each entity has an index, and the set of indexes of the entities it depends on
+    private Map<EntityInfo, Integer> nodeIndex;
+    private List<EntityInfo> nodes;
+    private List<Set<Integer>> dependencies;
+    private List<DeferredRelationship> deferredRelationships;
+    private List<EntityError> entityErrors;
+    private Map<Class, Map<String, EntityInfo>> saveMapIndex;
+    private TempKeyMap tempKeyMap;
     private boolean removeMode;
     
     /**
-     * Create new instance with the given saveMap and fkMap.  Since the saveMap is unique per save, 
+     * Create new instance with the given saveMap and metadata.  Since the saveMap is unique per save, 
      * this instance will be useful for processing one entire save bundle only.
      * @param saveMap Map of entity types -> entity instances to save.  This is provided by Breeze in the SaveChanges call.
-     * @param fkMap Map of relationship name -> foreign key name.  This is built in the MetadataBuilder class.
+     * @param metadata Metadata containing the SaveDescriptors.  This is built in the MetadataBuilder class.
      * @param session Hibernate session that will save the entities
      */
-	public RelationshipFixer(Map<Class, List<EntityInfo>> saveMap, Map<String, String> fkMap, Session session) {
+	public RelationshipFixer(Map<Class, List<EntityInfo>> saveMap, Metadata metadata, Session session) {
 		super();
 		this.saveMap = saveMap;
-		this.fkMap = fkMap;
+		this.metadata = metadata;
 		this.session = session;
-		this.sessionFactory = session.getSessionFactory();
-        this.dependencyGraph = new HashMap<EntityInfo, List<EntityInfo>>();
+        this.nodeIndex = new IdentityHashMap<EntityInfo, Integer>();
+        this.nodes = new ArrayList<EntityInfo>();
+        this.dependencies = new ArrayList<Set<Integer>>();
+        this.deferredRelationships = new ArrayList<DeferredRelationship>();
+        this.saveMapIndex = new HashMap<Class, Map<String, EntityInfo>>();
 	}
 
+	/**
+	 * Set the map of temporary keys that were assigned real keys in an earlier part of the save.
+	 * Foreign keys that refer to those temporary keys are resolved to the real keys.
+	 * @param tempKeyMap
+	 */
+	public void setTempKeyMap(TempKeyMap tempKeyMap) {
+		this.tempKeyMap = tempKeyMap;
+	}
 	
 	/**
 	 * Connect the related entities in the saveMap to other entities.  If the related entities
 	 * are not in the saveMap, they are loaded from the session.
+	 * If the entities have cyclic dependencies that cannot be broken, getEntityErrors() will return the errors.
 	 * @return The list of entities in the order they should be save, according to their relationships.
 	 */
     public List<EntityInfo> fixupRelationships()
@@ -83,66 +97,302 @@ public class RelationshipFixer {
     }
     
     /**
-     * Add the relationship to the dependencyGraph
+     * Set the relationships that were removed to break dependency cycles.  This must be called after the
+     * entities have been saved, so Hibernate will update the foreign keys when the session is flushed.
+     */
+    public void restoreDeferredRelationships()
+    {
+        for (DeferredRelationship dr : deferredRelationships)
+        {
+            dr.meta.setNavigationValue(dr.entityInfo.entity, dr.nav, dr.relatedEntity);
+        }
+    }
+    
+    /**
+     * @return true if relationships were removed to break dependency cycles, and must be restored after the save
+     */
+    public boolean hasDeferredRelationships()
+    {
+        return !deferredRelationships.isEmpty();
+    }
+    
+    /**
+     * @return errors for entities whose dependencies could not be sorted, or null if there were none
+     */
+    public List<EntityError> getEntityErrors()
+    {
+        return entityErrors;
+    }
+    
+    /**
+     * Get the index of the entity in the dependency graph, adding it if it is not there
+     * @param entityInfo
+     * @return
+     */
+    private int getNode(EntityInfo entityInfo)
+    {
+        Integer index = nodeIndex.get(entityInfo);
+        if (index == null) {
+            index = nodes.size();
+            nodeIndex.put(entityInfo, index);
+            nodes.add(entityInfo);
+            dependencies.add(new LinkedHashSet<Integer>(4));
+        }
+        return index;
+    }
+    
+    /**
+     * Add the relationship to the dependency graph
      * @param child Entity that depends on parent (e.g. has a many-to-one relationship to parent)
      * @param parent Entity that child depends on (e.g. one parent has one-to-many children)
      * @param removeReverse True to find and remove the reverse relationship.  Used for handling one-to-ones.
      */
     private void addToGraph(EntityInfo child, EntityInfo parent, boolean removeReverse)
     {
-        List<EntityInfo> list = dependencyGraph.get(child);
-        if (list == null) {
-            list = new ArrayList<EntityInfo>(5);
-            dependencyGraph.put(child, list);
-        }
-        if (parent != null) list.add(parent);
+        int c = getNode(child);
+        if (parent == null) return;
+        int p = getNode(parent);
+        if (p != c) dependencies.get(c).add(p);
 
         if (removeReverse) {
-            List<EntityInfo> parentList = dependencyGraph.get(parent);
-            if (parentList != null) {
-                parentList.remove(child);
-            }
+            dependencies.get(p).remove(c);
         }
     }
 
     /**
-     * Sort the entries in the dependency graph according to their dependencies.
+     * Sort the entities in the dependency graph according to their dependencies, so that each entity
+     * is saved after the entities it depends on, and deleted before them.  Deletes come after all the saves.
+     * If there is a cycle, it is broken by removing a nullable relationship of an added entity, which is
+     * restored after the save.  Only relationships within a strongly connected component of the unsorted
+     * entities are removed; the components are found once, when the sort first stops, so the sort stays linear.
+     * If no relationship can be removed, the entities in the cycles are reported in the entityErrors.
      * @return the sorted list
      */
     private List<EntityInfo> sortDependencies()
     {
-        saveOrder = new ArrayList<EntityInfo>();
-        deleteOrder = new ArrayList<EntityInfo>();
-        for (EntityInfo entityInfo : dependencyGraph.keySet()) {
-            addToSaveOrder(entityInfo, 0);
+        int n = nodes.size();
+        List<EntityInfo> saveOrder = new ArrayList<EntityInfo>(n);
+        List<EntityInfo> deleteOrder = new ArrayList<EntityInfo>();
+
+        // pending[i] is the number of dependencies of entity i that are not yet in the order.
+        // dependents[start[i]..start[i+1]] are the entities that depend on entity i.
+        int[] pending = new int[n];
+        int[] start = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            pending[i] = dependencies.get(i).size();
+            for (int p : dependencies.get(i)) start[p + 1]++;
+        }
+        for (int i = 0; i < n; i++) start[i + 1] += start[i];
+        int[] dependents = new int[start[n]];
+        int[] fill = Arrays.copyOf(start, n);
+        for (int i = 0; i < n; i++) {
+            for (int p : dependencies.get(i)) dependents[fill[p]++] = i;
+        }
+
+        int[] queue = new int[n];
+        boolean[] queued = new boolean[n];
+        int head = 0, tail = 0;
+        // strongly connected component of each unsorted entity, and the next dependency to try to break
+        int[] component = null;
+        int[] cursor = new int[2];
+        for (int i = 0; i < n; i++) {
+            if (pending[i] == 0) {
+                queue[tail++] = i;
+                queued[i] = true;
+            }
+        }
+
+        while (true) {
+            while (head < tail) {
+                int i = queue[head++];
+                EntityInfo entityInfo = nodes.get(i);
+                if (entityInfo.entityState == EntityState.Deleted)
+                    deleteOrder.add(entityInfo);
+                else
+                    saveOrder.add(entityInfo);
+                for (int k = start[i]; k < start[i + 1]; k++) {
+                    int d = dependents[k];
+                    if (d >= 0 && --pending[d] == 0) {
+                        queue[tail++] = d;
+                        queued[d] = true;
+                    }
+                }
+            }
+            if (tail == n) break;
+
+            // the remaining entities are in, or depend on, a cycle
+            if (component == null) component = findComponents(queued, start, dependents);
+            int c = breakCycle(queued, start, dependents, component, cursor);
+            if (c < 0) {
+                // find the components again, without the relationships that were broken
+                reportCycle(findComponents(queued, start, dependents));
+                break;
+            }
+            if (--pending[c] == 0) {
+                queue[tail++] = c;
+                queued[c] = true;
+            }
         }
+
         Collections.reverse(deleteOrder);
         saveOrder.addAll(deleteOrder);
         return saveOrder;
     }
 
     /**
-     * Recursively add entities to the saveOrder or deleteOrder according to their dependencies
-     * @param entityInfo Entity to be added.  Its dependencies will be added depth-first.
-     * @param depth prevents infinite recursion in case of cyclic dependencies
+     * Find the strongly connected components of the unsorted entities, using Tarjan's algorithm without recursion.
+     * Each dependency is followed from the parent to the child, which gives the same components.
+     * @param queued which entities have already been sorted
+     * @param start start of the dependents of each entity
+     * @param dependents the entities that depend on each entity, or -1 for a broken dependency
+     * @return the component of each unsorted entity, numbered from 0, or -1 for a sorted entity
+     */
+    private int[] findComponents(boolean[] queued, int[] start, int[] dependents)
+    {
+        int n = queued.length;
+        int[] component = new int[n];
+        Arrays.fill(component, -1);
+        // order in which each entity was visited, from 1, and the lowest order reachable from it
+        int[] order = new int[n];
+        int[] low = new int[n];
+        // next dependent of each entity to visit
+        int[] next = new int[n];
+        int[] path = new int[n];
+        int[] stack = new int[n];
+        boolean[] onStack = new boolean[n];
+        int visited = 0, components = 0, sp = 0;
+        for (int root = 0; root < n; root++) {
+            if (queued[root] || order[root] != 0) continue;
+            int depth = 0;
+            path[depth++] = root;
+            order[root] = low[root] = ++visited;
+            next[root] = start[root];
+            stack[sp++] = root;
+            onStack[root] = true;
+            while (depth > 0) {
+                int v = path[depth - 1];
+                if (next[v] < start[v + 1]) {
+                    int w = dependents[next[v]++];
+                    if (w < 0 || queued[w]) continue;
+                    if (order[w] == 0) {
+                        order[w] = low[w] = ++visited;
+                        next[w] = start[w];
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        path[depth++] = w;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], order[w]);
+                    }
+                } else {
+                    depth--;
+                    if (depth > 0) {
+                        int u = path[depth - 1];
+                        low[u] = Math.min(low[u], low[v]);
+                    }
+                    if (low[v] == order[v]) {
+                        int w;
+                        do {
+                            w = stack[--sp];
+                            onStack[w] = false;
+                            component[w] = components;
+                        } while (w != v);
+                        components++;
+                    }
+                }
+            }
+        }
+        return component;
+    }
+
+    /**
+     * Find a dependency between two unsorted entities in the same component that can be broken, and break it.
+     * The child must be an added entity, and all its navigation properties to the parent must be nullable.
+     * The navigation properties are set to null, and restored by restoreDeferredRelationships after the
+     * entities are saved.  Each dependency is tried at most once, starting from the cursor.
+     * @param queued which entities have already been sorted
+     * @param start start of the dependents of each entity
+     * @param dependents the entities that depend on each entity.  The broken dependency is set to -1.
+     * @param component component of each unsorted entity, from findComponents
+     * @param cursor the parent and the position in dependents of the next dependency to try; updated
+     * @return the index of the child entity, or -1 if no dependency can be broken
      */
-    private void addToSaveOrder(EntityInfo entityInfo, int depth)
+    private int breakCycle(boolean[] queued, int[] start, int[] dependents, int[] component, int[] cursor)
     {
-        if (saveOrder.contains(entityInfo)) return;
-        if (deleteOrder.contains(entityInfo)) return;
-        if (depth > 10) return;
+        int p = cursor[0];
+        for (int k = cursor[1]; k < dependents.length; k++) {
+            while (k >= start[p + 1]) p++;
+            int c = dependents[k];
+            if (c < 0 || queued[c] || queued[p] || component[c] != component[p]) continue;
+            EntityInfo child = nodes.get(c);
+            if (child.entityState != EntityState.Added) continue;
+            SaveDescriptor meta = metadata.getSaveDescriptor(child.entity.getClass());
+            Object parentEntity = nodes.get(p).entity;
+            List<NavigationDescriptor> navs = new ArrayList<NavigationDescriptor>(1);
+            boolean breakable = true;
+            for (NavigationDescriptor nav : meta.navigations) {
+                if (meta.getNavigationValue(child.entity, nav) == parentEntity) {
+                    navs.add(nav);
+                    breakable &= nav.nullable;
+                }
+            }
+            if (!breakable || navs.isEmpty()) continue;
 
-        List<EntityInfo> dependencies = dependencyGraph.get(entityInfo);
-        for (EntityInfo dep : dependencies) {
-            addToSaveOrder(dep, depth + 1);
+            for (NavigationDescriptor nav : navs) {
+                deferredRelationships.add(new DeferredRelationship(child, meta, nav, parentEntity));
+                meta.setNavigationValue(child.entity, nav, null);
+            }
+            dependents[k] = -1;
+            cursor[0] = p;
+            cursor[1] = k + 1;
+            return c;
         }
+        cursor[0] = p;
+        cursor[1] = dependents.length;
+        return -1;
+    }
 
-        if (entityInfo.entityState == EntityState.Deleted)
-            deleteOrder.add(entityInfo);
-        else
-            saveOrder.add(entityInfo);
+    /**
+     * Add an EntityError for each entity in a cycle of dependencies that could not be broken.
+     * Entities that only depend on a cycle are not sorted either, but are not reported.
+     * @param component component of each unsorted entity, from findComponents
+     */
+    private void reportCycle(int[] component)
+    {
+        int[] size = new int[component.length];
+        for (int i = 0; i < component.length; i++) {
+            if (component[i] >= 0) size[component[i]]++;
+        }
+        entityErrors = new ArrayList<EntityError>();
+        for (int i = 0; i < component.length; i++) {
+            // an entity does not depend on itself, so a component of one entity is not a cycle
+            if (component[i] < 0 || size[component[i]] < 2) continue;
+            EntityInfo entityInfo = nodes.get(i);
+            SaveDescriptor meta = metadata.getSaveDescriptor(entityInfo.entity.getClass());
+            Object id = meta.getIdentifier(entityInfo.entity);
+            Object[] keyValues = (id != null && id.getClass().isArray()) ? (Object[]) id : new Object[] { id };
+            entityErrors.add(new EntityError("CyclicDependency", meta.entityName, keyValues, null,
+                    "Entity is part of a cycle of relationships that cannot be broken by a nullable foreign key"));
+        }
     }
     
+    /**
+     * A relationship that was removed to break a cycle, and must be restored after the save.
+     */
+    private static class DeferredRelationship
+    {
+        EntityInfo entityInfo;
+        SaveDescriptor meta;
+        NavigationDescriptor nav;
+        Object relatedEntity;
+        
+        DeferredRelationship(EntityInfo entityInfo, SaveDescriptor meta, NavigationDescriptor nav, Object relatedEntity)
+        {
+            this.entityInfo = entityInfo;
+            this.meta = meta;
+            this.nav = nav;
+            this.relatedEntity = relatedEntity;
+        }
+    }
     
     /**
      * Add or remove the entity relationships according to the current removeMode.
@@ -152,12 +402,12 @@ public class RelationshipFixer {
     	for (Entry<Class, List<EntityInfo>> entry : saveMap.entrySet()) {
     		
             Class entityType = entry.getKey();
-            ClassMetadata classMeta = sessionFactory.getClassMetadata(entityType);
+            SaveDescriptor sd = metadata.getSaveDescriptor(entityType);
 
             for (EntityInfo entityInfo : entry.getValue())
             {
                 addToGraph(entityInfo, null, false); // make sure every entity is in the graph
-                fixupRelationships(entityInfo, classMeta);
+                fixupRelationships(entityInfo, sd);
             }
         }    	
     }
@@ -168,111 +418,38 @@ public class RelationshipFixer {
      * @param entityInfo Entity that will be saved
      * @param meta Metadata about the entity type
      */
-    private void fixupRelationships(EntityInfo entityInfo, ClassMetadata meta)
-    {
-        String[] propNames = meta.getPropertyNames();
-        Type[] propTypes = meta.getPropertyTypes();
-        
-        Type propType = meta.getIdentifierType();
-        if (propType != null)
-        {
-            if (propType.isAssociationType() && propType.isEntityType())
-            {
-                fixupRelationship(meta.getIdentifierPropertyName(), (EntityType)propType, entityInfo, meta);
-            }
-            else if (propType.isComponentType())
-            {
-                fixupComponentRelationships(meta.getIdentifierPropertyName(), (ComponentType)propType, entityInfo, meta);
-            }
-        }
-
-        for (int i = 0; i < propNames.length; i++)
-        {
-            propType = propTypes[i];
-            if (propType.isAssociationType() && propType.isEntityType())
-            {
-                fixupRelationship(propNames[i], (EntityType)propTypes[i], entityInfo, meta);
-            }
-            else if (propType.isComponentType())
-            {
-                fixupComponentRelationships(propNames[i], (ComponentType)propType, entityInfo, meta);
-            }
-        }
-    }
-    
-    /**
-     * Connect the related entities based on the foreign key values found in a component type.
-     * This updates the values of the component's properties.
-     * @param propName Name of the (component) property of the entity.  May be null if the property is the entity's identifier.
-     * @param compType Type of the component
-     * @param entityInfo Breeze EntityInfo
-     * @param meta Metadata for the entity class
-     */
-    private void fixupComponentRelationships(String propName, ComponentType compType, EntityInfo entityInfo, ClassMetadata meta)
+    private void fixupRelationships(EntityInfo entityInfo, SaveDescriptor meta)
     {
-        String[] compPropNames = compType.getPropertyNames();
-        Type[] compPropTypes = compType.getSubtypes();
-        Object component = null;
-        Object[] compValues = null;
-        boolean isChanged = false;
-        for (int j = 0; j < compPropNames.length; j++)
-        {
-            Type compPropType = compPropTypes[j];
-            if (compPropType.isAssociationType() && compPropType.isEntityType())
-            {
-                if (compValues == null)
-                {
-                    // get the value of the component's subproperties
-                    component = getPropertyValue(meta, entityInfo.entity, propName);
-                    compValues = compType.getPropertyValues(component, EntityMode.POJO);
-                }
-                if (compValues[j] == null)
-                {
-                    // the related entity is null
-                    Object relatedEntity = getRelatedEntity(compPropNames[j], (EntityType)compPropType, entityInfo, meta);
-                    if (relatedEntity != null)
-                    {
-                        compValues[j] = relatedEntity;
-                        isChanged = true;
-                    }
-                }
-                else if (removeMode)
-                {
-                    // remove the relationship
-                    compValues[j] = null;
-                    isChanged = true;
-                }
-            }
-        }
-        if (isChanged)
+        NavigationDescriptor[] navigations = meta.navigations;
+        for (int i = 0; i < navigations.length; i++)
         {
-            compType.setPropertyValues(component, compValues, EntityMode.POJO);
+            fixupRelationship(navigations[i], entityInfo, meta);
         }
-
     }
     
     /**
-     * Set an association value based on the value of the foreign key.  This updates the property of the entity.
-     * @param propName Name of the navigation/association property of the entity, e.g. "Customer".  May be null if the property is the entity's identifier.
-     * @param propType Type of the property
+     * Set an association value based on the value of the foreign key.  This updates the property of the entity,
+     * or of the component containing the association.
+     * @param nav Navigation/association property of the entity, e.g. "Customer"
      * @param entityInfo Breeze EntityInfo
      * @param meta Metadata for the entity class
      */
-    private void fixupRelationship(String propName, EntityType propType, EntityInfo entityInfo, ClassMetadata meta)
+    private void fixupRelationship(NavigationDescriptor nav, EntityInfo entityInfo, SaveDescriptor meta)
     {
         Object entity = entityInfo.entity;
+        Object relatedEntity = meta.getNavigationValue(entity, nav);
         if (removeMode)
         {
-            meta.setPropertyValue(entity, propName, null);
+            if (relatedEntity != null || nav.componentType == null)
+                meta.setNavigationValue(entity, nav, null);
             return;
         }
-        Object relatedEntity = getPropertyValue(meta, entity, propName);
         if (relatedEntity != null) return;    // entities are already connected
 
-        relatedEntity = getRelatedEntity(propName, propType, entityInfo, meta);
+        relatedEntity = getRelatedEntity(nav, entityInfo, meta);
 
         if (relatedEntity != null)
-            meta.setPropertyValue(entity, propName, relatedEntity);
+            meta.setNavigationValue(entity, nav, relatedEntity);
     }
     
     /**
@@ -280,32 +457,34 @@ public class RelationshipFixer {
      * saveMap; if its not found there, it is loaded via the Session (which should create a proxy, not actually load
      * the entity from the database).
      * Related entities are Promoted in the saveOrder according to their state.
-     * @param propName Name of the navigation/association property of the entity, e.g. "Customer".  May be null if the property is the entity's identifier.
-     * @param propType Type of the property
+     * @param nav Navigation/association property of the entity, e.g. "Customer"
      * @param entityInfo Breeze EntityInfo
      * @param meta Metadata for the entity class
      * @return
      */
-    private Object getRelatedEntity(String propName, EntityType propType, EntityInfo entityInfo, ClassMetadata meta)
+    private Object getRelatedEntity(NavigationDescriptor nav, EntityInfo entityInfo, SaveDescriptor meta)
     {
     	Object relatedEntity = null;
-    	String foreignKeyName = findForeignKey(propName, meta);
-        Object id = getForeignKeyValue(entityInfo, meta, foreignKeyName);
+    	SaveDescriptor.ForeignKey foreignKey = meta.getForeignKey(nav);
+        Object id = getForeignKeyValue(entityInfo, meta, foreignKey);
 
         if (id != null)
         {
-            EntityInfo relatedEntityInfo = findInSaveMap(propType.getReturnedClass(), id);
+            EntityInfo relatedEntityInfo = findInSaveMap(nav.targetClass, id);
 
             if (relatedEntityInfo == null) {
             	EntityState state = entityInfo.entityState;
 //            	if (state == EntityState.Added || state == EntityState.Modified || (state == EntityState.Deleted 
 //            			&& propType.getForeignKeyDirection() != ForeignKeyDirection.FOREIGN_KEY_TO_PARENT)) {
-            	if (state != EntityState.Deleted || propType.getForeignKeyDirection() != ForeignKeyDirection.FOREIGN_KEY_TO_PARENT) {
-                	String relatedEntityName = propType.getName();
-                    relatedEntity = session.load(relatedEntityName, (Serializable) id, LockOptions.NONE);
+            	if (state != EntityState.Deleted || !nav.foreignKeyToParent) {
+                	if (tempKeyMap != null) {
+                		Object realId = tempKeyMap.getRealValue(nav.targetRootEntityName, id);
+                		if (realId != null) id = realId;
+                	}
+                    relatedEntity = session.load(nav.type.getAssociatedEntityName(), (Serializable) id, LockOptions.NONE);
             	}
             } else {
-            	boolean removeReverseRelationship = propType.useLHSPrimaryKey();
+            	boolean removeReverseRelationship = nav.type.useLHSPrimaryKey();
                 addToGraph(entityInfo, relatedEntityInfo, removeReverseRelationship);
                 relatedEntity = relatedEntityInfo.entity;
             }
@@ -313,108 +492,51 @@ public class RelationshipFixer {
         return relatedEntity;
     }
     
-    /**
-     * Find a foreign key matching the given property, by looking in the fkMap.
-     * The property may be defined on the class or a superclass, so this function calls itself recursively.
-     * @param propName Name of the property e.g. "Product"
-     * @param meta Class metadata, for traversing the class hierarchy
-     * @return The name of the foreign key, e.g. "ProductID"
-     */
-    private String findForeignKey(String propName, ClassMetadata meta)
-    {
-        String relKey = meta.getEntityName() + '.' + propName;
-        if (fkMap.containsKey(relKey))
-        {
-            return fkMap.get(relKey);
-        }
-        else if (meta.isInherited() && meta instanceof AbstractEntityPersister)
-        {
-            String superEntityName = ((AbstractEntityPersister)meta).getMappedSuperclass();
-            ClassMetadata superMeta = sessionFactory.getClassMetadata(superEntityName);
-            return findForeignKey(propName, superMeta);
-        }
-        else
-        {
-            throw new IllegalArgumentException("Foreign Key '" + relKey + "' could not be found.");
-        }
-    }
-    
     /**
      * Get the value of the foreign key property.  This comes from the entity, but if that value is
      * null, and the entity is deleted, we try to get it from the originalValuesMap.
      * @param entityInfo Breeze EntityInfo
      * @param meta Metadata for the entity class
-     * @param foreignKeyName Name of the foreign key property of the entity, e.g. "CustomerID"
+     * @param foreignKey Foreign key property of the entity, e.g. "CustomerID"
      * @return
      */
-    private Object getForeignKeyValue(EntityInfo entityInfo, ClassMetadata meta, String foreignKeyName)
+    private Object getForeignKeyValue(EntityInfo entityInfo, SaveDescriptor meta, SaveDescriptor.ForeignKey foreignKey)
     {
-        Object entity = entityInfo.entity;
-        Object id = null;
-        if (foreignKeyName == meta.getIdentifierPropertyName())
-            id = meta.getIdentifier(entity, null);
-        else if (Arrays.asList(meta.getPropertyNames()).contains(foreignKeyName))
-            id = meta.getPropertyValue(entity, foreignKeyName);
-        else if (meta.getIdentifierType().isComponentType())
-        {
-            // compound key
-        	ComponentType compType = (ComponentType) meta.getIdentifierType();
-        	int index = Arrays.asList(compType.getPropertyNames()).indexOf(foreignKeyName);
-            if (index >= 0)
-            {
-                Object idComp = meta.getIdentifier(entity, null);
-                id = compType.getPropertyValue(idComp, index, EntityMode.POJO);
-            }
-        }
+        Object id = meta.getForeignKeyValue(entityInfo.entity, foreignKey);
 
-        if (id == null && entityInfo.entityState == EntityState.Deleted)
+        if (id == null && entityInfo.entityState == EntityState.Deleted && entityInfo.originalValuesMap != null)
         {
-            id = entityInfo.originalValuesMap.get(foreignKeyName);
+            id = entityInfo.originalValuesMap.get(foreignKey.name);
         }
         return id;
     }
     
-    /**
-     * Return the property value for the given entity.
-     * @param meta
-     * @param entity
-     * @param propName If null, the identifier property will be returned.
-     * @return
-     */
-    private Object getPropertyValue(ClassMetadata meta, Object entity, String propName)
-    {
-        if (propName == null || propName == meta.getIdentifierPropertyName())
-            return meta.getIdentifier(entity, null);
-        else
-            return meta.getPropertyValue(entity, propName);
-    }
-    
     /**
      * Find the matching entity in the saveMap.  This is for relationship fixup.
+     * The entities of each related type are indexed by key the first time they are needed.
      * @param entityType Type of entity, e.g. Order
      * @param entityId Key value of the entity
      * @return The entity, or null if not found
      */
     private EntityInfo findInSaveMap(Class entityType, Object entityId)
     {
-        String entityIdString = entityId.toString();
-        ArrayList<EntityInfo> entityInfoList = new ArrayList<EntityInfo>();
-        for (Class c : saveMap.keySet()) {
-        	if (entityType.isAssignableFrom(c)) {
-        		entityInfoList.addAll(saveMap.get(c));
-        	}
-        }
-        if (entityInfoList != null && entityInfoList.size() != 0)
+        Map<String, EntityInfo> index = saveMapIndex.get(entityType);
+        if (index == null)
         {
-            ClassMetadata meta = sessionFactory.getClassMetadata(entityType);
-            for (EntityInfo entityInfo : entityInfoList)
-            {
-                Object entity = entityInfo.entity;
-                Object id = meta.getIdentifier(entity, null);
-                if (id != null && entityIdString.equals(id.toString())) return entityInfo;
+            index = new HashMap<String, EntityInfo>();
+            SaveDescriptor meta = metadata.getSaveDescriptor(entityType);
+            for (Entry<Class, List<EntityInfo>> entry : saveMap.entrySet()) {
+            	if (entityType.isAssignableFrom(entry.getKey())) {
+                    for (EntityInfo entityInfo : entry.getValue())
+                    {
+                        Object id = meta.classMeta.getIdentifier(entityInfo.entity, null);
+                        if (id != null && !index.containsKey(id.toString())) index.put(id.toString(), entityInfo);
+                    }
+            	}
             }
+            saveMapIndex.put(entityType, index);
         }
-        return null;
+        return index.get(entityId.toString());
     }
     
-}
+}
\ No newline at end of file
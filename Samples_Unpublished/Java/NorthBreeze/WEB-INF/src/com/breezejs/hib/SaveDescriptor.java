@@ -0,0 +1,341 @@
+package com.breezejs.hib;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.EntityMode;
+import org.hibernate.SessionFactory;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.ComponentType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+/**
+ * Information about an entity class that is needed when saving it, computed once from the Hibernate
+ * metadata so that the save pipeline does not look it up again for every entity.
+ * Built by MetadataBuilder and held in the Metadata.
+ * @author Steve
+ */
+public class SaveDescriptor {
+
+	/** Property index used when a foreign key is the identifier, or part of a composite identifier */
+	public static final int IDENTIFIER_INDEX = -1;
+
+	public final Class entityClass;
+	public final String entityName;
+	/** Name of the root of the entity's class hierarchy */
+	public final String rootEntityName;
+	public final ClassMetadata classMeta;
+	public final AbstractEntityPersister persister;
+	/** "Identity", "KeyGenerator", "None", or null if there is no identifier generator */
+	public final String autoGeneratedKeyType;
+	/** Index of the version property, or -1 if the entity is not versioned */
+	public final int versionIndex;
+	public final String versionName;
+	public final Class versionType;
+	public final String identifierName;
+	public final Type identifierType;
+	public final String[] propertyNames;
+	public final Type[] propertyTypes;
+	/** Whether each property is written by an update, i.e. is not mapped with update="false" */
+	public final boolean[] propertyUpdateability;
+	/** The many-to-one and one-to-one navigation properties, including those in components */
+	public final NavigationDescriptor[] navigations;
+
+	private ComponentType compositeIdType;
+	private int[] naturalIdProperties;
+	private Map<String, Integer> propertyIndexes;
+
+	/**
+	 * A foreign key property, and where to find its value on the entity.
+	 */
+	public static class ForeignKey {
+		/** Name of the foreign key property, e.g. "customerID" */
+		public final String name;
+		/** Index of the property in the ClassMetadata, or IDENTIFIER_INDEX */
+		public final int propertyIndex;
+		/** Index in the composite identifier, or -1 if the foreign key is not part of a composite identifier */
+		public final int idComponentIndex;
+
+		ForeignKey(String name, int propertyIndex, int idComponentIndex) {
+			this.name = name;
+			this.propertyIndex = propertyIndex;
+			this.idComponentIndex = idComponentIndex;
+		}
+	}
+
+	/**
+	 * @param meta Hibernate metadata for the class
+	 * @param fkMap Map of relationship name -> foreign key name, built by MetadataBuilder
+	 * @param sessionFactory used to find the foreign keys of superclasses
+	 */
+	SaveDescriptor(ClassMetadata meta, Map<String, String> fkMap, SessionFactory sessionFactory) {
+		this.classMeta = meta;
+		this.persister = (AbstractEntityPersister) meta;
+		this.entityClass = meta.getMappedClass();
+		this.entityName = meta.getEntityName();
+		this.rootEntityName = persister.getRootEntityName();
+		this.autoGeneratedKeyType = MetadataBuilder.getAutoGeneratedKeyType(persister.getIdentifierGenerator());
+		this.propertyNames = meta.getPropertyNames();
+		this.propertyTypes = meta.getPropertyTypes();
+		this.propertyUpdateability = persister.getPropertyUpdateability();
+		this.identifierName = meta.getIdentifierPropertyName();
+		this.identifierType = meta.getIdentifierType();
+
+		if (meta.isVersioned()) {
+			versionIndex = meta.getVersionProperty();
+			versionName = propertyNames[versionIndex];
+			versionType = propertyTypes[versionIndex].getReturnedClass();
+		} else {
+			versionIndex = -1;
+			versionName = null;
+			versionType = null;
+		}
+
+		propertyIndexes = new HashMap<String, Integer>();
+		for (int i = 0; i < propertyNames.length; i++) {
+			propertyIndexes.put(propertyNames[i], i);
+		}
+		if (identifierType != null && identifierType.isComponentType()) {
+			compositeIdType = (ComponentType) identifierType;
+		} else if (identifierType == null && meta.hasNaturalIdentifier()) {
+			naturalIdProperties = meta.getNaturalIdentifierProperties();
+		}
+
+		// Resolve the entity's associations and their foreign keys, including those in components
+		List<NavigationDescriptor> navList = new ArrayList<NavigationDescriptor>();
+		if (identifierType != null) {
+			addNavigations(navList, identifierName, IDENTIFIER_INDEX, identifierType, fkMap, sessionFactory);
+		}
+		for (int i = 0; i < propertyNames.length; i++) {
+			addNavigations(navList, propertyNames[i], i, propertyTypes[i], fkMap, sessionFactory);
+		}
+		navigations = navList.toArray(new NavigationDescriptor[navList.size()]);
+	}
+
+	private void addNavigations(List<NavigationDescriptor> navList, String propName, int propertyIndex, Type propType,
+			Map<String, String> fkMap, SessionFactory sessionFactory) {
+		if (propType.isAssociationType() && propType.isEntityType()) {
+			EntityType entityType = (EntityType) propType;
+			boolean nullable = propertyIndex != IDENTIFIER_INDEX && persister.getPropertyNullability()[propertyIndex];
+			navList.add(new NavigationDescriptor(propName, propertyIndex, -1, null, entityType,
+					getRootEntityName(entityType, sessionFactory), nullable, makeForeignKey(propName, fkMap, sessionFactory)));
+		} else if (propType.isComponentType()) {
+			ComponentType compType = (ComponentType) propType;
+			Type[] compPropTypes = compType.getSubtypes();
+			String[] compPropNames = compType.getPropertyNames();
+			for (int j = 0; j < compPropNames.length; j++) {
+				if (compPropTypes[j].isAssociationType() && compPropTypes[j].isEntityType()) {
+					EntityType entityType = (EntityType) compPropTypes[j];
+					navList.add(new NavigationDescriptor(compPropNames[j], propertyIndex, j, compType, entityType,
+							getRootEntityName(entityType, sessionFactory), false, makeForeignKey(compPropNames[j], fkMap, sessionFactory)));
+				}
+			}
+		}
+	}
+
+	private static String getRootEntityName(EntityType entityType, SessionFactory sessionFactory) {
+		ClassMetadata meta = sessionFactory.getClassMetadata(entityType.getAssociatedEntityName());
+		return meta instanceof AbstractEntityPersister ? ((AbstractEntityPersister) meta).getRootEntityName() : entityType.getAssociatedEntityName();
+	}
+
+	/**
+	 * @return the ForeignKey for the navigation property, or null if it is not in the fkMap
+	 */
+	private ForeignKey makeForeignKey(String propName, Map<String, String> fkMap, SessionFactory sessionFactory) {
+		String fkName = findForeignKey(propName, classMeta, fkMap, sessionFactory);
+		if (fkName == null) return null;
+
+		int propertyIndex;
+		int idComponentIndex = -1;
+		Integer index = propertyIndexes.get(fkName);
+		if (fkName.equals(identifierName)) {
+			propertyIndex = IDENTIFIER_INDEX;
+		} else if (index != null) {
+			propertyIndex = index;
+		} else if (compositeIdType != null) {
+			propertyIndex = IDENTIFIER_INDEX;
+			String[] compNames = compositeIdType.getPropertyNames();
+			for (int i = 0; i < compNames.length; i++) {
+				if (compNames[i].equals(fkName)) idComponentIndex = i;
+			}
+			if (idComponentIndex < 0) return null;
+		} else {
+			return null;
+		}
+		return new ForeignKey(fkName, propertyIndex, idComponentIndex);
+	}
+
+	/**
+	 * Find a foreign key matching the given property, by looking in the fkMap.
+	 * The property may be defined on the class or a superclass, so this function calls itself recursively.
+	 * @return the name of the foreign key, or null if not found
+	 */
+	private static String findForeignKey(String propName, ClassMetadata meta, Map<String, String> fkMap, SessionFactory sessionFactory) {
+		String fkName = fkMap.get(meta.getEntityName() + '.' + propName);
+		if (fkName != null) {
+			return fkName;
+		} else if (meta.isInherited() && meta instanceof AbstractEntityPersister) {
+			String superEntityName = ((AbstractEntityPersister) meta).getMappedSuperclass();
+			ClassMetadata superMeta = sessionFactory.getClassMetadata(superEntityName);
+			return findForeignKey(propName, superMeta, fkMap, sessionFactory);
+		}
+		return null;
+	}
+
+	/**
+	 * @param nav navigation property of this entity
+	 * @return the foreign key for the navigation property
+	 * @throws IllegalArgumentException if there is no foreign key for the property
+	 */
+	public ForeignKey getForeignKey(NavigationDescriptor nav) {
+		if (nav.foreignKey == null) {
+			throw new IllegalArgumentException("Foreign Key '" + entityName + '.' + nav.name + "' could not be found.");
+		}
+		return nav.foreignKey;
+	}
+
+	/**
+	 * @param navPropName Name of the navigation property, e.g. "customer"
+	 * @return the navigation property, or null if there is none with that name
+	 */
+	public NavigationDescriptor getNavigation(String navPropName) {
+		for (NavigationDescriptor nav : navigations) {
+			if (nav.name.equals(navPropName)) return nav;
+		}
+		return null;
+	}
+
+	/**
+	 * @param fkName Name of a foreign key property, e.g. "customerID"
+	 * @return the navigation property that uses the foreign key, or null if there is none
+	 */
+	public NavigationDescriptor getNavigationForForeignKey(String fkName) {
+		for (NavigationDescriptor nav : navigations) {
+			if (nav.foreignKey != null && nav.foreignKey.name.equals(fkName)) return nav;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the value of a navigation property, i.e. the related entity.
+	 * @param entity
+	 * @param nav navigation property of this entity
+	 * @return
+	 */
+	public Object getNavigationValue(Object entity, NavigationDescriptor nav) {
+		Object value = getPropertyValue(entity, nav.propertyIndex);
+		if (nav.componentType == null || value == null) {
+			return value;
+		}
+		return nav.componentType.getPropertyValue(value, nav.componentIndex, EntityMode.POJO);
+	}
+
+	/**
+	 * Set the value of a navigation property.  If the property is in a component, the component
+	 * must not be null.
+	 * @param entity
+	 * @param nav navigation property of this entity
+	 * @param value related entity, or null to remove the relationship
+	 */
+	public void setNavigationValue(Object entity, NavigationDescriptor nav, Object value) {
+		if (nav.componentType == null) {
+			if (nav.propertyIndex == IDENTIFIER_INDEX) {
+				classMeta.setPropertyValue(entity, nav.name, value);
+			} else {
+				persister.setPropertyValue(entity, nav.propertyIndex, value);
+			}
+		} else {
+			Object component = getPropertyValue(entity, nav.propertyIndex);
+			Object[] compValues = nav.componentType.getPropertyValues(component, EntityMode.POJO);
+			compValues[nav.componentIndex] = value;
+			nav.componentType.setPropertyValues(component, compValues, EntityMode.POJO);
+		}
+	}
+
+	private Object getPropertyValue(Object entity, int propertyIndex) {
+		if (propertyIndex == IDENTIFIER_INDEX) {
+			return classMeta.getIdentifier(entity, null);
+		}
+		return persister.getPropertyValue(entity, propertyIndex);
+	}
+
+	/**
+	 * Get the value of the foreign key property from the entity.
+	 * @param entity
+	 * @param fk foreign key from getForeignKey
+	 * @return
+	 */
+	public Object getForeignKeyValue(Object entity, ForeignKey fk) {
+		if (fk.propertyIndex != IDENTIFIER_INDEX) {
+			return persister.getPropertyValue(entity, fk.propertyIndex);
+		}
+		Serializable id = classMeta.getIdentifier(entity, null);
+		if (fk.idComponentIndex < 0 || id == null) {
+			return id;
+		}
+		return compositeIdType.getPropertyValue(id, fk.idComponentIndex, EntityMode.POJO);
+	}
+
+	/**
+	 * @param propertyName
+	 * @return the index of the property in the ClassMetadata, or -1 if it is not a property of the class
+	 */
+	public int getPropertyIndex(String propertyName) {
+		Integer index = propertyIndexes.get(propertyName);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Return the property value for the given entity.
+	 * @param entity
+	 * @param propName If null, the identifier property will be returned.
+	 * @return
+	 */
+	public Object getPropertyValue(Object entity, String propName) {
+		if (propName == null || propName.equals(identifierName)) {
+			return classMeta.getIdentifier(entity, null);
+		}
+		return persister.getPropertyValue(entity, propertyIndexes.get(propName));
+	}
+
+	/**
+	 * Get the identifier value for the entity.  If the entity does not have an
+	 * identifier property, or natural identifiers defined, then the entity itself is returned.
+	 * A composite identifier is returned as an Object[].
+	 * @param entity
+	 * @return
+	 */
+	public Object getIdentifier(Object entity) {
+		if (identifierType != null) {
+			Serializable id = classMeta.getIdentifier(entity, null);
+			if (compositeIdType != null) {
+				return compositeIdType.getPropertyValues(id, EntityMode.POJO);
+			} else {
+				return id;
+			}
+		} else if (naturalIdProperties != null) {
+			Object[] values = classMeta.getPropertyValues(entity);
+			Object[] idvalues = new Object[naturalIdProperties.length];
+			for (int i = 0; i < naturalIdProperties.length; i++) {
+				idvalues[i] = values[naturalIdProperties[i]];
+			}
+			return idvalues;
+		}
+		return entity;
+	}
+
+	/**
+	 * Set the value of the version property on the entity.
+	 * @param entity
+	 * @param version
+	 */
+	public void setVersion(Object entity, Object version) {
+		persister.setPropertyValue(entity, versionIndex, version);
+	}
+
+}
@@ -1,14 +1,36 @@
 package com.breezejs.hib;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import javax.ws.rs.core.Response;
 
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.jboss.logging.Logger;
+import org.json.CborPullParser;
 
 import com.breezejs.save.ContextProvider;
+import com.breezejs.save.SaveOutbox;
+import com.breezejs.save.SaveBundleReader;
+import com.breezejs.save.SaveReplayCache;
 import com.breezejs.save.SaveResult;
 import com.breezejs.util.Json;
+import com.sun.json.BlobStore;
 
 /**
  * Class to receive JSON save bundles and save them to Hibernate
@@ -18,14 +40,76 @@ import com.breezejs.util.Json;
 public class SaveService {
 
 	public static final Logger log = Logger.getLogger(SaveService.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Locks shared by all saves, to serialize saves of the same entities */
+	private static final EntityLockManager lockManager = new EntityLockManager(1024, 10000);
+	/** Chunked save sessions that have not been committed or aborted, by id */
+	private static final Map<String, ChunkedSaveSession> saveSessions = new ConcurrentHashMap<String, ChunkedSaveSession>();
+	/** Idle time after which an uncommitted save session is rolled back */
+	public static long saveSessionTimeoutMillis = 10 * 60 * 1000;
+	/** Maximum number of save sessions open at once; each holds a database connection */
+	public static int maxSaveSessions = 20;
+	/** Rolls back idle save sessions even when no other session requests arrive */
+	private static ScheduledExecutorService sessionReaper;
 	private SessionFactory sessionFactory;
 	private Metadata metadata;
+	private ExecutorService validationExecutor;
+	private SaveOutbox outbox;
+	private SaveReplayCache replayCache;
+	private boolean changedPropertyUpdates;
+	private BlobStore blobStore;
 	
 	public SaveService(SessionFactory sessionFactory, Metadata metadata) {
 		this.sessionFactory = sessionFactory;
 		this.metadata = metadata;
 	}
 	
+	/**
+	 * Set an executor to run beforeSaveEntity in parallel for the entities in each save.
+	 * @see ContextProvider#setValidationExecutor(ExecutorService)
+	 * @param validationExecutor
+	 */
+	public void setValidationExecutor(ExecutorService validationExecutor) {
+		this.validationExecutor = validationExecutor;
+	}
+	
+	/**
+	 * Set an outbox to receive a SaveEvent after each committed save.
+	 * @see ContextProvider#setOutbox(SaveOutbox)
+	 * @param outbox
+	 */
+	public void setOutbox(SaveOutbox outbox) {
+		this.outbox = outbox;
+	}
+	
+	/**
+	 * Set a cache of recent save results, so that a save submitted again returns the earlier result.
+	 * @see ContextProvider#setReplayCache(SaveReplayCache)
+	 * @param replayCache
+	 */
+	public void setReplayCache(SaveReplayCache replayCache) {
+		this.replayCache = replayCache;
+	}
+	
+	/**
+	 * Set whether modified entities are updated by writing only the properties the client changed.
+	 * @see HibernateContext#setChangedPropertyUpdates(boolean)
+	 * @param changedPropertyUpdates
+	 */
+	public void setChangedPropertyUpdates(boolean changedPropertyUpdates) {
+		this.changedPropertyUpdates = changedPropertyUpdates;
+	}
+	
+	/**
+	 * Set the store whose references are sent to clients in place of large binary properties,
+	 * so they are read back as the original bytes.
+	 * @see SaveBundleReader#setBlobStore(BlobStore)
+	 * @param blobStore
+	 */
+	public void setBlobStore(BlobStore blobStore) {
+		this.blobStore = blobStore;
+	}
+	
 	/**
 	 * Save the changes and return a response indicated the updated entities
 	 * or errors
@@ -34,24 +118,101 @@ public class SaveService {
 	 */
 	public Response saveChanges(String source) {
 		log.debugv("saveChanges", "source={0}", source);
+		return saveChanges(new StringReader(source), null);
+	}
+	
+	/**
+	 * Save the changes and return a response indicated the updated entities
+	 * or errors.  The entities are read directly from the stream.
+	 * @param source UTF-8 encoded save bundle, e.g. the body of the SaveChanges request
+	 * @return
+	 */
+	public Response saveChanges(InputStream source) {
+		return saveChanges(new InputStreamReader(source, UTF8), null);
+	}
+
+	/**
+	 * Save the changes and return a response indicated the updated entities
+	 * or errors.  If the replayCache has a result for the saveKey, it is returned without saving again.
+	 * @param source UTF-8 encoded save bundle
+	 * @param saveKey idempotency key, e.g. from a request header, or null to save without the replayCache
+	 * @return
+	 */
+	public Response saveChanges(InputStream source, String saveKey) {
+		return saveChanges(source, saveKey, null);
+	}
+
+	/**
+	 * Save the changes and return a response indicated the updated entities
+	 * or errors.  The saveKey is scoped to the user, so clients that send the same key
+	 * do not get each other's results from the replayCache.
+	 * @param source UTF-8 encoded save bundle
+	 * @param saveKey idempotency key, e.g. from a request header, or null to save without the replayCache
+	 * @param user the authenticated user, or null
+	 * @return
+	 */
+	public Response saveChanges(InputStream source, String saveKey, Principal user) {
+		return saveChanges(new InputStreamReader(source, UTF8), replayKey(saveKey, user));
+	}
+
+	/**
+	 * Save the changes from a CBOR save bundle, and return a response encoded as CBOR.
+	 * The bundle has the same structure as the JSON one.
+	 * @param source CBOR save bundle
+	 * @param saveKey idempotency key, or null to save without the replayCache
+	 * @param user the authenticated user, or null
+	 * @return response with an application/cbor entity
+	 */
+	public Response saveChangesCbor(InputStream source, String saveKey, Principal user) {
+		return saveChanges(new SaveBundleReader(new CborPullParser(source)), replayKey(saveKey, user), true);
+	}
+
+	/**
+	 * @return the saveKey prefixed with the user's name, or null if there is no saveKey
+	 */
+	private static String replayKey(String saveKey, Principal user) {
+		if (saveKey == null || user == null) return saveKey;
+		// a header value cannot contain a newline, so the name and key cannot run together
+		return user.getName() + '\n' + saveKey;
+	}
+
+	private Response saveChanges(Reader source, String saveKey) {
+		return saveChanges(new SaveBundleReader(source), saveKey, false);
+	}
+
+	private Response saveChanges(SaveBundleReader source, String saveKey, boolean cbor) {
+		source.setBlobStore(blobStore);
 		Response response;
 		Session session = sessionFactory.openSession();
 		try {
-			ContextProvider context = new HibernateContext(session, metadata);
+			HibernateContext context = new HibernateContext(session, metadata);
+			context.setLockManager(lockManager);
+			context.setValidationExecutor(validationExecutor);
+			context.setOutbox(outbox);
+			context.setReplayCache(replayCache);
+			context.setSaveKey(saveKey);
+			context.setChangedPropertyUpdates(changedPropertyUpdates);
 			SaveResult sr = context.saveChanges(source);
 			
-			String json = Json.toJson(sr);
-			log.debugv("saveChanges: SaveResult={0}", json);
+			Object entity = toEntity(sr, cbor);
+			log.debugv("saveChanges: SaveResult={0}", entity);
 			if (sr.hasErrors()) {
-				response = Response.status(Response.Status.FORBIDDEN).entity(json).build(); 
+				response = Response.status(Response.Status.FORBIDDEN).entity(entity).build(); 
 			} else {
-				response = Response.ok(json).build();
+				response = Response.ok(entity).build();
 			}
 		}
+		catch (SaveReplayCache.SaveInProgressException e) {
+			log.errorv("saveChanges: {0}", e.getMessage());
+			response = Response.status(Response.Status.CONFLICT).entity(toEntity(e, cbor)).build();
+		}
+		catch (SaveBundleReader.InvalidBundleException e) {
+			log.errorv("saveChanges: {0}", e.getMessage());
+			response = Response.status(Response.Status.BAD_REQUEST).entity(toEntity(e, cbor)).build();
+		}
     	catch (Exception e) {
-    		log.errorv(e, "saveChanges: source={0}", source);
-    		String json = Json.toJson(e);
-			response = Response.serverError().entity(json).build(); 
+    		log.errorv(e, "saveChanges: exception {0}", e.getMessage());
+			response = Response.serverError().entity(toEntity(e, cbor)).build(); 
     	}
     	finally {
     		session.close();
@@ -59,6 +220,181 @@ public class SaveService {
 		return response;
 	}
 	
+	/**
+	 * @return the object as a JSON string, or as CBOR bytes if cbor is true
+	 */
+	private static Object toEntity(Object obj, boolean cbor) {
+		if (!cbor) {
+			return Json.toJson(obj);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Json.toCbor(obj, out, true, true);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Begin a save that will be sent in chunks.  Returns the id of the save session,
+	 * which must be given with each chunk and with the final commit.
+	 * @return response containing {"SessionId": id}, or 503 if maxSaveSessions are already open
+	 */
+	public Response openSaveSession() {
+		expireSaveSessions();
+		startSessionReaper();
+		ChunkedSaveSession css;
+		synchronized (saveSessions) {
+			if (saveSessions.size() >= maxSaveSessions) {
+				log.errorv("openSaveSession: {0} save sessions are already open", saveSessions.size());
+				return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+			}
+			css = new ChunkedSaveSession(sessionFactory, metadata);
+			saveSessions.put(css.getId(), css);
+		}
+		css.setValidationExecutor(validationExecutor);
+		css.setOutbox(outbox);
+		css.setChangedPropertyUpdates(changedPropertyUpdates);
+		log.debugv("openSaveSession: id={0}", css.getId());
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("SessionId", css.getId());
+		return Response.ok(Json.toJson(map)).build();
+	}
+	
+	/**
+	 * Save one chunk of a chunked save.  The entities are flushed to the database, but not committed
+	 * until commitSaveSession is called.  If the chunk has errors, the response is 403; if the
+	 * errors came from the database, the save session is rolled back and cannot be used again.
+	 * @param sessionId id returned by openSaveSession
+	 * @param chunkIndex index of this chunk, starting at 0
+	 * @param source UTF-8 encoded save bundle containing the entities in this chunk
+	 * @return response with the SaveResult for the chunk, 404 if there is no such session,
+	 * or 409 if the chunk is out of sequence
+	 */
+	public Response saveChunk(String sessionId, int chunkIndex, InputStream source) {
+		expireSaveSessions();
+		ChunkedSaveSession css = saveSessions.get(sessionId);
+		if (css == null) {
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+		Response response;
+		try {
+			if (chunkIndex > css.getNextChunkIndex()) {
+				return Response.status(Response.Status.CONFLICT).build();
+			}
+			ChunkedSaveSession.ChunkResult result = css.saveChunk(chunkIndex, new InputStreamReader(source, UTF8));
+			if (result.aborted) {
+				saveSessions.remove(sessionId);
+			}
+			SaveResult sr = result.saveResult;
+			String json = Json.toJson(sr);
+			log.debugv("saveChunk: chunk={0} SaveResult={1}", chunkIndex, json);
+			if (sr.hasErrors()) {
+				response = Response.status(Response.Status.FORBIDDEN).entity(json).build(); 
+			} else {
+				response = Response.ok(json).build();
+			}
+		}
+		catch (IllegalStateException e) {
+			// closed, or another request got in ahead of this one
+			response = Response.status(css.isClosed() ? Response.Status.NOT_FOUND : Response.Status.CONFLICT).build();
+		}
+		catch (SaveBundleReader.InvalidBundleException e) {
+			// the save session was rolled back
+			saveSessions.remove(sessionId);
+			log.errorv("saveChunk: {0}", e.getMessage());
+			response = Response.status(Response.Status.BAD_REQUEST).entity(Json.toJson(e)).build();
+		}
+		catch (Exception e) {
+			saveSessions.remove(sessionId);
+			log.errorv(e, "saveChunk: exception {0}", e.getMessage());
+			String json = Json.toJson(e);
+			response = Response.serverError().entity(json).build(); 
+		}
+		return response;
+	}
+	
+	/**
+	 * Commit all the chunks of a chunked save.
+	 * @param sessionId id returned by openSaveSession
+	 * @return response with a SaveResult containing the KeyMappings of all the chunks,
+	 * or 404 if there is no such session
+	 */
+	public Response commitSaveSession(String sessionId) {
+		expireSaveSessions();
+		ChunkedSaveSession css = saveSessions.remove(sessionId);
+		if (css == null) {
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+		Response response;
+		try {
+			SaveResult sr = css.commit();
+			response = Response.ok(Json.toJson(sr)).build();
+		}
+		catch (IllegalStateException e) {
+			response = Response.status(Response.Status.NOT_FOUND).build();
+		}
+		catch (Exception e) {
+			log.errorv(e, "commitSaveSession: exception {0}", e.getMessage());
+			String json = Json.toJson(e);
+			response = Response.serverError().entity(json).build(); 
+		}
+		return response;
+	}
+	
+	/**
+	 * Roll back all the chunks of a chunked save.
+	 * @param sessionId id returned by openSaveSession
+	 * @return response 200, or 404 if there is no such session
+	 */
+	public Response abortSaveSession(String sessionId) {
+		expireSaveSessions();
+		ChunkedSaveSession css = saveSessions.remove(sessionId);
+		if (css == null) {
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+		css.abort();
+		return Response.ok().build();
+	}
+	
+	/**
+	 * Start the thread that calls expireSaveSessions, if it is not running.  It checks four times
+	 * per saveSessionTimeoutMillis, so a session is rolled back at most a quarter of the timeout late.
+	 */
+	private static synchronized void startSessionReaper() {
+		if (sessionReaper != null) return;
+		sessionReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "breeze-save-session-reaper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1000, saveSessionTimeoutMillis / 4);
+		sessionReaper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				expireSaveSessions();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Roll back the save sessions that have been idle for longer than saveSessionTimeoutMillis.
+	 * Called by each save session request, and periodically by the sessionReaper.
+	 */
+	private static void expireSaveSessions() {
+		long cutoff = System.currentTimeMillis() - saveSessionTimeoutMillis;
+		for (Iterator<ChunkedSaveSession> it = saveSessions.values().iterator(); it.hasNext(); ) {
+			ChunkedSaveSession css = it.next();
+			if (css.getLastAccessTime() < cutoff) {
+				it.remove();
+				log.debugv("expireSaveSessions: id={0}", css.getId());
+				try {
+					css.abort();
+				} catch (Exception e) {
+					log.errorv(e, "expireSaveSessions: exception {0}", e.getMessage());
+				}
+			}
+		}
+	}
+	
 	/**
 	 * For debugging
 	 */
@@ -2,6 +2,9 @@ package com.breezejs.hib;
 
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.metadata.ClassMetadata;
+
+import com.breezejs.util.Reflect;
 
 public class StaticConfigurator {
 
@@ -16,6 +19,12 @@ public class StaticConfigurator {
 		sessionFactory = configuration.configure().buildSessionFactory();
 		MetadataBuilder metaGen = new MetadataBuilder(sessionFactory, configuration);
 		metadata = metaGen.buildMetadata();
+		
+		// only the mapped entity types may be sent in a save bundle
+		for (ClassMetadata meta : sessionFactory.getAllClassMetadata().values()) {
+			Reflect.registerEntityType(meta.getMappedClass());
+		}
+		Reflect.closeEntityTypes();
 	}
 	
     public static SessionFactory getSessionFactory()
@@ -0,0 +1,156 @@
+package com.breezejs.hib;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.Type;
+import org.json.JSONException;
+import org.json.JSONWriter;
+
+import com.sun.json.BlobStore;
+import com.sun.json.JSONConstants;
+import com.sun.json.SerializationPolicy;
+
+/**
+ * Writes a list of entities of one type as a table: the column names and data types once,
+ * then one array of values per entity, instead of repeating the property names, $id and $type
+ * in every object.  Only the identifier and the simple properties are written, so it is for
+ * flat queries without $expand.  For example:
+ * <pre>
+ * {"$type":"northwind.model.Customer",
+ *  "Columns":["customerID","companyName",...],
+ *  "DataTypes":["Guid","String",...],
+ *  "Rows":[["785efa04-...","Alfreds Futterkiste",...],...]}
+ * </pre>
+ * Values are written as JSONSerializer writes them.  The client rebuilds an object from each row
+ * (see App/tableresults.js).  A SerializationPolicy, if given, applies as it does to the objects:
+ * excluded properties have no column, and large byte arrays are written as references to its BlobStore.
+ * @author Steve
+ */
+public class TableWriter {
+
+	private final String typeName;
+	private final String[] columns;
+	private final String[] dataTypes;
+	/** index of each column in the ClassMetadata property values, or -1 for the identifier */
+	private final int[] propertyIndexes;
+	private final ClassMetadata classMeta;
+	private final SimpleDateFormat dateFormat;
+	private final BlobStore blobStore;
+	private final int blobThreshold;
+
+	/**
+	 * @param entityClass class of the entities that will be written
+	 * @param classMeta Hibernate metadata for the class
+	 */
+	public TableWriter(Class entityClass, ClassMetadata classMeta) {
+		this(entityClass, classMeta, null);
+	}
+
+	/**
+	 * @param entityClass class of the entities that will be written
+	 * @param classMeta Hibernate metadata for the class
+	 * @param policy chooses the columns and how byte arrays are written, or null to write them all inline
+	 */
+	public TableWriter(Class entityClass, ClassMetadata classMeta, SerializationPolicy policy) {
+		this.classMeta = classMeta;
+		this.blobStore = policy == null ? null : policy.getBlobStore();
+		this.blobThreshold = policy == null ? 0 : policy.getBlobThreshold();
+		this.typeName = entityClass.getName();
+		// same format as JSONSerializer
+		this.dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+
+		List<String> names = new ArrayList<String>();
+		List<String> types = new ArrayList<String>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		String idName = classMeta.getIdentifierPropertyName();
+		Type idType = classMeta.getIdentifierType();
+		if (idName != null && !idType.isComponentType()
+				&& (policy == null || !policy.isExcluded(entityClass, idName))) {
+			names.add(idName);
+			types.add(dataType(idType));
+			indexes.add(-1);
+		}
+		String[] propNames = classMeta.getPropertyNames();
+		Type[] propTypes = classMeta.getPropertyTypes();
+		for (int i = 0; i < propNames.length; i++) {
+			Type type = propTypes[i];
+			if (type.isAssociationType() || type.isCollectionType() || type.isComponentType()) continue;
+			if (policy != null && policy.isExcluded(entityClass, propNames[i])) continue;
+			names.add(propNames[i]);
+			types.add(dataType(type));
+			indexes.add(i);
+		}
+		this.columns = names.toArray(new String[names.size()]);
+		this.dataTypes = types.toArray(new String[types.size()]);
+		this.propertyIndexes = new int[indexes.size()];
+		for (int i = 0; i < propertyIndexes.length; i++) {
+			propertyIndexes[i] = indexes.get(i);
+		}
+	}
+
+	/**
+	 * @return the Breeze data type name, as in the metadata
+	 */
+	private static String dataType(Type type) {
+		String newType = MetadataBuilder.BreezeTypeMap.get(type.getName().toLowerCase());
+		return newType != null ? newType : type.getName();
+	}
+
+	/**
+	 * Write the table for the entities.
+	 * @param entities entities of the class given to the constructor
+	 * @param writer e.g. a Utf8JSONWriter or CborJSONWriter, positioned where a value can be written
+	 * @throws JSONException
+	 */
+	public void write(List entities, JSONWriter writer) throws JSONException {
+		writer.object();
+		writer.key(JSONConstants.CLASS).value(typeName);
+		writer.key("Columns").array();
+		for (String c : columns) {
+			writer.value(c);
+		}
+		writer.endArray();
+		writer.key("DataTypes").array();
+		for (String t : dataTypes) {
+			writer.value(t);
+		}
+		writer.endArray();
+		writer.key("Rows").array();
+		for (Object entity : entities) {
+			Object[] values = classMeta.getPropertyValues(entity);
+			writer.array();
+			for (int index : propertyIndexes) {
+				writeValue(index < 0 ? classMeta.getIdentifier(entity, null) : values[index], writer);
+			}
+			writer.endArray();
+		}
+		writer.endArray();
+		writer.endObject();
+	}
+
+	private void writeValue(Object value, JSONWriter writer) throws JSONException {
+		if (value instanceof Number) {
+			writer.value((Number) value);
+		} else if (value instanceof Boolean) {
+			writer.value(((Boolean) value).booleanValue());
+		} else if (value instanceof Date) {
+			writer.value(dateFormat.format(value));
+		} else if (value instanceof UUID || value instanceof Character || value instanceof String) {
+			writer.value(value.toString());
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			if (blobStore != null && bytes.length >= blobThreshold) {
+				writer.value(blobStore.reference(bytes));
+			} else {
+				writer.binaryValue(bytes);
+			}
+		} else {
+			writer.value(null);
+		}
+	}
+}
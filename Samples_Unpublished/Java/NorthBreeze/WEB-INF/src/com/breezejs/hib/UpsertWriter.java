@@ -0,0 +1,331 @@
+package com.breezejs.hib;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.LockOptions;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.dialect.SQLServer2008Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.hibernate.type.Type;
+import org.hibernate.type.VersionType;
+import org.jboss.logging.Logger;
+
+import com.breezejs.save.EntityInfo;
+
+/**
+ * Writes entities in the Upsert state: each is inserted if its key is not in the database, and updated otherwise.
+ * Where the dialect has a native form (MERGE on SQL Server 2008+, INSERT ... ON CONFLICT on PostgreSQL 9.5+,
+ * INSERT ... ON DUPLICATE KEY UPDATE on MySQL), all the entities of a type are written by one batched statement.
+ * Otherwise, the existing keys are found by one query per batch, and the entities are saved or updated through the session.
+ * <p>
+ * Upserts are last-write-wins: the version of an existing row is incremented, but not checked.
+ * The keys must be assigned by the client, so an entity with a generated key, e.g. an identity column,
+ * cannot be upserted; see checkUpsert.
+ * @author Steve
+ */
+public class UpsertWriter {
+
+	public static final Logger log = Logger.getLogger(UpsertWriter.class);
+	/** Number of keys in each existence query of the fallback */
+	public static int batchSize = 500;
+
+	private static final int NONE = 0, MERGE = 1, ON_CONFLICT = 2, ON_DUPLICATE_KEY = 3;
+
+	private Session session;
+	private int style = -1;
+	// statements by entity name, or null if the entity cannot be written natively
+	private Map<String, String> statements = new HashMap<String, String>();
+
+	public UpsertWriter(Session session) {
+		this.session = session;
+	}
+
+	/**
+	 * Check whether the entity can be upserted: its key must be assigned by the client ("None" generator)
+	 * and not null.  A generated key would be replaced by a new one when the entity is inserted, so the client
+	 * could not match the result, and a native statement could not write it, e.g. into an IDENTITY column.
+	 * @param sd
+	 * @param entity
+	 * @return the reason the entity cannot be upserted, or null if it can
+	 */
+	public static String checkUpsert(SaveDescriptor sd, Object entity) {
+		if (!"None".equals(sd.autoGeneratedKeyType)) {
+			return "Upsert of " + sd.entityName + " requires a key assigned by the client, but its key is generated";
+		}
+		if (sd.getIdentifier(entity) == null) {
+			return "Upsert of " + sd.entityName + " requires an assigned key";
+		}
+		return null;
+	}
+
+	/**
+	 * Insert or update the entities, which all have the class of the SaveDescriptor.  Entities written by a native
+	 * statement are then associated with the session without being written again.
+	 * The keys of the entities must be assigned by the client, and not generated; callers should reject
+	 * other entities with an EntityError, using checkUpsert, before anything is saved.
+	 * @param sd
+	 * @param entityInfos
+	 * @return true if the entities were written natively, false if they were given to the session
+	 * and will be written by the next flush
+	 * @throws IllegalArgumentException if an entity fails checkUpsert
+	 */
+	public boolean upsert(SaveDescriptor sd, List<EntityInfo> entityInfos) {
+		for (EntityInfo entityInfo : entityInfos) {
+			String error = checkUpsert(sd, entityInfo.entity);
+			if (error != null)
+				throw new IllegalArgumentException(error);
+		}
+		String sql = getStatement(sd);
+		if (sql == null) {
+			upsertBySession(sd, entityInfos);
+			return false;
+		}
+		upsertNative(sd, entityInfos, sql);
+		for (EntityInfo entityInfo : entityInfos) {
+			// attach it unchanged, so it is not written again; refreshFromSession reads the new version
+			session.buildLockRequest(LockOptions.NONE).lock(entityInfo.entity);
+		}
+		return true;
+	}
+
+	private void upsertNative(final SaveDescriptor sd, final List<EntityInfo> entityInfos, final String sql) {
+		log.debugv("upsertNative: count={0} sql={1}", entityInfos.size(), sql);
+		final SessionImplementor si = (SessionImplementor) session;
+		session.doWork(new Work() {
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement ps = connection.prepareStatement(sql);
+				try {
+					for (EntityInfo entityInfo : entityInfos) {
+						Object entity = entityInfo.entity;
+						int index = 1;
+						sd.identifierType.nullSafeSet(ps, sd.classMeta.getIdentifier(entity, si), index, si);
+						index += sd.identifierType.getColumnSpan(si.getFactory());
+						for (int i = 0; i < sd.propertyNames.length; i++) {
+							if (!isWritten(sd, i)) continue;
+							Object value = sd.persister.getPropertyValue(entity, i);
+							if (i == sd.versionIndex && value == null) {
+								value = ((VersionType) sd.propertyTypes[i]).seed(si);
+								sd.setVersion(entity, value);
+							}
+							sd.propertyTypes[i].nullSafeSet(ps, value, index, si);
+							index += sd.propertyTypes[i].getColumnSpan(si.getFactory());
+						}
+						ps.addBatch();
+					}
+					ps.executeBatch();
+				} finally {
+					ps.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Find which of the entities exist with one query per batch, then save the new ones and update the others.
+	 * The version of an existing entity is set from the database, so that the update does not fail the version check.
+	 */
+	private void upsertBySession(SaveDescriptor sd, List<EntityInfo> entityInfos) {
+		boolean composite = sd.identifierName == null || sd.identifierType.isComponentType();
+		String select = "select e." + (composite ? "id" : sd.identifierName)
+				+ (sd.versionIndex >= 0 ? ", e." + sd.versionName : "") + " from " + sd.entityName + " e where e.";
+		for (int start = 0; start < entityInfos.size(); start += batchSize) {
+			List<EntityInfo> batch = entityInfos.subList(start, Math.min(entityInfos.size(), start + batchSize));
+			Map<Object, Object> existing = new HashMap<Object, Object>();
+			if (composite) {
+				// HQL cannot compare a composite key with a list, so these are checked one at a time
+				for (EntityInfo entityInfo : batch) {
+					Serializable id = sd.classMeta.getIdentifier(entityInfo.entity, null);
+					Query query = session.createQuery(select + "id = :id").setParameter("id", id);
+					addExisting(existing, query.list(), sd);
+				}
+			} else {
+				List<Object> ids = new ArrayList<Object>(batch.size());
+				for (EntityInfo entityInfo : batch) {
+					ids.add(sd.getIdentifier(entityInfo.entity));
+				}
+				Query query = session.createQuery(select + sd.identifierName + " in (:ids)").setParameterList("ids", ids);
+				addExisting(existing, query.list(), sd);
+			}
+			log.debugv("upsertBySession: {0} of {1} {2} exist", existing.size(), batch.size(), sd.entityName);
+
+			for (EntityInfo entityInfo : batch) {
+				Object entity = entityInfo.entity;
+				Serializable id = sd.classMeta.getIdentifier(entity, null);
+				if (existing.containsKey(id)) {
+					if (sd.versionIndex >= 0) sd.setVersion(entity, existing.get(id));
+					session.update(entity);
+				} else {
+					session.save(entity);
+				}
+			}
+		}
+	}
+
+	private void addExisting(Map<Object, Object> existing, List rows, SaveDescriptor sd) {
+		for (Object row : rows) {
+			if (sd.versionIndex >= 0) {
+				Object[] values = (Object[]) row;
+				existing.put(values[0], values[1]);
+			} else {
+				existing.put(row, null);
+			}
+		}
+	}
+
+	/**
+	 * @return the native upsert statement for the entity, or null if it must be written through the session
+	 */
+	private String getStatement(SaveDescriptor sd) {
+		if (statements.containsKey(sd.entityName)) {
+			return statements.get(sd.entityName);
+		}
+		String sql = buildStatement(sd);
+		statements.put(sd.entityName, sql);
+		return sql;
+	}
+
+	private String buildStatement(SaveDescriptor sd) {
+		int style = getStyle();
+		if (style == NONE || !(sd.persister instanceof SingleTableEntityPersister)
+				|| sd.persister.isInherited() || sd.persister.hasSubclasses() || sd.identifierType == null) {
+			return null;
+		}
+		if (sd.versionIndex >= 0) {
+			Class vtype = sd.versionType;
+			if (vtype != Integer.class && vtype != Long.class && vtype != Short.class) return null;
+		}
+
+		SessionFactoryImplementor factory = sd.persister.getFactory();
+		String table = ((SingleTableEntityPersister) sd.persister).getTableName();
+		String[] idColumns = sd.persister.getIdentifierColumnNames();
+		List<String> columns = new ArrayList<String>();
+		List<String> updates = new ArrayList<String>();
+		for (String column : idColumns) {
+			columns.add(column);
+		}
+		for (int i = 0; i < sd.propertyNames.length; i++) {
+			if (!isWritten(sd, i)) continue;
+			String[] propColumns = sd.persister.getPropertyColumnNames(i);
+			if (propColumns.length != sd.propertyTypes[i].getColumnSpan(factory)) return null;
+			for (String column : propColumns) {
+				if (column == null) return null;
+				columns.add(column);
+				if (i == sd.versionIndex) {
+					updates.add(column + " = " + table + "." + column + " + 1");
+				} else if (sd.propertyUpdateability[i]) {
+					updates.add(column + " = " + excluded(style, column));
+				}
+			}
+		}
+		if (updates.isEmpty()) {
+			// nothing to update; make the update a no-op so the statement is still an upsert
+			updates.add(idColumns[0] + " = " + table + "." + idColumns[0]);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		if (style == MERGE) {
+			sb.append("merge into ").append(table).append(" with (holdlock) using (values (");
+			appendParameters(sb, columns.size());
+			sb.append(")) as excluded (").append(join(columns)).append(") on ");
+			for (int i = 0; i < idColumns.length; i++) {
+				if (i > 0) sb.append(" and ");
+				sb.append(table).append('.').append(idColumns[i]).append(" = excluded.").append(idColumns[i]);
+			}
+			sb.append(" when matched then update set ").append(join(updates));
+			sb.append(" when not matched then insert (").append(join(columns)).append(") values (");
+			for (int i = 0; i < columns.size(); i++) {
+				if (i > 0) sb.append(", ");
+				sb.append("excluded.").append(columns.get(i));
+			}
+			sb.append(");");
+		} else {
+			sb.append("insert into ").append(table).append(" (").append(join(columns)).append(") values (");
+			appendParameters(sb, columns.size());
+			sb.append(')');
+			if (style == ON_CONFLICT) {
+				sb.append(" on conflict (").append(join(idColumns)).append(") do update set ");
+			} else {
+				sb.append(" on duplicate key update ");
+			}
+			sb.append(join(updates));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return true if the property is written by the upsert, i.e. it has insertable columns
+	 */
+	private boolean isWritten(SaveDescriptor sd, int i) {
+		Type type = sd.propertyTypes[i];
+		return sd.persister.getPropertyInsertability()[i] && !type.isCollectionType();
+	}
+
+	/**
+	 * @return expression for the new value of the column in the update part of the statement
+	 */
+	private static String excluded(int style, String column) {
+		if (style == ON_DUPLICATE_KEY) return "values(" + column + ")";
+		return "excluded." + column;
+	}
+
+	/**
+	 * Determine the native upsert form from the dialect, and for PostgreSQL, from the server version.
+	 */
+	private int getStyle() {
+		if (style >= 0) return style;
+		Dialect dialect = ((SessionImplementor) session).getFactory().getDialect();
+		if (dialect instanceof SQLServer2008Dialect) {
+			style = MERGE;
+		} else if (dialect instanceof MySQLDialect) {
+			style = ON_DUPLICATE_KEY;
+		} else if (dialect instanceof PostgreSQL81Dialect) {
+			final int[] version = new int[2];
+			session.doWork(new Work() {
+				public void execute(Connection connection) throws SQLException {
+					DatabaseMetaData dmd = connection.getMetaData();
+					version[0] = dmd.getDatabaseMajorVersion();
+					version[1] = dmd.getDatabaseMinorVersion();
+				}
+			});
+			style = (version[0] > 9 || (version[0] == 9 && version[1] >= 5)) ? ON_CONFLICT : NONE;
+		} else {
+			style = NONE;
+		}
+		return style;
+	}
+
+	private static void appendParameters(StringBuilder sb, int count) {
+		for (int i = 0; i < count; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append('?');
+		}
+	}
+
+	private static String join(List<String> list) {
+		return join(list.toArray(new String[list.size()]));
+	}
+
+	private static String join(String[] array) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < array.length; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append(array[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -1,27 +1,174 @@
 package com.breezejs.save;
 
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.breezejs.util.Json;
+import org.jboss.logging.Logger;
 
 public class ContextProvider {
 
+	public static final Logger log = Logger.getLogger(ContextProvider.class);
+
+	private ExecutorService validationExecutor;
+	private SaveOutbox outbox;
+	private SaveEvent saveEvent;
+	private SaveReplayCache replayCache;
+	private String saveKey;
+
+	/**
+	 * Set an executor to call beforeSaveEntity for the entities in parallel.  
+	 * When this is set, beforeSaveEntity must be thread-safe.  The entities are still added to the
+	 * saveMap in the order they appear in the save bundle, and the EntityErrors from all the entities
+	 * are collected into one EntityErrorsException.
+	 * @param validationExecutor executor, e.g. from newValidationExecutor, or null to call beforeSaveEntity
+	 * on the request thread (the default)
+	 */
+	public void setValidationExecutor(ExecutorService validationExecutor) {
+		this.validationExecutor = validationExecutor;
+	}
+
+	public ExecutorService getValidationExecutor() {
+		return validationExecutor;
+	}
+
+	/**
+	 * Set an outbox to receive a SaveEvent after each successful save, and for the committed partitions
+	 * of a partitioned save that failed part way.  The outbox delivers the events
+	 * to its SaveEventHandler on a background thread, so work that does not need to delay the response
+	 * can be moved there from afterSaveEntities.
+	 * @param outbox
+	 */
+	public void setOutbox(SaveOutbox outbox) {
+		this.outbox = outbox;
+	}
+	
+	public SaveOutbox getOutbox() {
+		return outbox;
+	}
+	
+	/**
+	 * @return the SaveEvent for the last successful save, if an outbox has been set; otherwise null
+	 */
+	public SaveEvent getSaveEvent() {
+		return saveEvent;
+	}
+	
+	/**
+	 * Set a cache of recent save results, so that a save that is submitted again with the same key
+	 * returns the earlier result without saving again.  Only saves given a key by setSaveKey use the cache.
+	 * @param replayCache cache, usually shared by all requests
+	 */
+	public void setReplayCache(SaveReplayCache replayCache) {
+		this.replayCache = replayCache;
+	}
+	
+	/**
+	 * Set the idempotency key for the next save, e.g. from an Idempotency-Key header.  The replayCache is
+	 * shared by all clients, so the key must be unique to the client, e.g. by including the user's name.
+	 * The SaveOptions tag is not used as a key, because different clients may send the same tag.
+	 * @param saveKey
+	 */
+	public void setSaveKey(String saveKey) {
+		this.saveKey = saveKey;
+	}
+	
+	/**
+	 * Create a bounded executor for setValidationExecutor.  When all the threads are busy and the queue is full,
+	 * the calling thread does the work itself, so a large save cannot take over the server.
+	 * @param threads maximum number of threads
+	 * @param queueSize maximum number of waiting tasks
+	 * @return
+	 */
+	public static ExecutorService newValidationExecutor(int threads, int queueSize) {
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "breeze-validation-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), factory, new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
 	/**
 	 * Build the SaveWorkState from the JSON, and use it to save the changes to the data store.
-	 * @param entities
-	 * @param saveOptions
+	 * @param json save bundle
 	 */
 	public SaveResult saveChanges(String json) {
-		Map saveBundle = Json.fromJson(json);
-		SaveOptions saveOptions = new SaveOptions((Map) saveBundle.get("saveOptions"));
-		List entityMaps = (List<Map>) saveBundle.get("entities");
-		SaveWorkState sw = new SaveWorkState(this, entityMaps);
+		return saveChanges(new StringReader(json));
+	}
+	
+	/**
+	 * Build the SaveWorkState from the JSON stream, and use it to save the changes to the data store.
+	 * The entities are read directly from the stream, without building an intermediate tree of Maps.
+	 * @param in UTF-8 encoded save bundle, e.g. the body of the SaveChanges request
+	 */
+	public SaveResult saveChanges(InputStream in) {
+		return saveChanges(new SaveBundleReader(in));
+	}
+
+	/**
+	 * Build the SaveWorkState from the JSON reader, and use it to save the changes to the data store.
+	 * @param reader save bundle
+	 */
+	public SaveResult saveChanges(Reader reader) {
+		return saveChanges(new SaveBundleReader(reader));
+	}
+
+	/**
+	 * Read the save bundle, and use it to save the changes to the data store.
+	 * @param bundle reader for the save bundle, in JSON or another encoding
+	 */
+	public SaveResult saveChanges(SaveBundleReader bundle) {
+		bundle.read();
+		if (bundle.getEntityErrors() != null) {
+			return new SaveResult(bundle.getEntityErrors());
+		}
+		
+		String key = replayCache == null ? null : saveKey;
+		if (key == null) {
+			return saveChanges(bundle.getEntityInfos(), bundle.getSaveOptions());
+		}
+		SaveResult sr = replayCache.begin(key);
+		if (sr != null) {
+			// already saved
+			return sr;
+		}
+		try {
+			sr = saveChanges(bundle.getEntityInfos(), bundle.getSaveOptions());
+		} finally {
+			replayCache.complete(key, sr);
+		}
+		return sr;
+	}
+	
+	private SaveResult saveChanges(List<EntityInfo> entityInfos, SaveOptions saveOptions) {
+		SaveWorkState sw = new SaveWorkState(this, entityInfos, saveOptions);
 		
 		try {
 			sw.beforeSave();
 			saveChangesCore(sw);
 			sw.afterSave();
+			if (outbox != null && sw.entityErrors == null) {
+				if (isCommitted()) {
+					publishSaveEvent(sw);
+				} else {
+					saveEvent = createSaveEvent(sw);
+				}
+			}
 		} catch (EntityErrorsException e) {
 			sw.entityErrors = e.entityErrors;
 		} catch (Exception e) {
@@ -29,13 +176,33 @@ public class ContextProvider {
 				throw e;
 			}
 		}
+		if (outbox != null && sw.entityErrors != null && sw.savedEntityInfos != null && !sw.savedEntityInfos.isEmpty()) {
+			// a partitioned save failed part way, but its earlier partitions are in the database
+			publishSaveEvent(sw);
+		}
 		
 		SaveResult sr = sw.toSaveResult();
 		return sr;
 	}
 	
+	/**
+	 * Create the SaveEvent for a committed save and give it to the outbox.  The changes are already in the
+	 * database, so a failure here is logged rather than thrown: the save must not be reported as failed,
+	 * or a client retrying with the same key would save it again.
+	 */
+	private void publishSaveEvent(SaveWorkState sw) {
+		try {
+			SaveEvent event = createSaveEvent(sw);
+			if (sw.entityErrors == null) saveEvent = event;
+			outbox.appendCommitted(event);
+		} catch (RuntimeException e) {
+			log.errorv(e, "publishSaveEvent: SaveEvent not added to the outbox: {0}", e.getMessage());
+		}
+	}
+	
 	/**
 	 * Called when each EntityInfo is materialized (before beforeSaveEntities is called).
+	 * If a validationExecutor has been set, this is called on several threads at once.
 	 * Base implementation always returns true.
 	 * @param entityInfo
 	 * @return true if the entity should be included in the saveMap, false if not.  
@@ -67,6 +234,51 @@ public class ContextProvider {
 	protected void saveChangesCore(SaveWorkState sw) {
 	}
 	
+	/**
+	 * Whether saveChangesCore committed the changes.  If it did not, e.g. because the save is part of a larger
+	 * transaction, the SaveEvent is not added to the outbox; the caller should add it after the commit.
+	 * Base implementation returns true.
+	 */
+	protected boolean isCommitted() {
+		return true;
+	}
+	
+	/**
+	 * Create the SaveEvent for the outbox, containing the type, state and key of each entity in the saveMap,
+	 * or only of the entities in the committed partitions if a partitioned save failed part way.
+	 * @param sw
+	 * @return
+	 */
+	protected SaveEvent createSaveEvent(SaveWorkState sw) {
+		SaveEvent event = new SaveEvent();
+		if (sw.savedEntityInfos != null) {
+			addEventEntities(event, sw.savedEntityInfos);
+		} else {
+			for (List<EntityInfo> infos : sw.saveMap.values()) {
+				addEventEntities(event, infos);
+			}
+		}
+		if (sw.keyMappings != null) {
+			event.keyMappings.addAll(sw.keyMappings);
+		}
+		return event;
+	}
+	
+	private void addEventEntities(SaveEvent event, List<EntityInfo> infos) {
+		for (EntityInfo info : infos) {
+			event.entities.add(new SaveEvent.Entity(info.entity.getClass().getName(), info.entityState, getEntityKey(info.entity)));
+		}
+	}
+	
+	/**
+	 * Get the key of the entity, for the SaveEvent.  Base implementation returns null.
+	 * @param entity
+	 * @return
+	 */
+	protected Object getEntityKey(Object entity) {
+		return null;
+	}
+	
 	/**
 	 * Allows subclasses to plug in their own exception handling.  
 	 * This method is called when saveChangesCore throws an exception.
@@ -5,7 +5,9 @@ public enum EntityState {
     Unchanged(2),
     Added(4),
     Deleted(8),
-    Modified(16);
+    Modified(16),
+    /** Inserted if the key is not in the database, and updated otherwise; the key must be assigned by the client */
+    Upsert(32);
 	
 	public final int value;
     EntityState(int value) {
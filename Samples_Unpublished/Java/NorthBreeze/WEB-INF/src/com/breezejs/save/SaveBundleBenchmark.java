@@ -0,0 +1,69 @@
+package com.breezejs.save;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Measures the heap held by a save at the point where the entities are flushed, for large synthetic bundles
+ * of modified Orders.  No database is used; saveChangesCore only takes the measurement.
+ * <p>
+ * Usage: SaveBundleBenchmark [entityCount [runs]]
+ * @author Steve
+ */
+public class SaveBundleBenchmark {
+
+	private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		String bundle = makeBundle(count);
+		System.out.println("bundle: " + count + " entities, " + bundle.length() + " chars");
+
+		for (int run = 0; run < runs; run++) {
+			final long[] atFlush = new long[1];
+			ContextProvider context = new ContextProvider() {
+				@Override
+				protected void saveChangesCore(SaveWorkState sw) {
+					atFlush[0] = usedHeap();
+				}
+			};
+			long before = usedHeap();
+			long start = System.nanoTime();
+			SaveResult sr = context.saveChanges(bundle);
+			long elapsed = System.nanoTime() - start;
+			long heap = atFlush[0] - before;
+			System.out.println("run " + run + ": " + sr.getEntities().size() + " entities in " + (elapsed / 1000000) + " ms, heap at flush "
+					+ (heap / 1024) + " KB, " + (heap / count) + " bytes/entity");
+		}
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) System.gc();
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * @return save bundle of modified Orders, each with an originalValuesMap and an unmappedValuesMap
+	 */
+	private static String makeBundle(int count) {
+		StringBuilder sb = new StringBuilder(count * 600);
+		sb.append("{\"entities\":[");
+		for (int i = 0; i < count; i++) {
+			if (i > 0) sb.append(',');
+			sb.append("{\"orderID\":").append(i + 1)
+				.append(",\"customerID\":\"785efa04-cbf2-4dd7-a7de-083ee17b6ad2\",\"employeeID\":").append(i % 9 + 1)
+				.append(",\"orderDate\":null,\"requiredDate\":null,\"shippedDate\":null")
+				.append(",\"freight\":").append(i % 100).append(".25")
+				.append(",\"shipName\":\"Ship ").append(i).append("\",\"shipAddress\":\"Obere Str. 57\",\"shipCity\":\"Berlin\"")
+				.append(",\"shipRegion\":null,\"shipPostalCode\":\"12209\",\"shipCountry\":\"Germany\",\"rowVersion\":3")
+				.append(",\"entityAspect\":{\"entityTypeName\":\"Order:#northwind.model\",\"defaultResourceName\":\"Orders\"")
+				.append(",\"entityState\":\"Modified\",\"originalValuesMap\":{\"shipName\":\"Old ship ").append(i).append("\",\"rowVersion\":2}")
+				.append(",\"unmappedValuesMap\":{\"note\":\"client-side note for order ").append(i).append("\",\"selected\":true}")
+				.append(",\"autoGeneratedKey\":null}}");
+		}
+		sb.append("],\"saveOptions\":{}}");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,327 @@
+package com.breezejs.save;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONPullParser;
+
+import com.breezejs.util.Reflect;
+import com.sun.json.BlobStore;
+import com.sun.json.JSONDeserializer;
+
+/**
+ * Reads a JSON (or CBOR) save bundle from a stream and materializes each entity directly from the tokens.
+ * Unlike Json.fromJson, no tree of Maps is built for the bundle: the properties of an entity
+ * are set on the bean as they are read, once its entityAspect has been seen.  If the entityAspect
+ * comes after the properties (as it does from the Breeze client), only the properties of that
+ * one entity are held until it arrives.
+ * @author Steve
+ */
+public class SaveBundleReader {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private JSONPullParser parser;
+	private List<EntityInfo> entityInfos;
+	private SaveOptions saveOptions;
+	private Map<Class, Map<String, PropertyDescriptor>> propertyCache;
+	private BlobStore blobStore;
+	private List<EntityError> entityErrors;
+
+	/**
+	 * Thrown when the save bundle is malformed, e.g. an entityAspect has no entityState,
+	 * so it can be reported to the client as a bad request
+	 */
+	public static class InvalidBundleException extends IllegalArgumentException {
+		private static final long serialVersionUID = 1L;
+		public InvalidBundleException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * @param in UTF-8 encoded JSON save bundle
+	 */
+	public SaveBundleReader(InputStream in) {
+		this(new InputStreamReader(in, UTF8));
+	}
+
+	/**
+	 * @param reader JSON save bundle
+	 */
+	public SaveBundleReader(Reader reader) {
+		this(new JSONPullParser(reader));
+	}
+
+	/**
+	 * @param parser source of the save bundle tokens, e.g. a CborPullParser for a binary save bundle
+	 */
+	public SaveBundleReader(JSONPullParser parser) {
+		this.parser = parser;
+		this.propertyCache = new HashMap<Class, Map<String, PropertyDescriptor>>();
+	}
+
+	/**
+	 * Set the store that made the references sent in place of binary properties, so that
+	 * an entity sent back unchanged keeps its bytes.  Other strings are read as base64.
+	 * A reference whose bytes the store no longer has is reported in the entityErrors.
+	 * @param blobStore
+	 */
+	public void setBlobStore(BlobStore blobStore) {
+		this.blobStore = blobStore;
+	}
+
+	/**
+	 * Read the whole save bundle.  After this, the entityInfos and saveOptions are available.
+	 * @throws InvalidBundleException if the bundle is not valid JSON or not a valid save bundle
+	 * @throws RuntimeException if an entity cannot be populated
+	 */
+	public void read() {
+		entityInfos = new ArrayList<EntityInfo>();
+		try {
+			if (parser.next() != JSONPullParser.START_OBJECT) {
+				throw parser.syntaxError("A save bundle must begin with '{'");
+			}
+			while (parser.next() == JSONPullParser.KEY) {
+				String name = parser.getString();
+				parser.next();
+				if ("entities".equals(name)) {
+					readEntities();
+				} else if ("saveOptions".equals(name)) {
+					Map map = (Map) parser.readValue();
+					if (map != null) {
+						saveOptions = new SaveOptions(map);
+					}
+				} else {
+					parser.skipValue();
+				}
+			}
+		} catch (JSONException e) {
+			throw new InvalidBundleException("Exception reading save bundle: " + e.getMessage(), e);
+		}
+		if (saveOptions == null) {
+			saveOptions = new SaveOptions();
+		}
+	}
+
+	/**
+	 * @return the entities in the save bundle, in the order they were read
+	 */
+	public List<EntityInfo> getEntityInfos() {
+		return entityInfos;
+	}
+
+	/**
+	 * @return errors for values in the save bundle that could not be read, such as an expired blob reference,
+	 * or null if there were none.  The bundle should not be saved if there are any.
+	 */
+	public List<EntityError> getEntityErrors() {
+		return entityErrors;
+	}
+
+	/**
+	 * @return the saveOptions from the save bundle, or default SaveOptions if there were none
+	 */
+	public SaveOptions getSaveOptions() {
+		return saveOptions;
+	}
+
+	private void readEntities() throws JSONException {
+		if (parser.getEvent() == JSONPullParser.VALUE_NULL) return;
+		if (parser.getEvent() != JSONPullParser.START_ARRAY) {
+			throw parser.syntaxError("Expected an array of entities");
+		}
+		while (parser.next() == JSONPullParser.START_OBJECT) {
+			entityInfos.add(readEntity());
+		}
+		if (parser.getEvent() != JSONPullParser.END_ARRAY) {
+			throw parser.syntaxError("Expected an entity");
+		}
+	}
+
+	/**
+	 * Read one entity.  Properties that come before the entityAspect are held until
+	 * the entity type is known, and then applied to the new bean.
+	 * @return populated EntityInfo
+	 */
+	private EntityInfo readEntity() throws JSONException {
+		EntityInfo info = null;
+		Map<String, PropertyDescriptor> props = null;
+		List<String> pendingNames = null;
+		List<Object> pendingValues = null;
+
+		while (parser.next() == JSONPullParser.KEY) {
+			String name = parser.getString();
+			parser.next();
+			if ("entityAspect".equals(name)) {
+				info = readEntityAspect();
+				props = getProperties(info.entity.getClass());
+				if (pendingNames != null) {
+					for (int i = 0; i < pendingNames.size(); i++) {
+						setProperty(info.entity, props, pendingNames.get(i), pendingValues.get(i));
+					}
+					pendingNames = null;
+					pendingValues = null;
+				}
+			} else if (info != null) {
+				setProperty(info.entity, props, name, readPropertyValue(props.get(name)));
+			} else {
+				if (pendingNames == null) {
+					pendingNames = new ArrayList<String>();
+					pendingValues = new ArrayList<Object>();
+				}
+				pendingNames.add(name);
+				pendingValues.add(parser.readValue());
+			}
+		}
+		if (info == null) {
+			throw parser.syntaxError("Entity has no entityAspect");
+		}
+		return info;
+	}
+
+	/**
+	 * Read the entityAspect, and create the entity bean for the entityTypeName.
+	 * @return EntityInfo with a new, unpopulated entity
+	 */
+	private EntityInfo readEntityAspect() throws JSONException {
+		if (parser.getEvent() != JSONPullParser.START_OBJECT) {
+			throw parser.syntaxError("Expected an entityAspect object");
+		}
+		String entityTypeName = null;
+		String entityState = null;
+		Map originalValuesMap = null;
+		Map unmappedValuesMap = null;
+		Map autoKey = null;
+		while (parser.next() == JSONPullParser.KEY) {
+			String name = parser.getString();
+			parser.next();
+			if ("entityTypeName".equals(name)) {
+				entityTypeName = (String) parser.readValue();
+			} else if ("entityState".equals(name)) {
+				entityState = (String) parser.readValue();
+			} else if ("originalValuesMap".equals(name)) {
+				originalValuesMap = (Map) parser.readValue();
+			} else if ("unmappedValuesMap".equals(name)) {
+				unmappedValuesMap = (Map) parser.readValue();
+			} else if ("autoGeneratedKey".equals(name)) {
+				autoKey = (Map) parser.readValue();
+			} else {
+				parser.skipValue();
+			}
+		}
+		if (entityTypeName == null) {
+			throw parser.syntaxError("entityAspect has no entityTypeName");
+		}
+		if (entityState == null) {
+			throw parser.syntaxError("entityAspect of " + entityTypeName + " has no entityState");
+		}
+		EntityState state;
+		try {
+			state = EntityState.valueOf(entityState);
+		} catch (IllegalArgumentException e) {
+			throw parser.syntaxError("entityAspect of " + entityTypeName + " has unknown entityState " + entityState);
+		}
+
+		EntityInfo info = new EntityInfo();
+		Class type = Reflect.lookupEntityType(entityTypeName);
+		try {
+			info.entity = type.newInstance();
+		} catch (Exception e) {
+			throw new RuntimeException("Unable to create " + type.getName(), e);
+		}
+		info.entityState = state;
+		// empty maps are common, e.g. the originalValuesMap of an Added entity; don't keep them.
+		// The unmappedValuesMap is kept as sent, for the ContextProvider hooks that read it
+		info.originalValuesMap = (originalValuesMap == null || originalValuesMap.isEmpty()) ? null : originalValuesMap;
+		info.unmappedValuesMap = unmappedValuesMap;
+		if (autoKey != null) {
+			info.autoGeneratedKey = new AutoGeneratedKey(
+					info.entity, (String) autoKey.get("propertyName"),
+					(String) autoKey.get("autoGeneratedKeyType"));
+		}
+		return info;
+	}
+
+	/**
+	 * Read the current value for the property.  A number is read with the getter for the property type,
+	 * so that e.g. a BigDecimal property gets the exact decimal that was sent, not a rounded Double.
+	 * @param pd the property, or null if the bean has no such property
+	 */
+	private Object readPropertyValue(PropertyDescriptor pd) throws JSONException {
+		if (pd == null || parser.getEvent() != JSONPullParser.VALUE_NUMBER) {
+			return parser.readValue();
+		}
+		Class type = pd.getPropertyType();
+		if (type == BigDecimal.class) {
+			return parser.getBigDecimal();
+		} else if (type == Integer.class || type == int.class) {
+			return parser.getInt();
+		} else if (type == Long.class || type == long.class) {
+			return parser.getLong();
+		} else if (type == Double.class || type == double.class) {
+			return parser.getDouble();
+		}
+		return parser.readValue();
+	}
+
+	/**
+	 * Set the property on the bean, converting the value to the property type.
+	 * Null values and properties without a setter are ignored, as in JSONDeserializer.
+	 */
+	private void setProperty(Object bean, Map<String, PropertyDescriptor> props, String name, Object value) {
+		if (value == null) return;
+		PropertyDescriptor pd = props.get(name);
+		if (pd == null) return;
+		Method m = pd.getWriteMethod();
+		if (m == null) return;
+		try {
+			Class type = pd.getPropertyType();
+			if (type == byte[].class && blobStore != null && value instanceof String) {
+				byte[] bytes = blobStore.resolve((String) value);
+				if (bytes != null) value = bytes;
+			}
+			if (!type.isInstance(value)) {
+				value = JSONDeserializer.convert(value, type);
+			}
+			m.invoke(bean, value);
+		} catch (BlobStore.ExpiredReferenceException e) {
+			// the client sent back a reference it was given, but its bytes are gone, so the value cannot be saved
+			if (entityErrors == null) entityErrors = new ArrayList<EntityError>();
+			entityErrors.add(new EntityError("BlobExpired", bean.getClass().getName(), null, name, e.getMessage()));
+		} catch (Exception e) {
+			throw new RuntimeException("Unable to set " + name + " on " + bean.getClass().getName() + " from " + value, e);
+		}
+	}
+
+	private Map<String, PropertyDescriptor> getProperties(Class clazz) {
+		Map<String, PropertyDescriptor> props = propertyCache.get(clazz);
+		if (props == null) {
+			props = new HashMap<String, PropertyDescriptor>();
+			try {
+				BeanInfo binfo = Introspector.getBeanInfo(clazz);
+				for (PropertyDescriptor pd : binfo.getPropertyDescriptors()) {
+					props.put(pd.getName(), pd);
+				}
+			} catch (IntrospectionException e) {
+				throw new RuntimeException("Error getting properties of " + clazz, e);
+			}
+			propertyCache.put(clazz, props);
+		}
+		return props;
+	}
+
+}
@@ -0,0 +1,109 @@
+package com.breezejs.save;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Record of a committed save, for processing after the save by a SaveEventHandler.
+ * Holds the type, state and key of each entity that was saved, and the KeyMappings, but not the entities themselves.
+ * @author Steve
+ */
+public class SaveEvent {
+
+	/** Sequence number of the event in the SaveOutbox */
+	public long sequence;
+	/** Time of the save, in milliseconds */
+	public long time;
+	public List<Entity> entities;
+	public List<KeyMapping> keyMappings;
+
+	/**
+	 * An entity that was saved
+	 */
+	public static class Entity {
+		/** Name of the entity class, e.g. "northwind.model.Customer" */
+		public String entityTypeName;
+		public EntityState entityState;
+		/** Key of the entity.  A composite key is an array, or a List after the event has been read from the outbox */
+		public Object key;
+
+		public Entity(String entityTypeName, EntityState entityState, Object key) {
+			this.entityTypeName = entityTypeName;
+			this.entityState = entityState;
+			this.key = key;
+		}
+	}
+
+	public SaveEvent() {
+		this.time = System.currentTimeMillis();
+		this.entities = new ArrayList<Entity>();
+		this.keyMappings = new ArrayList<KeyMapping>();
+	}
+
+	/**
+	 * Add the entities and keyMappings from another event, e.g. from another chunk of the same save.
+	 * @param other
+	 */
+	public void addAll(SaveEvent other) {
+		entities.addAll(other.entities);
+		keyMappings.addAll(other.keyMappings);
+	}
+
+	/**
+	 * @return a Map of Lists of Maps, for writing as JSON
+	 */
+	Map<String, Object> toMap() {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("sequence", sequence);
+		map.put("time", time);
+		List<Map> list = new ArrayList<Map>(entities.size());
+		for (Entity e : entities) {
+			Map<String, Object> emap = new HashMap<String, Object>();
+			emap.put("entityTypeName", e.entityTypeName);
+			emap.put("entityState", e.entityState.name());
+			emap.put("key", e.key);
+			list.add(emap);
+		}
+		map.put("entities", list);
+		list = new ArrayList<Map>(keyMappings.size());
+		for (KeyMapping km : keyMappings) {
+			Map<String, Object> kmap = new HashMap<String, Object>();
+			kmap.put("entityTypeName", km.getEntityTypeName());
+			kmap.put("tempValue", km.getTempValue());
+			kmap.put("realValue", km.getRealValue());
+			list.add(kmap);
+		}
+		map.put("keyMappings", list);
+		return map;
+	}
+
+	/**
+	 * @param map Map read from JSON, as written by toMap
+	 * @return SaveEvent
+	 */
+	static SaveEvent fromMap(Map map) {
+		SaveEvent event = new SaveEvent();
+		event.sequence = ((Number) map.get("sequence")).longValue();
+		event.time = ((Number) map.get("time")).longValue();
+		List list = (List) map.get("entities");
+		if (list != null) {
+			for (Object o : list) {
+				Map emap = (Map) o;
+				event.entities.add(new Entity((String) emap.get("entityTypeName"),
+						EntityState.valueOf((String) emap.get("entityState")), emap.get("key")));
+			}
+		}
+		list = (List) map.get("keyMappings");
+		if (list != null) {
+			for (Object o : list) {
+				Map kmap = (Map) o;
+				KeyMapping km = new KeyMapping((String) kmap.get("entityTypeName"), kmap.get("tempValue"));
+				km.setRealValue(kmap.get("realValue"));
+				event.keyMappings.add(km);
+			}
+		}
+		return event;
+	}
+}
@@ -0,0 +1,17 @@
+package com.breezejs.save;
+
+/**
+ * Processes SaveEvents from a SaveOutbox, after the save has been committed and the response returned.
+ * Events are delivered in order, at least once: if handle throws an exception, or the server stops
+ * before the event is marked as done, the event is delivered again.
+ * @author Steve
+ */
+public interface SaveEventHandler {
+
+	/**
+	 * Process the event, e.g. publish change notifications or write audit records.
+	 * @param event
+	 * @throws Exception to have the event delivered again later
+	 */
+	void handle(SaveEvent event) throws Exception;
+}
@@ -7,10 +7,16 @@ public class SaveOptions {
 	public SaveOptions() {}
 	
 	public SaveOptions(Map map) {
-		this.allowConcurrentSaves = "true".equalsIgnoreCase(String.valueOf(map.get("")));
+		this.allowConcurrentSaves = "true".equalsIgnoreCase(String.valueOf(map.get("allowConcurrentSaves")));
 		this.tag = map.get("tag");
+		Object partitionSize = map.get("partitionSize");
+		if (partitionSize instanceof Number) {
+			this.partitionSize = ((Number) partitionSize).intValue();
+		}
 	}
 	
 	public boolean allowConcurrentSaves;
 	public Object tag;
+	/** If greater than 0, the save is committed in partitions of this many entities, each in its own transaction */
+	public int partitionSize;
 }
@@ -0,0 +1,280 @@
+package com.breezejs.save;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+
+import com.breezejs.util.Json;
+
+/**
+ * Durable queue of SaveEvents, drained by a background thread that passes them to a SaveEventHandler.
+ * This lets work that must follow a save, such as notifications and auditing, be done after the
+ * response has been sent, without being lost if the server stops.
+ * <p>
+ * Events are appended as lines of JSON to a log file in the given directory.  The position of the first
+ * event not yet handled is kept in an offset file, so after a restart the remaining events are delivered.
+ * When all the events have been handled, the log is truncated.
+ * <p>
+ * Events are appended after the save commits, so an event can be lost if the server stops between
+ * the commit and the append, or while the log cannot be written; once appended, it is delivered at least once.
+ * @author Steve
+ */
+public class SaveOutbox {
+
+	public static final Logger log = Logger.getLogger(SaveOutbox.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String LOG_FILE = "outbox.log";
+	private static final String OFFSET_FILE = "outbox.offset";
+
+	private File logFile;
+	private File offsetFile;
+	private SaveEventHandler handler;
+	private FileOutputStream out;
+	private long sequence;
+	private long offset;
+	private Thread worker;
+	private volatile boolean closed;
+	/** Events given to appendCommitted that could not be written yet, oldest first */
+	private List<SaveEvent> unwritten = new ArrayList<SaveEvent>();
+
+	/** Whether to force each event to disk before append returns */
+	public boolean sync = true;
+	/** Time to wait before delivering an event again after the handler fails */
+	public long retryMillis = 5000;
+
+	/**
+	 * Open the outbox in the directory, creating it if necessary.  Call start() to begin delivering events.
+	 * @param directory where the log and offset files are kept
+	 * @param handler processes the events
+	 */
+	public SaveOutbox(File directory, SaveEventHandler handler) {
+		this.handler = handler;
+		directory.mkdirs();
+		this.logFile = new File(directory, LOG_FILE);
+		this.offsetFile = new File(directory, OFFSET_FILE);
+		try {
+			this.offset = readOffset();
+			if (offset > logFile.length()) offset = 0;
+			this.out = new FileOutputStream(logFile, true);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to open outbox in " + directory, e);
+		}
+		this.sequence = System.currentTimeMillis();
+	}
+
+	/**
+	 * Start the background thread that delivers the events, beginning with any left from before a restart.
+	 */
+	public synchronized void start() {
+		if (worker != null) return;
+		worker = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "breeze-outbox");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Add the event to the end of the log.  When this returns, the event will be delivered even if the server stops.
+	 * @param event
+	 */
+	public synchronized void append(SaveEvent event) {
+		if (closed) throw new IllegalStateException("Outbox is closed");
+		event.sequence = ++sequence;
+		byte[] line = (Json.toJson(event.toMap(), false, false) + '\n').getBytes(UTF8);
+		try {
+			out.write(line);
+			if (sync) out.getFD().sync();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to write to outbox " + logFile, e);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Add the event for a save that has already committed.  Unlike append, this does not throw, so the save
+	 * is not reported as failed: if the log cannot be written, the event is kept in memory and written again
+	 * by the next append or by the worker thread, every retryMillis.  Such an event is lost if the server stops first.
+	 * @param event
+	 */
+	public synchronized void appendCommitted(SaveEvent event) {
+		unwritten.add(event);
+		if (!writeUnwritten()) {
+			// wake the worker, so it retries
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Append the unwritten events, in order, until one fails
+	 * @return true if they were all written
+	 */
+	private synchronized boolean writeUnwritten() {
+		try {
+			while (!unwritten.isEmpty()) {
+				append(unwritten.get(0));
+				unwritten.remove(0);
+			}
+			return true;
+		} catch (RuntimeException e) {
+			log.errorv(e, "writeUnwritten: {0} events not written: {1}", unwritten.size(), e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Stop delivering events.  Events that have not been handled stay in the log for the next start.
+	 */
+	public void close() {
+		Thread t;
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			t = worker;
+		}
+		if (t != null) {
+			try {
+				t.join(retryMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.errorv(e, "close: exception {0}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Deliver the events in order, waiting for more when the log is empty
+	 */
+	private void drain() {
+		while (!closed) {
+			try {
+				String line = waitForEvent();
+				if (line == null) continue;
+				SaveEvent event = SaveEvent.fromMap(Json.fromJson(line));
+				if (deliver(event)) {
+					markDone(line);
+				}
+			} catch (Exception e) {
+				log.errorv(e, "drain: exception {0}", e.getMessage());
+				pause();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the event was handled, false if the outbox was closed first
+	 */
+	private boolean deliver(SaveEvent event) {
+		while (!closed) {
+			try {
+				handler.handle(event);
+				return true;
+			} catch (Exception e) {
+				log.errorv(e, "deliver: event {0} failed: {1}", event.sequence, e.getMessage());
+				pause();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Wait until there is an event after the offset, and read it
+	 * @return the line of JSON, or null if the outbox was closed
+	 */
+	private synchronized String waitForEvent() throws IOException, InterruptedException {
+		while (!closed && offset >= logFile.length()) {
+			if (unwritten.isEmpty()) {
+				wait();
+			} else if (!writeUnwritten()) {
+				wait(retryMillis);
+			}
+		}
+		if (closed) return null;
+		RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+		try {
+			raf.seek(offset);
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+			int b;
+			while ((b = raf.read()) >= 0 && b != '\n') {
+				buf.write(b);
+			}
+			if (b < 0) {
+				// a partial line, left by a crash during append; skip it
+				log.errorv("waitForEvent: skipping incomplete event at {0}", offset);
+				offset = logFile.length();
+				writeOffset();
+				return null;
+			}
+			return new String(buf.toByteArray(), UTF8);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Move the offset past the event, and truncate the log if all the events have been handled
+	 */
+	private synchronized void markDone(String line) throws IOException {
+		offset += line.getBytes(UTF8).length + 1;
+		if (offset >= logFile.length()) {
+			out.getChannel().truncate(0);
+			offset = 0;
+		}
+		writeOffset();
+	}
+
+	private synchronized void pause() {
+		try {
+			if (!closed) wait(retryMillis);
+		} catch (InterruptedException e) {
+			closed = true;
+		}
+	}
+
+	private long readOffset() throws IOException {
+		if (!offsetFile.exists()) return 0;
+		FileInputStream in = new FileInputStream(offsetFile);
+		try {
+			byte[] bytes = new byte[32];
+			int n = in.read(bytes);
+			return n <= 0 ? 0 : Long.parseLong(new String(bytes, 0, n, UTF8).trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeOffset() throws IOException {
+		File temp = new File(offsetFile.getPath() + ".tmp");
+		FileOutputStream os = new FileOutputStream(temp);
+		try {
+			os.write(Long.toString(offset).getBytes(UTF8));
+			if (sync) os.getFD().sync();
+		} finally {
+			os.close();
+		}
+		if (!temp.renameTo(offsetFile)) {
+			offsetFile.delete();
+			if (!temp.renameTo(offsetFile)) {
+				throw new IOException("Unable to write " + offsetFile);
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.breezejs.save;
+
+/**
+ * Result of one partition of a partitioned save.  Each partition is committed in its own transaction,
+ * so when a partition fails, the partitions before it stay committed, and the client can retry
+ * the entities of the failed partition and those after it.
+ * @author Steve
+ */
+public class SavePartition {
+	private int index;
+	private int entityCount;
+	private boolean committed;
+	private String error;
+	public SavePartition(int index, int entityCount) {
+		this.index = index;
+		this.entityCount = entityCount;
+	}
+	public int getIndex() {
+		return index;
+	}
+	public void setIndex(int index) {
+		this.index = index;
+	}
+	public int getEntityCount() {
+		return entityCount;
+	}
+	public void setEntityCount(int entityCount) {
+		this.entityCount = entityCount;
+	}
+	public boolean isCommitted() {
+		return committed;
+	}
+	public void setCommitted(boolean committed) {
+		this.committed = committed;
+	}
+	public String getError() {
+		return error;
+	}
+	public void setError(String error) {
+		this.error = error;
+	}
+	
+}
@@ -0,0 +1,13 @@
+package com.breezejs.save;
+
+import java.beans.PropertyDescriptor;
+import java.beans.SimpleBeanInfo;
+import com.breezejs.util.Reflect;
+
+public class SavePartitionBeanInfo extends SimpleBeanInfo {
+	@Override
+	public PropertyDescriptor[] getPropertyDescriptors() {
+		return Reflect.makePropertyDescriptors(SavePartition.class, "Index", "EntityCount", "Committed", "Error");
+	}
+
+}
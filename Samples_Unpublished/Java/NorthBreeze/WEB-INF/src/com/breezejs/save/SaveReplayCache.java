@@ -0,0 +1,123 @@
+package com.breezejs.save;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers the results of recent saves by key, so that a save that is submitted again
+ * (e.g. when a client retries after a timeout) returns the first result instead of being saved twice.
+ * Only successful results are kept.  The cache holds at most maxEntries results, each for at most ttlMillis.
+ * <p>
+ * While a save is in progress, a duplicate submission waits for it to finish.
+ * @author Steve
+ */
+public class SaveReplayCache {
+
+	private int maxEntries;
+	private long ttlMillis;
+	/** Maximum time a duplicate waits for the first save to finish */
+	public long waitMillis = 30000;
+	private LinkedHashMap<String, Entry> map;
+
+	/**
+	 * Thrown when a save with the same key is still in progress
+	 */
+	public static class SaveInProgressException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+		public SaveInProgressException(String message) {
+			super(message);
+		}
+	}
+
+	private static class Entry {
+		SaveResult result;	// null while the save is in progress
+		long time;
+	}
+
+	/**
+	 * @param maxEntries maximum number of results to keep; the oldest are removed first
+	 * @param ttlMillis how long to keep each result
+	 */
+	public SaveReplayCache(int maxEntries, long ttlMillis) {
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.map = new LinkedHashMap<String, Entry>(16, 0.75f, false);
+	}
+
+	/**
+	 * Begin a save with the given key.  If a save with the key has completed, its result is returned,
+	 * and the save should not be done again.  Otherwise null is returned, and the caller must call
+	 * complete when the save is finished, even if it failed.
+	 * @param key idempotency key, unique to the client, e.g. the user's name and an Idempotency-Key header
+	 * @return SaveResult of the earlier save, or null if there was none
+	 * @throws SaveInProgressException if a save with the key is still in progress after waitMillis
+	 */
+	public synchronized SaveResult begin(String key) {
+		long now = System.currentTimeMillis();
+		removeExpired(now);
+		long deadline = now + waitMillis;
+		Entry entry = map.get(key);
+		while (entry != null && entry.result == null) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new SaveInProgressException("Save " + key + " is already in progress");
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SaveInProgressException("Interrupted waiting for save " + key);
+			}
+			entry = map.get(key);
+		}
+		if (entry != null) {
+			return entry.result;
+		}
+		entry = new Entry();
+		entry.time = now;
+		map.put(key, entry);
+		return null;
+	}
+
+	/**
+	 * Record the result of the save begun with the key.  Results with errors are not kept,
+	 * so the save may be submitted again.
+	 * @param key
+	 * @param result result of the save, or null if it threw an exception
+	 */
+	public synchronized void complete(String key, SaveResult result) {
+		if (result == null || result.hasErrors()) {
+			map.remove(key);
+		} else {
+			Entry entry = map.remove(key);
+			if (entry == null) entry = new Entry();
+			entry.result = result;
+			entry.time = System.currentTimeMillis();
+			map.put(key, entry);	// move it to the end of the eviction order
+			Iterator<Entry> it = map.values().iterator();
+			while (map.size() > maxEntries && it.hasNext()) {
+				if (it.next().result != null) it.remove();
+			}
+		}
+		notifyAll();
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	/**
+	 * Remove the completed entries older than the ttl.  The map is in order of completion,
+	 * but in-progress entries can be anywhere, so this stops at the first completed entry that has not expired.
+	 */
+	private void removeExpired(long now) {
+		long cutoff = now - ttlMillis;
+		Iterator<Entry> it = map.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.result == null) continue;
+			if (entry.time >= cutoff) break;
+			it.remove();
+		}
+	}
+}
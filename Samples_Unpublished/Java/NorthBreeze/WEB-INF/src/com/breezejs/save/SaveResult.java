@@ -3,13 +3,16 @@ package com.breezejs.save;
 import java.util.List;
 
 /**
- * Result of a save, which may have either Entities & KeyMappings, or EntityErrors
+ * Result of a save, which may have either Entities & KeyMappings, or EntityErrors.
+ * A partitioned save also has the Partitions; if one of them failed, the result has the Errors together
+ * with the Entities & KeyMappings of the partitions that were committed.
  * @author Steve
  */
 public class SaveResult {
 	private List<Object> entities;
 	private List<KeyMapping> keyMappings;
 	private List<EntityError> errors;
+	private List<SavePartition> partitions;
 	
 	public SaveResult(List<Object> entities, List<KeyMapping> keyMappings) {
 		this.entities = entities;
@@ -36,6 +39,12 @@ public class SaveResult {
 	public void setErrors(List<EntityError> errors) {
 		this.errors = errors;
 	}
+	public List<SavePartition> getPartitions() {
+		return partitions;
+	}
+	public void setPartitions(List<SavePartition> partitions) {
+		this.partitions = partitions;
+	}
 	public boolean hasErrors() {
 		return errors != null && !errors.isEmpty();
 	}
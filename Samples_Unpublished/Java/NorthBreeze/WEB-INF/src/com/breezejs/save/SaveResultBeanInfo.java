@@ -7,7 +7,7 @@ import com.breezejs.util.Reflect;
 public class SaveResultBeanInfo extends SimpleBeanInfo {
 	@Override
 	public PropertyDescriptor[] getPropertyDescriptors() {
-		return Reflect.makePropertyDescriptors(SaveResult.class, "Entities", "KeyMappings", "Errors");
+		return Reflect.makePropertyDescriptors(SaveResult.class, "Entities", "KeyMappings", "Errors", "Partitions");
 	}
 
 }
@@ -4,6 +4,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.breezejs.util.Json;
 import com.breezejs.util.Reflect;
@@ -12,42 +16,170 @@ public class SaveWorkState {
 
 	private ContextProvider context;
 	private List<Map> entityMaps;
+	private List<EntityInfo> entityInfos;
+	public SaveOptions saveOptions;
 	public Map<Class, List<EntityInfo>> saveMap;
 	public List<EntityInfo> entitiesWithAutoGeneratedKeys;
 	public List<KeyMapping> keyMappings;
 	public List<EntityError> entityErrors;
+	/** Results of the partitions of a partitioned save, or null */
+	public List<SavePartition> partitions;
+	/** EntityInfos of the committed partitions, when a partitioned save fails part way */
+	public List<EntityInfo> savedEntityInfos;
 
 	/**
 	 * @param context
-	 * @param entityMaps raw name-value pairs of entity properties, from JSON
+	 * @param entityMaps raw name-value pairs of entity properties, from JSON.  The list is consumed by beforeSave;
+	 * each map is released as soon as its entity has been created.
 	 */
 	public SaveWorkState(ContextProvider context, List<Map> entityMaps) {
 		this.context = context;
 		this.entityMaps = entityMaps;
+		this.saveOptions = new SaveOptions();
 		this.saveMap = new HashMap<Class, List<EntityInfo>>();
 		this.entitiesWithAutoGeneratedKeys = new ArrayList<EntityInfo>();
 	}
 
-	/** Build the saveMap, and call context.beforeSaveEntity/ies */
+	/**
+	 * @param context
+	 * @param entityInfos entities already materialized from the JSON, e.g. by SaveBundleReader.
+	 * The list is consumed by beforeSave, leaving the entities only in the saveMap.
+	 * @param saveOptions
+	 */
+	public SaveWorkState(ContextProvider context, List<EntityInfo> entityInfos, SaveOptions saveOptions) {
+		this.context = context;
+		this.entityInfos = entityInfos;
+		this.saveOptions = saveOptions;
+		this.saveMap = new HashMap<Class, List<EntityInfo>>();
+		this.entitiesWithAutoGeneratedKeys = new ArrayList<EntityInfo>();
+	}
+
+	/**
+	 * Build the saveMap, and call context.beforeSaveEntity/ies.  The input lists are emptied as they are consumed,
+	 * so that during the flush only the saveMap holds the entities.
+	 */
 	protected void beforeSave() throws EntityErrorsException {
-		for (Object o : entityMaps) {
-			EntityInfo entityInfo = createEntityInfoFromJson((Map) o);
+		if (entityInfos == null) {
+			entityInfos = new ArrayList<EntityInfo>(entityMaps.size());
+			for (int i = 0; i < entityMaps.size(); i++) {
+				entityInfos.add(createEntityInfoFromJson(entityMaps.get(i)));
+				entityMaps.set(i, null);
+			}
+			entityMaps.clear();
+			entityMaps = null;
+		}
+		ExecutorService executor = context.getValidationExecutor();
+		if (executor != null && entityInfos.size() > 1) {
+			boolean[] accepted = beforeSaveEntitiesInParallel(executor);
+			for (int i = 0; i < accepted.length; i++) {
+				if (accepted[i]) addAccepted(entityInfos.get(i));
+			}
+		} else {
+			for (EntityInfo entityInfo : entityInfos) {
+				// don't put it in the saveMap if it was rejected by beforeSaveEntity
+				if (context.beforeSaveEntity(entityInfo)) {
+					addAccepted(entityInfo);
+				}
+			}
+		}
+		// rejected entities are no longer needed
+		entityInfos.clear();
+		entityInfos = null;
+
+		saveMap = context.beforeSaveEntities(saveMap);
+	}
+
+	private void addAccepted(EntityInfo entityInfo) {
+		addToSaveMap(entityInfo);
+
+		if (entityInfo.autoGeneratedKey != null) {
+			entitiesWithAutoGeneratedKeys.add(entityInfo);
+		}
+	}
 
-			// don't put it in the saveMap if it was rejected by beforeSaveEntity
-			if (context.beforeSaveEntity(entityInfo)) {
-				addToSaveMap(entityInfo);
+	/**
+	 * Call context.beforeSaveEntity for all the entityInfos, using the executor.  The entities are divided
+	 * into a few contiguous batches per thread, so the results can be merged in the original order.
+	 * @param executor
+	 * @return whether each entity was accepted by beforeSaveEntity
+	 * @throws EntityErrorsException containing the EntityErrors of all the entities that failed, in order
+	 */
+	private boolean[] beforeSaveEntitiesInParallel(ExecutorService executor) throws EntityErrorsException {
+		final int size = entityInfos.size();
+		final boolean[] accepted = new boolean[size];
+		final EntityErrorsException[] failures = new EntityErrorsException[size];
+		int batches = Math.min(size, Runtime.getRuntime().availableProcessors() * 4);
+		int batchSize = (size + batches - 1) / batches;
 
-				if (entityInfo.autoGeneratedKey != null) {
-					entitiesWithAutoGeneratedKeys.add(entityInfo);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(batches);
+		for (int start = 0; start < size; start += batchSize) {
+			final int from = start;
+			final int to = Math.min(size, start + batchSize);
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int i = from; i < to; i++) {
+						try {
+							accepted[i] = context.beforeSaveEntity(entityInfos.get(i));
+						} catch (EntityErrorsException e) {
+							failures[i] = e;
+						}
+					}
+					return null;
 				}
+			});
+		}
+
+		List<Future<Void>> futures;
+		try {
+			futures = executor.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while validating entities", e);
+		}
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while validating entities", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				if (cause instanceof Error) throw (Error) cause;
+				throw new RuntimeException(cause);
 			}
 		}
-		saveMap = context.beforeSaveEntities(saveMap);
+
+		List<EntityError> errors = null;
+		String message = null;
+		for (int i = 0; i < size; i++) {
+			if (failures[i] != null) {
+				if (errors == null) {
+					errors = new ArrayList<EntityError>();
+					message = failures[i].getMessage();
+				}
+				if (failures[i].entityErrors != null) {
+					errors.addAll(failures[i].entityErrors);
+				}
+			}
+		}
+		if (errors != null) {
+			throw new EntityErrorsException(message, errors);
+		}
+		return accepted;
 	}
 
-	/** Call context.afterSaveEntities */
+	/**
+	 * Call context.afterSaveEntities, and then drop the unmappedValuesMaps.  Only the ContextProvider hooks
+	 * read them, and they are not part of the SaveResult.
+	 */
 	protected void afterSave() throws EntityErrorsException {
 		context.afterSaveEntities(saveMap, keyMappings);
+		for (List<EntityInfo> infos : saveMap.values()) {
+			for (EntityInfo entityInfo : infos) {
+				entityInfo.unmappedValuesMap = null;
+			}
+		}
 	}
 
 	private void addToSaveMap(EntityInfo entityInfo) {
@@ -76,7 +208,7 @@ public class SaveWorkState {
 		info.entity = Json.fromMap(type, map);
 
 		info.entityState = EntityState.valueOf((String) aspect.get("entityState"));
-		info.originalValuesMap = (Map) aspect.get("originalValuesMap");
+		info.originalValuesMap = nonEmpty((Map) aspect.get("originalValuesMap"));
 		info.unmappedValuesMap = (Map) aspect.get("unmappedValuesMap");
 		Map autoKey = (Map) aspect.get("autoGeneratedKey");
 		if (autoKey != null) {
@@ -87,13 +219,27 @@ public class SaveWorkState {
 		return info;
 	}
 
+	private static Map nonEmpty(Map map) {
+		return (map == null || map.isEmpty()) ? null : map;
+	}
+
 	/**
 	 * Populate a new SaveResult with the entities and keyMappings. If there are
 	 * entityErrors, populate it with those instead.
 	 */
 	public SaveResult toSaveResult() {
 		if (entityErrors != null) {
-			return new SaveResult(entityErrors);
+			SaveResult sr = new SaveResult(entityErrors);
+			if (partitions != null) {
+				sr.setPartitions(partitions);
+				List<Object> entities = new ArrayList<Object>(savedEntityInfos.size());
+				for (EntityInfo info : savedEntityInfos) {
+					entities.add(info.entity);
+				}
+				sr.setEntities(entities);
+				sr.setKeyMappings(keyMappings);
+			}
+			return sr;
 		} else {
 			List<Object> entities = new ArrayList<Object>();
 			for (List<EntityInfo> infos : saveMap.values()) {
@@ -101,7 +247,9 @@ public class SaveWorkState {
 					entities.add(info.entity);
 				}
 			}
-			return new SaveResult(entities, keyMappings);
+			SaveResult sr = new SaveResult(entities, keyMappings);
+			sr.setPartitions(partitions);
+			return sr;
 		}
 	}
 
@@ -0,0 +1,63 @@
+package com.breezejs.save;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Map of temporary keys to the KeyMappings holding their real (generated) keys.
+ * Used when a save is split across several requests, so that entities in a later chunk
+ * can refer to entities that were added in an earlier one.  Only the KeyMappings are kept,
+ * not the entities themselves.
+ * @author Steve
+ */
+public class TempKeyMap {
+	// root entity name -> temp key value -> KeyMapping
+	private Map<String, Map<Object, KeyMapping>> map = new HashMap<String, Map<Object, KeyMapping>>();
+	private int size;
+
+	/**
+	 * Add a KeyMapping.
+	 * @param rootEntityName name of the root of the entity's class hierarchy,
+	 * so that a key added for a subclass can be found through a foreign key to the base class
+	 * @param keyMapping KeyMapping with both temp and real values
+	 */
+	public void add(String rootEntityName, KeyMapping keyMapping) {
+		Map<Object, KeyMapping> typeMap = map.get(rootEntityName);
+		if (typeMap == null) {
+			typeMap = new HashMap<Object, KeyMapping>();
+			map.put(rootEntityName, typeMap);
+		}
+		if (typeMap.put(keyMapping.getTempValue(), keyMapping) == null) {
+			size++;
+		}
+	}
+
+	/**
+	 * @param rootEntityName name of the root of the entity's class hierarchy
+	 * @param tempValue temporary key value sent by the client
+	 * @return the real key value, or null if the temp value has not been mapped
+	 */
+	public Object getRealValue(String rootEntityName, Object tempValue) {
+		Map<Object, KeyMapping> typeMap = map.get(rootEntityName);
+		if (typeMap == null) return null;
+		KeyMapping km = typeMap.get(tempValue);
+		return km == null ? null : km.getRealValue();
+	}
+
+	/**
+	 * @return all the KeyMappings, for the SaveResult
+	 */
+	public List<KeyMapping> toKeyMappings() {
+		List<KeyMapping> list = new ArrayList<KeyMapping>(size);
+		for (Map<Object, KeyMapping> typeMap : map.values()) {
+			list.addAll(typeMap.values());
+		}
+		return list;
+	}
+
+	public int size() {
+		return size;
+	}
+}
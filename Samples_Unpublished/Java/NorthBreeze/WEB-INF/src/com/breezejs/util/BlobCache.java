@@ -0,0 +1,171 @@
+package com.breezejs.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.sun.json.BlobStore;
+
+/**
+ * Keeps the large binary properties of query results in memory, and gives each a URL
+ * that is written in its place, so a client fetches the bytes (e.g. an image) only when it shows them.
+ * The cache holds at most maxBytes; the least recently used blobs are removed first.
+ * The same bytes written again get the same URL, so a client can cache them.
+ * <p>
+ * The URL is urlPrefix followed by a random token, and is served by calling getBlob with the token,
+ * which supports a Range header.
+ * @author Steve
+ */
+public class BlobCache implements BlobStore {
+
+	private String urlPrefix;
+	private long maxBytes;
+	private long size;
+	/** entries by token, in order of use */
+	private LinkedHashMap<String, Entry> map;
+	/** entries by hash of their bytes, to find bytes that are already in the cache */
+	private Map<Integer, Entry> byHash;
+
+	private static class Entry {
+		String token;
+		byte[] bytes;
+		int hash;
+	}
+
+	/**
+	 * @param urlPrefix written before each token, e.g. the path of the resource that calls getBlob
+	 * @param maxBytes total size of the blobs to keep
+	 */
+	public BlobCache(String urlPrefix, long maxBytes) {
+		this.urlPrefix = urlPrefix;
+		this.maxBytes = maxBytes;
+		this.map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.byHash = new HashMap<Integer, Entry>();
+	}
+
+	/**
+	 * Add the bytes to the cache, unless they are in it already.
+	 * @return the URL of the bytes
+	 */
+	public synchronized String reference(byte[] bytes) {
+		int hash = Arrays.hashCode(bytes);
+		Entry entry = byHash.get(hash);
+		if (entry != null && Arrays.equals(entry.bytes, bytes)) {
+			map.get(entry.token);	// mark it as used
+			return urlPrefix + entry.token;
+		}
+		entry = new Entry();
+		entry.token = UUID.randomUUID().toString();
+		entry.bytes = bytes;
+		entry.hash = hash;
+		map.put(entry.token, entry);
+		byHash.put(hash, entry);
+		size += bytes.length;
+		removeEldest();
+		return urlPrefix + entry.token;
+	}
+
+	/**
+	 * @return the bytes for a URL made by reference, or null if the string is not such a URL
+	 * @throws ExpiredReferenceException if the bytes have been removed from the cache
+	 */
+	public byte[] resolve(String reference) {
+		if (!reference.startsWith(urlPrefix)) return null;
+		byte[] bytes = get(reference.substring(urlPrefix.length()));
+		if (bytes == null) {
+			throw new ExpiredReferenceException("Blob " + reference + " has expired; query the entity again");
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param token the part of the URL after the urlPrefix
+	 * @return the bytes, or null if they are not in the cache
+	 */
+	public synchronized byte[] get(String token) {
+		Entry entry = map.get(token);
+		return entry == null ? null : entry.bytes;
+	}
+
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Make the response for a request for a blob.  A Range header for a single range of bytes
+	 * returns 206 Partial Content; other ranges are ignored, and the whole blob is returned.
+	 * @param token the part of the URL after the urlPrefix
+	 * @param range value of the Range header, or null
+	 * @return response with the bytes, or 404 if they are not in the cache,
+	 * or 416 if the range is outside them
+	 */
+	public Response getBlob(String token, String range) {
+		final byte[] bytes = get(token);
+		if (bytes == null) {
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+		int len = bytes.length;
+		long start = 0;
+		long end = len - 1;
+		boolean partial = false;
+		if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+			String spec = range.substring(6).trim();
+			int dash = spec.indexOf('-');
+			try {
+				if (dash == 0) {
+					// the last n bytes
+					start = Math.max(0, len - Long.parseLong(spec.substring(1)));
+				} else if (dash > 0) {
+					start = Long.parseLong(spec.substring(0, dash));
+					if (dash < spec.length() - 1) {
+						end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+					}
+				}
+				partial = dash >= 0;
+			} catch (NumberFormatException e) {
+				partial = false;
+			}
+			if (partial && (start > end || start >= len)) {
+				return Response.status(416).header("Content-Range", "bytes */" + len).build();
+			}
+		}
+		final int from = (int) (partial ? start : 0);
+		final int count = (int) (partial ? end - start + 1 : len);
+		StreamingOutput output = new StreamingOutput() {
+			public void write(OutputStream out) throws IOException {
+				out.write(bytes, from, count);
+			}
+		};
+		Response.ResponseBuilder builder = partial ? Response.status(206)
+				.header("Content-Range", "bytes " + from + "-" + (from + count - 1) + "/" + len)
+				: Response.ok();
+		// a token always refers to the same bytes
+		return builder.entity(output).type("application/octet-stream")
+				.header("Accept-Ranges", "bytes")
+				.header("Content-Length", count)
+				.header("Cache-Control", "private, max-age=3600").build();
+	}
+
+	/**
+	 * Remove the least recently used blobs until the cache fits in maxBytes.  The newest is always kept.
+	 */
+	private void removeEldest() {
+		Iterator<Entry> it = map.values().iterator();
+		while (size > maxBytes && map.size() > 1) {
+			Entry entry = it.next();
+			it.remove();
+			size -= entry.bytes.length;
+			if (byHash.get(entry.hash) == entry) {
+				byHash.remove(entry.hash);
+			}
+		}
+	}
+}
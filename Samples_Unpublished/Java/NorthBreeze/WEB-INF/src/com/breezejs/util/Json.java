@@ -1,9 +1,12 @@
 package com.breezejs.util;
 
+import java.io.OutputStream;
 import java.util.Map;
 
 import com.sun.json.JSONDeserializer;
 import com.sun.json.JSONSerializer;
+import com.sun.json.JSONSerializer.TypeFormat;
+import com.sun.json.SerializationPolicy;
 
 public class Json {
 
@@ -31,6 +34,90 @@ public class Json {
 		}
 	}
 	
+	/**
+	 * Write the object tree to the stream as UTF-8 encoded JSON, without building a String
+	 * @param obj - root object
+	 * @param out - stream, e.g. the body of the response
+	 * @param withId - whether to add the $id and $idref properties with each object
+	 * @param withClass - whether to include the $type property with each object
+	 */
+	public static void toJson(Object obj, OutputStream out, boolean withId, boolean withClass) {
+		try {
+			JSONSerializer.write(obj, out, withId, withClass, false);
+		} catch (Exception e) {
+			throw new RuntimeException("Exception serializing " + obj, e);
+		}
+	}
+	
+	/**
+	 * Write the object tree to the stream as UTF-8 encoded JSON, without building a String
+	 * @param obj - root object
+	 * @param out - stream, e.g. the body of the response
+	 * @param withId - whether to add the $id and $idref properties with each object
+	 * @param typeFormat - how to write the $type property of each object, or null to omit it
+	 */
+	public static void toJson(Object obj, OutputStream out, boolean withId, TypeFormat typeFormat) {
+		toJson(obj, out, withId, typeFormat, null);
+	}
+	
+	/**
+	 * Write the object tree to the stream as UTF-8 encoded JSON, without building a String
+	 * @param obj - root object
+	 * @param out - stream, e.g. the body of the response
+	 * @param withId - whether to add the $id and $idref properties with each object
+	 * @param typeFormat - how to write the $type property of each object, or null to omit it
+	 * @param policy - which properties to write, or null for all of them
+	 */
+	public static void toJson(Object obj, OutputStream out, boolean withId, TypeFormat typeFormat, SerializationPolicy policy) {
+		try {
+			JSONSerializer.write(obj, out, withId, typeFormat, false, policy);
+		} catch (Exception e) {
+			throw new RuntimeException("Exception serializing " + obj, e);
+		}
+	}
+	
+	/**
+	 * Write the object tree to the stream as CBOR, the binary form of the same tree as toJson
+	 * @param obj - root object
+	 * @param out - stream, e.g. the body of the response
+	 * @param withId - whether to add the $id and $idref properties with each object
+	 * @param withClass - whether to include the $type property with each object
+	 */
+	public static void toCbor(Object obj, OutputStream out, boolean withId, boolean withClass) {
+		try {
+			JSONSerializer.writeCbor(obj, out, withId, withClass, false);
+		} catch (Exception e) {
+			throw new RuntimeException("Exception serializing " + obj, e);
+		}
+	}
+	
+	/**
+	 * Write the object tree to the stream as CBOR, the binary form of the same tree as toJson
+	 * @param obj - root object
+	 * @param out - stream, e.g. the body of the response
+	 * @param withId - whether to add the $id and $idref properties with each object
+	 * @param typeFormat - how to write the $type property of each object, or null to omit it
+	 */
+	public static void toCbor(Object obj, OutputStream out, boolean withId, TypeFormat typeFormat) {
+		toCbor(obj, out, withId, typeFormat, null);
+	}
+	
+	/**
+	 * Write the object tree to the stream as CBOR, the binary form of the same tree as toJson
+	 * @param obj - root object
+	 * @param out - stream, e.g. the body of the response
+	 * @param withId - whether to add the $id and $idref properties with each object
+	 * @param typeFormat - how to write the $type property of each object, or null to omit it
+	 * @param policy - which properties to write, or null for all of them
+	 */
+	public static void toCbor(Object obj, OutputStream out, boolean withId, TypeFormat typeFormat, SerializationPolicy policy) {
+		try {
+			JSONSerializer.writeCbor(obj, out, withId, typeFormat, false, policy);
+		} catch (Exception e) {
+			throw new RuntimeException("Exception serializing " + obj, e);
+		}
+	}
+	
 	/**
 	 * Convert the JSON string to a Map of Lists of Maps...
 	 * @param source
@@ -4,9 +4,15 @@ import java.beans.BeanInfo;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Reflect {
 	
+	// entity type name, e.g. "Customer:#northwind.model" -> Class
+	private static final Map<String, Class> entityTypes = new ConcurrentHashMap<String, Class>();
+	private static volatile boolean entityTypesClosed;
+	
 	/**
 	 * Finds a PropertyDescriptor for the given propertyName on the Class
 	 * @param clazz
@@ -32,21 +38,50 @@ public class Reflect {
 	
 	/**
 	 * Given a name in the form "Customer:#northwind.model", returns Class northwind.model.Customer.
+	 * Classes are cached by name.  After closeEntityTypes() has been called, only the registered
+	 * entity types are returned, and other names are rejected without going to the class loader.
 	 * @param entityTypeName
 	 * @return
+	 * @throws RuntimeException if the class is not found, or not registered after closeEntityTypes()
 	 */
 	public static Class lookupEntityType(String entityTypeName) {
+		Class clazz = entityTypes.get(entityTypeName);
+		if (clazz != null) return clazz;
+		if (entityTypesClosed) {
+			throw new RuntimeException("Unknown entity type " + entityTypeName);
+		}
+		
 		String[] parts = entityTypeName.split(":#", 2);
+		if (parts.length != 2) {
+			throw new RuntimeException("Invalid entity type name " + entityTypeName);
+		}
 		String className = parts[1] + '.' + parts[0];
 		
 		try {
-			Class clazz = Class.forName(className);
+			clazz = Class.forName(className);
+			entityTypes.put(entityTypeName, clazz);
 			return clazz;
 		} catch (ClassNotFoundException e) {
 			throw new RuntimeException("No class found for " + entityTypeName, e);
 		}
 	}
 	
+	/**
+	 * Register an entity type so that lookupEntityType can find it without loading the class by name.
+	 * @param clazz entity class, registered under a name in the form "Customer:#northwind.model"
+	 */
+	public static void registerEntityType(Class clazz) {
+		entityTypes.put(clazz.getSimpleName() + ":#" + clazz.getPackage().getName(), clazz);
+	}
+	
+	/**
+	 * Stop lookupEntityType from loading classes that have not been registered.
+	 * Call this when all the entity types have been registered with registerEntityType.
+	 */
+	public static void closeEntityTypes() {
+		entityTypesClosed = true;
+	}
+	
 	/**
 	 * Make PropertyDescriptors for the given names.  This is used in BeanInfo classes
 	 * to create proper-case names for properties, which Breeze prefers.
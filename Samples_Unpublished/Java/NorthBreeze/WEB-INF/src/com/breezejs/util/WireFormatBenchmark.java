@@ -0,0 +1,113 @@
+package com.breezejs.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import northwind.model.Customer;
+import northwind.model.Order;
+
+import org.json.CborPullParser;
+import org.json.JSONPullParser;
+
+/**
+ * Compares the size of a query result as JSON and as CBOR, and the time to write it and read it back
+ * with the matching pull parser.  The result is a list of Orders that each refer to one of a few
+ * Customers, so the $id and $ref handling is included, as in a query with $expand=Customer.
+ * No database is used.
+ * <p>
+ * Usage: WireFormatBenchmark [orderCount [runs]]
+ * @author Steve
+ */
+public class WireFormatBenchmark {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		List<Order> orders = makeOrders(count);
+
+		byte[] json = toBytes(orders, false);
+		byte[] cbor = toBytes(orders, true);
+		System.out.println(count + " orders: json " + (json.length / 1024) + " KB, cbor " + (cbor.length / 1024) + " KB ("
+				+ (100 * cbor.length / json.length) + "%)");
+		// compare as JSON text, since decimals are read as Doubles from JSON and BigDecimals from CBOR
+		if (!Json.toJson(readValue(json, false), false, false).equals(Json.toJson(readValue(cbor, true), false, false))) {
+			throw new IllegalStateException("JSON and CBOR were read as different values");
+		}
+
+		for (int run = 0; run < runs; run++) {
+			long t0 = System.nanoTime();
+			toBytes(orders, false);
+			long t1 = System.nanoTime();
+			toBytes(orders, true);
+			long t2 = System.nanoTime();
+			readValue(json, false);
+			long t3 = System.nanoTime();
+			readValue(cbor, true);
+			long t4 = System.nanoTime();
+			System.out.println("run " + run + ": write json " + ms(t1 - t0) + " ms, cbor " + ms(t2 - t1)
+					+ " ms; read json " + ms(t3 - t2) + " ms, cbor " + ms(t4 - t3) + " ms");
+		}
+	}
+
+	private static long ms(long nanos) {
+		return nanos / 1000000;
+	}
+
+	private static byte[] toBytes(Object obj, boolean cbor) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (cbor) {
+			Json.toCbor(obj, out, true, true);
+		} else {
+			Json.toJson(obj, out, true, true);
+		}
+		return out.toByteArray();
+	}
+
+	private static Object readValue(byte[] bytes, boolean cbor) throws Exception {
+		JSONPullParser parser = cbor ? new CborPullParser(bytes)
+				: new JSONPullParser(new InputStreamReader(new ByteArrayInputStream(bytes), UTF8));
+		parser.next();
+		return parser.readValue();
+	}
+
+	private static List<Order> makeOrders(int count) {
+		Customer[] customers = new Customer[50];
+		for (int i = 0; i < customers.length; i++) {
+			Customer c = new Customer();
+			c.setCustomerID("785efa04-cbf2-4dd7-a7de-" + (100000000000L + i));
+			c.setCompanyName("Company " + i);
+			c.setContactName("Contact " + i);
+			c.setCity("Berlin");
+			c.setCountry("Germany");
+			c.setRowVersion(1);
+			customers[i] = c;
+		}
+		List<Order> orders = new ArrayList<Order>(count);
+		Date date = new Date(1400000000000L);
+		for (int i = 0; i < count; i++) {
+			Order o = new Order();
+			o.setOrderID(10000 + i);
+			o.setCustomer(customers[i % customers.length]);
+			o.setCustomerID(o.getCustomer().getCustomerID());
+			o.setEmployeeID(i % 9 + 1);
+			o.setOrderDate(date);
+			o.setFreight(new BigDecimal(i % 1000).movePointLeft(2));
+			o.setShipName("Ship " + i);
+			o.setShipAddress("Obere Str. 57");
+			o.setShipCity("Berlin");
+			o.setShipPostalCode("12209");
+			o.setShipCountry("Germany");
+			o.setRowVersion(3);
+			orders.add(o);
+		}
+		return orders;
+	}
+}
@@ -0,0 +1,401 @@
+package com.sun.json;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+
+import org.json.Base64;
+import org.json.JSONException;
+import org.json.JSONPullParser;
+
+import static com.sun.json.BindPlan.*;
+import static com.sun.json.JSONConstants.*;
+
+/**
+ * Binds JSON to beans as it is read from a JSONPullParser, without building a
+ * tree of JSONObjects first.  The type of each property comes from the BindPlan
+ * of its class, so nested beans and typed collections need no $type; with
+ * useClass, a $type property chooses the class, as in JSONDeserializer.
+ * A $ref to an object that has not been read yet is set when the whole
+ * text has been read.
+ * <p>
+ * $id and $type must come before the other properties of an object, as
+ * JSONSerializer writes them.
+ *
+ * @author Steve
+ */
+final class BeanBinder {
+
+    private final JSONPullParser parser;
+    private final boolean useClass;
+    // map $id value to the corresponding Object
+    private Map<String, Object> idToObj;
+    // places to set when the objects they refer to have been read
+    private List<Pending> pending;
+
+    // used to set a $ref that could not be resolved when it was read
+    private interface PropertySetter {
+        void set(Object value) throws Exception;
+    }
+
+    private static final class Pending {
+        final String id;
+        final PropertySetter setter;
+
+        Pending(String id, PropertySetter setter) {
+            this.id = id;
+            this.setter = setter;
+        }
+    }
+
+    // returned in place of a $ref to an object not read yet
+    private static final class UnresolvedRef {
+        final String id;
+
+        UnresolvedRef(String id) {
+            this.id = id;
+        }
+    }
+
+    BeanBinder(JSONPullParser parser, boolean useClass) {
+        this.parser = parser;
+        this.useClass = useClass;
+        this.idToObj = new HashMap<String, Object>();
+    }
+
+    /**
+     * Read the next value from the parser, and resolve the references in it.
+     * @param target class of the value, or null for Maps, Lists and simple values
+     */
+    Object read(Class target) throws JSONException {
+        parser.next();
+        Object value = bind(target, kindOf(target), null);
+        if (value instanceof UnresolvedRef) {
+            value = idToObj.get(((UnresolvedRef) value).id);
+        }
+        if (pending != null) {
+            for (Pending p : pending) {
+                try {
+                    p.setter.set(idToObj.get(p.id));
+                } catch (Exception exp) {
+                    throw makeJSONException(exp);
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Bind the value at the current token.
+     * @param target class of the value, or null if it is not known
+     * @param kind BindPlan kind of the target
+     * @param elementType for collections and maps, the class of the elements, or null
+     * @return the value, or an UnresolvedRef
+     */
+    private Object bind(Class target, int kind, Class elementType) throws JSONException {
+        switch (parser.getEvent()) {
+        case JSONPullParser.START_OBJECT:
+            return bindObject(target, elementType);
+        case JSONPullParser.START_ARRAY:
+            if (target != null && target.isArray()) {
+                return bindArray(target.getComponentType());
+            }
+            return bindCollection(target, elementType);
+        case JSONPullParser.VALUE_NULL:
+            return null;
+        case JSONPullParser.VALUE_NUMBER:
+            return number(kind, target);
+        default:
+            return convert(parser.readValue(), kind, target);
+        }
+    }
+
+    /**
+     * Parse the number at the current token straight into the target type.
+     */
+    private Object number(int kind, Class target) throws JSONException {
+        switch (kind) {
+        case K_INT:
+            return Integer.valueOf(parser.getInt());
+        case K_LONG:
+            return Long.valueOf(parser.getLong());
+        case K_SHORT: {
+            int value = parser.getInt();
+            if (value != (short) value) throw outOfRange(value, target);
+            return Short.valueOf((short) value);
+        }
+        case K_BYTE: {
+            int value = parser.getInt();
+            if (value != (byte) value) throw outOfRange(value, target);
+            return Byte.valueOf((byte) value);
+        }
+        case K_DOUBLE:
+            return Double.valueOf(parser.getDouble());
+        case K_FLOAT:
+            return Float.valueOf((float) parser.getDouble());
+        case K_BIG_DECIMAL:
+            return parser.getBigDecimal();
+        default:
+            return convert(parser.getNumber(), kind, target);
+        }
+    }
+
+    private Object bindObject(Class target, Class elementType) throws JSONException {
+        Class clazz = target;
+        String id = null;
+        Object obj = null;
+        BindPlan plan = null;
+        while (parser.next() == JSONPullParser.KEY) {
+            String key = parser.getString();
+            parser.next();
+            if (obj == null) {
+                if (key.equals(IDREF)) {
+                    String ref = parser.readValue().toString();
+                    skipRest();
+                    Object value = idToObj.get(ref);
+                    return value != null ? value : new UnresolvedRef(ref);
+                } else if (key.equals(ID)) {
+                    id = parser.readValue().toString();
+                    continue;
+                } else if (key.equals(CLASS) && useClass) {
+                    clazz = classFor(parser.readValue().toString());
+                    continue;
+                } else if (key.equals(ARRAYDATA)) {
+                    Object value = bind(clazz, kindOf(clazz), elementType);
+                    skipRest();
+                    if (id != null) idToObj.put(id, value);
+                    return value;
+                }
+                obj = create(clazz);
+                if (id != null) idToObj.put(id, obj);
+                if (!(obj instanceof Map)) plan = BindPlan.of(obj.getClass());
+            }
+            if (plan == null) {
+                putEntry((Map) obj, key, elementType);
+            } else {
+                setProperty(obj, plan, key);
+            }
+        }
+        if (obj == null) {
+            obj = create(clazz);
+            if (id != null) idToObj.put(id, obj);
+        }
+        return obj;
+    }
+
+    private void setProperty(final Object bean, BindPlan plan, String name) throws JSONException {
+        final BindPlan.Property prop = plan.property(name);
+        if (prop == null) {
+            parser.skipValue();
+            return;
+        }
+        if (prop.primitive && parser.getEvent() == JSONPullParser.VALUE_NUMBER) {
+            if (prop.kind == K_INT) {
+                prop.setInt(bean, parser.getInt());
+            } else if (prop.kind == K_LONG) {
+                prop.setLong(bean, parser.getLong());
+            } else {
+                prop.setDouble(bean, parser.getDouble());
+            }
+            return;
+        }
+        Object value = bind(prop.type, prop.kind, prop.elementType);
+        if (value instanceof UnresolvedRef) {
+            addPending(value, new PropertySetter() {
+                public void set(Object value) throws Exception {
+                    prop.set(bean, value);
+                }
+            });
+        } else {
+            prop.set(bean, value);
+        }
+    }
+
+    private void putEntry(final Map map, final String key, Class valueType) throws JSONException {
+        Object value = bind(valueType, kindOf(valueType), null);
+        if (value instanceof UnresolvedRef) {
+            addPending(value, new PropertySetter() {
+                public void set(Object value) throws Exception {
+                    map.put(key, value);
+                }
+            });
+        } else {
+            map.put(key, value);
+        }
+    }
+
+    private Object bindArray(Class component) throws JSONException {
+        int kind = kindOf(component);
+        List list = new ArrayList();
+        // the array is made at the end, when its length is known
+        final Object[] holder = new Object[1];
+        while (parser.next() != JSONPullParser.END_ARRAY) {
+            Object value = bind(component, kind, null);
+            if (value instanceof UnresolvedRef) {
+                final int index = list.size();
+                addPending(value, new PropertySetter() {
+                    public void set(Object value) throws Exception {
+                        Array.set(holder[0], index, value);
+                    }
+                });
+                value = null;
+            }
+            list.add(value);
+        }
+        Object array = Array.newInstance(component, list.size());
+        for (int i = 0; i < list.size(); i++) {
+            Object value = list.get(i);
+            if (value != null) Array.set(array, i, value);
+        }
+        holder[0] = array;
+        return array;
+    }
+
+    private Object bindCollection(Class target, Class elementType) throws JSONException {
+        final Collection collection = newCollection(target);
+        int kind = kindOf(elementType);
+        while (parser.next() != JSONPullParser.END_ARRAY) {
+            Object value = bind(elementType, kind, null);
+            if (value instanceof UnresolvedRef) {
+                if (collection instanceof List) {
+                    final List list = (List) collection;
+                    final int index = list.size();
+                    list.add(null);
+                    addPending(value, new PropertySetter() {
+                        public void set(Object value) throws Exception {
+                            list.set(index, value);
+                        }
+                    });
+                } else {
+                    addPending(value, new PropertySetter() {
+                        public void set(Object value) throws Exception {
+                            collection.add(value);
+                        }
+                    });
+                }
+            } else {
+                collection.add(value);
+            }
+        }
+        return collection;
+    }
+
+    private Collection newCollection(Class target) throws JSONException {
+        if (target == null || target.isInterface() || target == Object.class) {
+            if (target == null || target.isAssignableFrom(ArrayList.class)) {
+                return new ArrayList();
+            } else if (target.isAssignableFrom(LinkedHashSet.class)) {
+                return new LinkedHashSet();
+            } else if (target == SortedSet.class) {
+                return new TreeSet();
+            }
+        } else if (Collection.class.isAssignableFrom(target)) {
+            return (Collection) BindPlan.of(target).newInstance();
+        }
+        throw new JSONException("cannot convert an array to " + target.getName());
+    }
+
+    private Object create(Class clazz) throws JSONException {
+        if (clazz == null || clazz == Object.class ||
+                (clazz.isInterface() && clazz.isAssignableFrom(HashMap.class))) {
+            return new HashMap();
+        }
+        return BindPlan.of(clazz).newInstance();
+    }
+
+    /**
+     * Convert a String, Number or Boolean to the target type.
+     */
+    private Object convert(Object value, int kind, Class target) throws JSONException {
+        switch (kind) {
+        case K_OBJECT:
+            return value;
+        case K_STRING:
+            return value.toString();
+        case K_INT:
+            if (value instanceof Integer) return value;
+            if (value instanceof Number) return Integer.valueOf(((Number) value).intValue());
+            break;
+        case K_LONG:
+            if (value instanceof Long) return value;
+            if (value instanceof Number) return Long.valueOf(((Number) value).longValue());
+            break;
+        case K_SHORT:
+            if (value instanceof Number) return Short.valueOf(((Number) value).shortValue());
+            break;
+        case K_BYTE:
+            if (value instanceof Number) return Byte.valueOf(((Number) value).byteValue());
+            break;
+        case K_DOUBLE:
+            if (value instanceof Number) return Double.valueOf(((Number) value).doubleValue());
+            break;
+        case K_FLOAT:
+            if (value instanceof Number) return Float.valueOf(((Number) value).floatValue());
+            break;
+        case K_BOOLEAN:
+            if (value instanceof Boolean) return value;
+            break;
+        case K_BIG_DECIMAL:
+            if (value instanceof BigDecimal) return value;
+            if (value instanceof Number || value instanceof String) {
+                try {
+                    return new BigDecimal(value.toString());
+                } catch (NumberFormatException exp) {
+                    throw makeJSONException(exp);
+                }
+            }
+            break;
+        case K_BYTES:
+            if (value instanceof String) {
+                try {
+                    return Base64.decode((String) value);
+                } catch (IllegalArgumentException exp) {
+                    throw makeJSONException(exp);
+                }
+            }
+            break;
+        }
+        return JSONDeserializer.convert(value, target);
+    }
+
+    private static JSONException outOfRange(int value, Class target) {
+        return new JSONException("Number " + value + " is out of range for " + target.getName());
+    }
+
+    private void addPending(Object ref, PropertySetter setter) {
+        if (pending == null) {
+            pending = new ArrayList<Pending>();
+        }
+        pending.add(new Pending(((UnresolvedRef) ref).id, setter));
+    }
+
+    // skip the remaining properties of the current object
+    private void skipRest() throws JSONException {
+        while (parser.next() == JSONPullParser.KEY) {
+            parser.next();
+            parser.skipValue();
+        }
+    }
+
+    private Class classFor(String className) throws JSONException {
+        try {
+            return Class.forName(className);
+        } catch (Exception exp) {
+            throw makeJSONException(exp);
+        }
+    }
+
+    private static JSONException makeJSONException(Exception exp) {
+        JSONException jexp = new JSONException(exp.toString());
+        jexp.initCause(exp);
+        return jexp;
+    }
+}
@@ -0,0 +1,219 @@
+package com.sun.json;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+
+/**
+ * The writable properties of a bean class, with a MethodHandle for each setter
+ * and the kind of conversion its values need.  Setters of int, long and double
+ * properties also have a handle that takes the primitive, so numbers parsed
+ * into them are not boxed.  A plan is made once per class, so a BeanBinder
+ * only looks up each property name as it reads it.
+ *
+ * @author Steve
+ */
+final class BindPlan {
+
+    // kinds of conversion from a JSON value to a property type
+    static final int K_OBJECT = 0;      // any value, as read
+    static final int K_STRING = 1;
+    static final int K_INT = 2;
+    static final int K_LONG = 3;
+    static final int K_SHORT = 4;
+    static final int K_BYTE = 5;
+    static final int K_DOUBLE = 6;
+    static final int K_FLOAT = 7;
+    static final int K_BOOLEAN = 8;
+    static final int K_BIG_DECIMAL = 9;
+    static final int K_BYTES = 10;
+    static final int K_ARRAY = 11;
+    static final int K_COLLECTION = 12;
+    static final int K_MAP = 13;
+    static final int K_BEAN = 14;
+    static final int K_OTHER = 15;     // converted by JSONDeserializer.convert
+
+    private static final Map<Class, BindPlan> plans = new ConcurrentHashMap<Class, BindPlan>();
+    private static final MethodType SETTER_TYPE =
+        MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+    /**
+     * A writable property, and how to convert values for it.
+     */
+    static final class Property {
+        final String name;
+        final Class type;
+        final int kind;
+        /** for collections, the type of the elements, or null if it is not known */
+        final Class elementType;
+        /** true if the type is int, long or double, which can be set without boxing */
+        final boolean primitive;
+        private final MethodHandle setter;
+        // setter taking the primitive type, if primitive
+        private final MethodHandle primitiveSetter;
+
+        Property(String name, Class type, Class elementType, MethodHandle method) {
+            this.name = name;
+            this.type = type;
+            this.kind = kindOf(type);
+            this.elementType = elementType;
+            this.setter = method.asType(SETTER_TYPE);
+            this.primitive = type == Integer.TYPE || type == Long.TYPE || type == Double.TYPE;
+            this.primitiveSetter = primitive ?
+                method.asType(MethodType.methodType(void.class, Object.class, type)) : null;
+        }
+
+        void setInt(Object bean, int value) throws JSONException {
+            try {
+                primitiveSetter.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw setError(bean, value, t);
+            }
+        }
+
+        void setLong(Object bean, long value) throws JSONException {
+            try {
+                primitiveSetter.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw setError(bean, value, t);
+            }
+        }
+
+        void setDouble(Object bean, double value) throws JSONException {
+            try {
+                primitiveSetter.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw setError(bean, value, t);
+            }
+        }
+
+        void set(Object bean, Object value) throws JSONException {
+            if (value == null && type.isPrimitive()) return;
+            try {
+                setter.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw setError(bean, value, t);
+            }
+        }
+
+        private JSONException setError(Object bean, Object value, Throwable t) {
+            JSONException jexp = new JSONException("Unable to set " + name + " on "
+                + bean.getClass().getName() + " from " + value);
+            jexp.initCause(t);
+            return jexp;
+        }
+    }
+
+    final Class clazz;
+    private final MethodHandle constructor;
+    private final Map<String, Property> properties;
+
+    private BindPlan(Class clazz) throws JSONException {
+        this.clazz = clazz;
+        this.properties = new HashMap<String, Property>();
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        try {
+            MethodHandle ctor = null;
+            try {
+                ctor = lookup.findConstructor(clazz, MethodType.methodType(void.class))
+                    .asType(CONSTRUCTOR_TYPE);
+            } catch (NoSuchMethodException e) {
+                // not a bean; only its converter can make one
+            }
+            this.constructor = ctor;
+            BeanInfo binfo = Introspector.getBeanInfo(clazz);
+            for (PropertyDescriptor pd : binfo.getPropertyDescriptors()) {
+                Method m = pd.getWriteMethod();
+                if (m == null) continue;
+                Class elementType = null;
+                Type generic = m.getGenericParameterTypes()[0];
+                if (generic instanceof ParameterizedType) {
+                    Type[] args = ((ParameterizedType) generic).getActualTypeArguments();
+                    Type arg = args[args.length - 1];
+                    if (arg instanceof Class) elementType = (Class) arg;
+                }
+                properties.put(pd.getName(),
+                    new Property(pd.getName(), pd.getPropertyType(), elementType, lookup.unreflect(m)));
+            }
+        } catch (IntrospectionException e) {
+            throw makeJSONException(e);
+        } catch (IllegalAccessException e) {
+            throw makeJSONException(e);
+        }
+    }
+
+    /**
+     * @return the plan for binding beans of the class
+     */
+    static BindPlan of(Class clazz) throws JSONException {
+        BindPlan plan = plans.get(clazz);
+        if (plan == null) {
+            plan = new BindPlan(clazz);
+            plans.put(clazz, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * @return the property with the name, or null if it is not writable
+     */
+    Property property(String name) {
+        return properties.get(name);
+    }
+
+    Object newInstance() throws JSONException {
+        if (constructor == null) {
+            throw new JSONException("No public constructor without arguments for " + clazz.getName());
+        }
+        try {
+            return constructor.invokeExact();
+        } catch (Throwable t) {
+            JSONException jexp = new JSONException("Unable to create " + clazz.getName());
+            jexp.initCause(t);
+            throw jexp;
+        }
+    }
+
+    /**
+     * @return the kind of conversion values of the type need
+     */
+    static int kindOf(Class type) {
+        if (type == null || type == Object.class) return K_OBJECT;
+        if (type == String.class) return K_STRING;
+        if (type == Integer.class || type == Integer.TYPE) return K_INT;
+        if (type == Long.class || type == Long.TYPE) return K_LONG;
+        if (type == Short.class || type == Short.TYPE) return K_SHORT;
+        if (type == Byte.class || type == Byte.TYPE) return K_BYTE;
+        if (type == Double.class || type == Double.TYPE) return K_DOUBLE;
+        if (type == Float.class || type == Float.TYPE) return K_FLOAT;
+        if (type == Boolean.class || type == Boolean.TYPE) return K_BOOLEAN;
+        if (type == BigDecimal.class) return K_BIG_DECIMAL;
+        if (type == byte[].class) return K_BYTES;
+        if (type.isArray()) return K_ARRAY;
+        if (Collection.class.isAssignableFrom(type)) return K_COLLECTION;
+        if (Map.class.isAssignableFrom(type)) return K_MAP;
+        if (type.isPrimitive() || type.isEnum() || type.getName().startsWith("java.")) return K_OTHER;
+        return K_BEAN;
+    }
+
+    private static JSONException makeJSONException(Exception exp) {
+        JSONException jexp = new JSONException(exp.toString());
+        jexp.initCause(exp);
+        return jexp;
+    }
+}
@@ -0,0 +1,36 @@
+package com.sun.json;
+
+/**
+ * Keeps binary property values that are too large to write inline, and gives
+ * each a reference that is written in its place, e.g. a URL from which the
+ * client fetches the bytes when it needs them.
+ *
+ * @see SerializationPolicy#lazyBinary(BlobStore, int)
+ * @author Steve
+ */
+public interface BlobStore {
+
+    /**
+     * Thrown by resolve for a reference that this store made, but whose bytes
+     * it no longer holds, so the value sent back cannot be known
+     */
+    class ExpiredReferenceException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+        public ExpiredReferenceException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @param bytes value of a binary property
+     * @return the string written in place of the bytes
+     */
+    String reference(byte[] bytes);
+
+    /**
+     * @param reference a string read in place of a binary property
+     * @return the bytes, or null if the string is not a reference made by this store
+     * @throws ExpiredReferenceException if the reference was made by this store, but the bytes are gone
+     */
+    byte[] resolve(String reference);
+}
@@ -0,0 +1,26 @@
+package com.sun.json;
+
+import java.lang.reflect.Method;
+
+/**
+ * The properties of a bean class that a Serializer writes, in order, with their
+ * getters.  A plan is made once per class by a SerializationPolicy, with the
+ * policy's exclusions already applied, so writing a bean only loops over it.
+ *
+ * @author Steve
+ */
+final class ClassPlan {
+    final String[] names;
+    final Method[] getters;
+    /**
+     * The plan without the navigation properties, used for beans at the
+     * policy's maximum depth.  For a plan without navigations, this.
+     */
+    final ClassPlan leaf;
+
+    ClassPlan(String[] names, Method[] getters, ClassPlan leaf) {
+        this.names = names;
+        this.getters = getters;
+        this.leaf = leaf == null ? this : leaf;
+    }
+}
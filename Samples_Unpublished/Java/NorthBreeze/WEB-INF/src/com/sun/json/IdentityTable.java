@@ -0,0 +1,82 @@
+package com.sun.json;
+
+/**
+ * Maps objects, by identity, to int ids.  The keys and ids are kept in parallel
+ * arrays with linear probing, so unlike IdentityHashMap no boxed value is made
+ * for each entry, and a lookup does not allocate.
+ *
+ * @author Steve
+ */
+final class IdentityTable {
+    private Object[] keys;
+    private int[] ids;
+    private int size;
+    private int mask;
+
+    /**
+     * @param expectedSize number of entries expected; the table grows if there are more
+     */
+    IdentityTable(int expectedSize) {
+        int capacity = 16;
+        // keep the table at most half full
+        while (capacity < expectedSize * 2 && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        this.keys = new Object[capacity];
+        this.ids = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private static int hash(Object key) {
+        int h = System.identityHashCode(key);
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the id of the object, or -1 if it has none
+     */
+    int get(Object key) {
+        int i = hash(key) & mask;
+        Object k;
+        while ((k = keys[i]) != null) {
+            if (k == key) {
+                return ids[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Add an object that is not already in the table.
+     */
+    void put(Object key, int id) {
+        if (size * 2 >= keys.length) {
+            resize();
+        }
+        insert(key, id);
+        size++;
+    }
+
+    private void insert(Object key, int id) {
+        int i = hash(key) & mask;
+        while (keys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        ids[i] = id;
+    }
+
+    private void resize() {
+        Object[] oldKeys = keys;
+        int[] oldIds = ids;
+        keys = new Object[oldKeys.length * 2];
+        ids = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                insert(oldKeys[i], oldIds[i]);
+            }
+        }
+    }
+}
@@ -37,9 +37,11 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import org.json.Base64;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONPullParser;
 import org.json.JSONTokener;
 import static com.sun.json.JSONConstants.*;
 
@@ -73,13 +75,37 @@ public class JSONDeserializer {
     /**
      * Read (deserialize) an object from a JSON reader.
      * Specify whether to map to JavaBeans using $class property
-     * or not. 
+     * or not.  The text is tokenized as it is read, without
+     * first reading all of it into a String.
      */
     public static Object read(Reader in, 
                      boolean useClass) 
                      throws IOException, JSONException {
-        String str = readFully(in);
-        return read(str, useClass);        
+        Deserializer deserializer = new Deserializer(new JSONTokener(in), useClass);
+        return deserializer.read();
+    }
+
+    /**
+     * Read (deserialize) an object of the given Class from a JSON reader,
+     * binding each value to its bean property as it is read, without
+     * building a tree of JSONObjects.  Nested beans and collections take
+     * their types from the property types.
+     */
+    public static Object read(Reader in, Class target, 
+                     boolean useClass) 
+                     throws IOException, JSONException {
+        return read(new JSONPullParser(in), target, useClass);
+    }
+
+    /**
+     * Read (deserialize) an object of the given Class from the next
+     * value of the parser, e.g. a CborPullParser, binding each value
+     * to its bean property as it is read.
+     */
+    public static Object read(JSONPullParser parser, Class target, 
+                     boolean useClass) 
+                     throws JSONException {
+        return new BeanBinder(parser, useClass).read(target);
     }
 
     /**
@@ -98,7 +124,7 @@ public class JSONDeserializer {
     public static Object read(String str, 
                      boolean useClass) 
                      throws IOException, JSONException {
-        Deserializer deserializer = new Deserializer(str, useClass);       
+        Deserializer deserializer = new Deserializer(new JSONTokener(str), useClass);       
         return deserializer.read();
     }
 
@@ -111,22 +137,22 @@ public class JSONDeserializer {
         return deserializer.read(clazz, map);
     }
     
-    // reads all contents from a Reader and returns a string
-    private static String readFully(Reader reader)
-                      throws IOException { 
-        char[] arr = new char[8*1024]; // 8K at a time
-        StringBuffer buf = new StringBuffer();
-        int numChars;
-        while ((numChars = reader.read(arr, 0, arr.length)) > 0) {
-            buf.append(arr, 0, numChars);
-        }
-        return buf.toString();
+    /**
+     * Convert a single value read from JSON (a String, Number, Boolean,
+     * Map or List) into an instance of the given Class.
+     */
+    public static Object convert(Object value, Class target)
+                     throws JSONException {
+        Deserializer deserializer = new Deserializer(null, false);
+        Object obj = deserializer.convert(value, target);
+        deserializer.fixIdReferences();
+        return obj;
     }
 
     // private class to manage the deserialization process
     private static class Deserializer {
-        // JSON string we are reading
-        private String str;
+        // source of the JSON we are reading
+        private JSONTokener tokener;
         // to use $class property or not?
         private boolean useClass;
         // map $id value to the corresponding Object
@@ -141,8 +167,8 @@ public class JSONDeserializer {
         // reference
         private List<PropertySetter> idRefSetters;
 
-        Deserializer(String str, boolean useClass) {
-            this.str = str;
+        Deserializer(JSONTokener tokener, boolean useClass) {
+            this.tokener = tokener;
             this.useClass = useClass;
         }
 
@@ -169,7 +195,6 @@ public class JSONDeserializer {
 
         public Object read(Class target) 
                      throws JSONException {
-            JSONTokener tokener = new JSONTokener(str);
             JSONObject jobj = new JSONObject(tokener);
             Object obj = convert(jobj, target);
             fixIdReferences();
@@ -202,6 +227,15 @@ public class JSONDeserializer {
                 return null;
             }
 
+            // nested Maps and Lists come from a JSONObject built from a Map
+            if (target != null && !target.isInstance(obj)) {
+                if (obj instanceof Map) {
+                    obj = new JSONObject((Map)obj);
+                } else if (obj instanceof List) {
+                    obj = new JSONArray((List)obj);
+                }
+            }
+
             if (obj instanceof JSONObject) {
                 JSONObject jobj = (JSONObject)obj;
                 boolean hasId = jobj.has(ID);
@@ -490,6 +524,13 @@ public class JSONDeserializer {
             else if (target == java.util.UUID.class) {
                  return java.util.UUID.fromString(str);
             }
+            else if (target == byte[].class) {
+                try {
+                    return Base64.decode(str);
+                } catch (IllegalArgumentException exp) {
+                    throw makeJSONException(exp);
+                }
+            }
 
             // try String accepting constructor
             try {
@@ -502,6 +543,10 @@ public class JSONDeserializer {
         }
         
         private Object fromNumber(Number num, Class target) throws JSONException {
+            if (target == java.math.BigDecimal.class) {
+                // from the shortest decimal form, not the binary value of a Double
+                return new java.math.BigDecimal(num.toString());
+            }
             try {
             	Class numClass = num.getClass();
             	
@@ -24,24 +24,25 @@
 
 package com.sun.json;
 
-import java.beans.BeanInfo;
-import java.beans.Introspector;
-import java.beans.IntrospectionException;
-import java.beans.PropertyDescriptor;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.io.StringWriter;
 import java.lang.reflect.Array;
 import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONException;
 import org.json.JSONWriter;
+import org.json.QuotedString;
+import org.json.CborJSONWriter;
+import org.json.Utf8JSONWriter;
 import static com.sun.json.JSONConstants.*;
 
 /**
@@ -58,6 +59,29 @@ public class JSONSerializer {
     // do not create me!
     private JSONSerializer() {}
 
+    /**
+     * How the $type property of each object is written.
+     */
+    public static enum TypeFormat {
+        /** the Java class name, e.g. "northwind.model.Order" */
+        CLASS_NAME,
+        /** the Breeze type name, e.g. "Order:#northwind.model" */
+        BREEZE,
+        /**
+         * the class name the first time each class is written, and after that
+         * the index of the class in the order the classes were first written,
+         * e.g. 0 for the class of the first object.  A reader builds the same
+         * table of types as it reads the objects in order.
+         */
+        INDEXED
+    }
+
+    // type names, quoted and encoded once per class
+    private static final Map<Class, QuotedString> classNames =
+        new ConcurrentHashMap<Class, QuotedString>();
+    private static final Map<Class, QuotedString> breezeNames =
+        new ConcurrentHashMap<Class, QuotedString>();
+
     /**
      * Write an object as JSON to the writer. This does
      * not handle circular references and does not output
@@ -86,6 +110,103 @@ public class JSONSerializer {
         out.flush();
     }
 
+    /**
+     * Write an object as UTF-8 encoded JSON to the stream, using a
+     * Utf8JSONWriter. This can optionally handle circular references
+     * and optionally include $class properties.
+     */
+    public static void write(Object obj, OutputStream out,
+                             boolean handleCircularity,
+                             boolean includeClass,
+                             boolean wrapArrays)
+                  throws IOException, JSONException {
+        write(obj, out, handleCircularity,
+              includeClass ? TypeFormat.CLASS_NAME : null, wrapArrays, null);
+    }
+
+    /**
+     * Write an object as UTF-8 encoded JSON to the stream, using a
+     * Utf8JSONWriter, with $type properties in the given format, or
+     * none if typeFormat is null.  The policy chooses the properties
+     * that are written; if it is null, all of them are.
+     */
+    public static void write(Object obj, OutputStream out,
+                             boolean handleCircularity,
+                             TypeFormat typeFormat,
+                             boolean wrapArrays,
+                             SerializationPolicy policy)
+                  throws IOException, JSONException {
+        Utf8JSONWriter writer = new Utf8JSONWriter(out);
+        Serializer s = new Serializer(writer,
+                            handleCircularity,
+                            typeFormat,
+                            wrapArrays,
+                            policy);
+        s.write(obj);
+        writer.flush();
+    }
+
+    /**
+     * Write an object as CBOR to the stream, using a CborJSONWriter.
+     * The tree is the same as the JSON written by the other methods,
+     * including the $id and $ref properties if handleCircularity is true.
+     */
+    public static void writeCbor(Object obj, OutputStream out,
+                             boolean handleCircularity,
+                             boolean includeClass,
+                             boolean wrapArrays)
+                  throws IOException, JSONException {
+        writeCbor(obj, out, handleCircularity,
+                  includeClass ? TypeFormat.CLASS_NAME : null, wrapArrays, null);
+    }
+
+    /**
+     * Write an object as CBOR to the stream, with $type properties in
+     * the given format, or none if typeFormat is null, and the properties
+     * chosen by the policy, or all of them if it is null.
+     */
+    public static void writeCbor(Object obj, OutputStream out,
+                             boolean handleCircularity,
+                             TypeFormat typeFormat,
+                             boolean wrapArrays,
+                             SerializationPolicy policy)
+                  throws IOException, JSONException {
+        CborJSONWriter writer = new CborJSONWriter(out);
+        Serializer s = new Serializer(writer,
+                            handleCircularity,
+                            typeFormat,
+                            wrapArrays,
+                            policy);
+        s.write(obj);
+        writer.flush();
+    }
+
+    /**
+     * @return the Java class name, quoted
+     */
+    static QuotedString className(Class clazz) {
+        QuotedString name = classNames.get(clazz);
+        if (name == null) {
+            name = new QuotedString(clazz.getName());
+            classNames.put(clazz, name);
+        }
+        return name;
+    }
+
+    /**
+     * @return the Breeze type name, e.g. "Order:#northwind.model", quoted
+     */
+    static QuotedString breezeName(Class clazz) {
+        QuotedString name = breezeNames.get(clazz);
+        if (name == null) {
+            Package pkg = clazz.getPackage();
+            name = new QuotedString(clazz.getSimpleName() + ":#"
+                + (pkg == null ? "" : pkg.getName()));
+            breezeNames.put(clazz, name);
+        }
+        return name;
+    }
+
     /**
      * Return JSON string for the given object. This does
      * not handle circular references and does not output
@@ -129,32 +250,58 @@ public class JSONSerializer {
 
     // class that handles serialization
     private static class Serializer {  
-        // map to maintain objects serialized already    
-        private Map<Object, String> objToId;
+        // ids of the objects serialized already; created when the root is written
+        private IdentityTable objToId;
         // are we outputting $id (and $idref) properties?
         private boolean includeId;
         // are we outputting $class properties?
         private boolean includeClass;
+        // how the $class properties are written
+        private TypeFormat typeFormat;
+        // for TypeFormat.INDEXED, the index of each class written so far
+        private Map<Class, Integer> typeIndexes;
         // should we wrap arrays in an object?  Only works if includeId is true.
         private boolean wrapArrays;
         // writer on which we will write JSON
         private JSONWriter writer;
         // next object id (unique id for objects)
-        private long nextId;
+        private int nextId;
         // formatter for Dates
         private SimpleDateFormat dateFormat;
+        // which properties of each bean are written
+        private SerializationPolicy policy;
+        // depth of the bean being written, counting from 1 for the beans in the root collection
+        private int depth;
        
 
         public Serializer(Writer out, 
                           boolean handleCircularity,
                           boolean includeClass,
                           boolean wrapArrays) {
-            this.writer = new JSONWriter(out);
-            this.includeId = handleCircularity;
-            if (includeId) {
-                this.objToId = 
-                    new IdentityHashMap<Object, String>();
+            this(new JSONWriter(out), handleCircularity, includeClass, wrapArrays);
+        }
+
+        public Serializer(JSONWriter writer, 
+                          boolean handleCircularity,
+                          boolean includeClass,
+                          boolean wrapArrays) {
+            this(writer, handleCircularity,
+                 includeClass ? TypeFormat.CLASS_NAME : null, wrapArrays, null);
+        }
+
+        public Serializer(JSONWriter writer, 
+                          boolean handleCircularity,
+                          TypeFormat typeFormat,
+                          boolean wrapArrays,
+                          SerializationPolicy policy) {
+            boolean includeClass = typeFormat != null;
+            this.policy = policy == null ? SerializationPolicy.ALL : policy;
+            this.typeFormat = typeFormat;
+            if (typeFormat == TypeFormat.INDEXED) {
+                this.typeIndexes = new HashMap<Class, Integer>();
             }
+            this.writer = writer;
+            this.includeId = handleCircularity;
             this.includeClass = includeClass;
             if (includeId || includeClass)
             	this.wrapArrays = wrapArrays;
@@ -163,30 +310,35 @@ public class JSONSerializer {
 
         }
 
-        private String objectId(Object obj) {
-            return Long.toString(nextId++);
-        }
-
         private void writeIdProperty(Object obj)
                 throws IOException, JSONException  {
-            String id = objectId(obj);
+            int id = nextId++;
             writer.key(ID);
-            writer.value(id);
+            writer.quotedValue(id);
             objToId.put(obj, id);
         }
 
         private void writeClassProperty(Object obj)
                 throws IOException, JSONException  {
-            String name = obj.getClass().getName();
+            Class clazz = obj.getClass();
             writer.key(CLASS);
-            writer.value(name);
+            if (typeFormat == TypeFormat.INDEXED) {
+                Integer index = typeIndexes.get(clazz);
+                if (index != null) {
+                    writer.value(index.longValue());
+                    return;
+                }
+                typeIndexes.put(clazz, typeIndexes.size());
+            }
+            writer.value(typeFormat == TypeFormat.BREEZE ?
+                breezeName(clazz) : className(clazz));
         }
 
         private boolean hasSeenAlready(Object obj) 
                         throws IOException, JSONException {
-            String id = objToId.get(obj);
-            if (id != null) {
-                writer.object().key(IDREF).value(id);
+            int id = objToId.get(obj);
+            if (id >= 0) {
+                writer.object().key(IDREF).quotedValue(id);
                 writer.endObject();
                 return true;
             } else {
@@ -194,6 +346,25 @@ public class JSONSerializer {
             }
         }
 
+        /**
+         * Estimate the number of objects that will get ids, to size the table:
+         * the number of elements of the root collection, or of the collection
+         * in a root map such as a QueryResult, with room for related objects.
+         */
+        private int expectedSize(Object root) {
+            int size = 0;
+            if (root instanceof Collection) {
+                size = ((Collection) root).size();
+            } else if (root instanceof Map) {
+                for (Object value : ((Map) root).values()) {
+                    if (value instanceof Collection) {
+                        size = Math.max(size, ((Collection) value).size());
+                    }
+                }
+            }
+            return 2 * size + 16;
+        }
+
         private void arrayStart(Object obj) 
                 throws IOException, JSONException {
             boolean objectNeeded = 
@@ -241,10 +412,6 @@ public class JSONSerializer {
 
         private void writeArray(Object array) 
                 throws IOException, JSONException {
-        	if (array instanceof byte[]) {
-        		writer.value(null);
-        		return;
-        	}
             arrayStart(array);
             int len = Array.getLength(array);
             for (int index = 0; index < len; index++) {
@@ -253,6 +420,16 @@ public class JSONSerializer {
             arrayEnd(array);
         }
 
+        private void writeBinary(byte[] bytes)
+                throws IOException, JSONException {
+            BlobStore store = policy.getBlobStore();
+            if (store != null && bytes.length >= policy.getBlobThreshold()) {
+                writer.value(store.reference(bytes));
+            } else {
+                writer.binaryValue(bytes);
+            }
+        }
+
         private void objectStart(Object obj)
                         throws IOException, JSONException {
             writer.object();
@@ -301,30 +478,26 @@ public class JSONSerializer {
         	}
         	
             objectStart(obj);
-            BeanInfo binfo;
-            try {
-                binfo = Introspector.getBeanInfo(obj.getClass());
-            } catch (IntrospectionException iexp) {
-                throw makeJSONException(iexp);
+            ClassPlan plan = policy.plan(obj.getClass());
+            depth++;
+            int maxDepth = policy.getMaxDepth();
+            if (maxDepth > 0 && depth >= maxDepth) {
+                // related beans would be too deep
+                plan = plan.leaf;
             }
 
-            PropertyDescriptor[] descs = binfo.getPropertyDescriptors();
-            for (PropertyDescriptor p : descs) {
-                String name = p.getName();
-                if (name.equals("class")) {
-                    continue;
-                }
-                writer.key(name);
-                Method method = p.getReadMethod();
-                if (method != null) {
-                    try {
-                        write(method.invoke(obj, (Object[])null));
-                    } catch (Exception exp) {
-                    	//if (!(exp instanceof org.hibernate.LazyInitializationException))
-                		throw makeJSONException(exp);
-                    }
+            String[] names = plan.names;
+            Method[] getters = plan.getters;
+            for (int i = 0; i < names.length; i++) {
+                writer.key(names[i]);
+                try {
+                    write(getters[i].invoke(obj, (Object[])null));
+                } catch (Exception exp) {
+                	//if (!(exp instanceof org.hibernate.LazyInitializationException))
+            		throw makeJSONException(exp);
                 }
             }
+            depth--;
             objectEnd(obj);
         }
 
@@ -336,13 +509,10 @@ public class JSONSerializer {
                 return;
             }
 
-            // check for circularity
-            if (includeId) {
-                if (hasSeenAlready(obj)) return;
-            }
-
-            // check for all primitive wrappers
-            if (obj instanceof Number) {               
+            // check for all primitive wrappers and byte arrays, which never get ids
+            if (obj instanceof String) {
+                writer.value(obj);
+            } else if (obj instanceof Number) {               
                 writer.value((Number)obj);
             } else if (obj instanceof Boolean) {
                 writer.value(((Boolean)obj).booleanValue());
@@ -350,10 +520,25 @@ public class JSONSerializer {
                 writer.value(dateFormat.format(obj));
             } else if (obj instanceof UUID) {
                 writer.value(((UUID)obj).toString());
-            } else if (obj instanceof Character ||
-                       obj instanceof String) {
+            } else if (obj instanceof Character) {
                 writer.value(obj.toString());
-            } else // write objects
+            } else if (obj instanceof byte[]) {
+                writeBinary((byte[])obj);
+            } else {
+                writeObject(obj);
+            }
+        }
+
+        private void writeObject(Object obj)
+                throws IOException, JSONException {
+            // check for circularity
+            if (includeId) {
+                if (objToId == null) {
+                    objToId = new IdentityTable(expectedSize(obj));
+                }
+                if (hasSeenAlready(obj)) return;
+            }
+
             if (obj instanceof Map) {
                 writeMap((Map)obj);
             } else if (obj instanceof Iterable) {
@@ -0,0 +1,289 @@
+package com.sun.json;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONException;
+
+/**
+ * Which properties of which beans the JSONSerializer writes.  By default every
+ * readable property is written, and the whole graph is walked.  A policy can
+ * <ul>
+ * <li>limit the depth: beans deeper than maxDepth are not written, so the
+ * navigation properties of beans at maxDepth are left out.  The beans in the
+ * root collection are at depth 1.</li>
+ * <li>exclude properties of a class and its subclasses.</li>
+ * <li>write many-to-one associations as foreign keys only: the navigation
+ * property is left out, and the related entity is identified by the foreign
+ * key property, which is written as any other data property.</li>
+ * <li>write large binary properties as references to a BlobStore, rather
+ * than inline as base64.</li>
+ * </ul>
+ * Navigation properties are those whose type is an entity or a collection.
+ * Once the entity classes are set, beans of other classes, e.g. components
+ * such as an Address, are part of the state of the bean that holds them, and
+ * are written as values; until then, every bean is a navigation.
+ * <p>
+ * The policy is compiled into a plan for each class when the class is first
+ * written, so it costs nothing per bean.  Set up a policy before it is used;
+ * a change clears the plans.  For a query that needs a variation, copy the
+ * policy with <code>new SerializationPolicy(policy)</code>.
+ *
+ * @author Steve
+ */
+public class SerializationPolicy {
+
+    /** Policy that writes every property of the whole graph.  Do not change it. */
+    public static final SerializationPolicy ALL = new SerializationPolicy();
+
+    private int maxDepth;
+    private final Map<Class, Set<String>> excluded;
+    /** navigations written as foreign keys; ALL_NAVIGATIONS means all the many-to-one navigations of the class */
+    private final Map<Class, Set<String>> foreignKeyOnly;
+    private static final String ALL_NAVIGATIONS = "*";
+    private final Map<Class, ClassPlan> plans;
+    private BlobStore blobStore;
+    private int blobThreshold;
+    private Set<Class> entityClasses;
+
+    public SerializationPolicy() {
+        this.excluded = new HashMap<Class, Set<String>>();
+        this.foreignKeyOnly = new HashMap<Class, Set<String>>();
+        this.plans = new ConcurrentHashMap<Class, ClassPlan>();
+    }
+
+    /**
+     * Make a copy of the policy, which can then be changed for one query.
+     * @param policy
+     */
+    public SerializationPolicy(SerializationPolicy policy) {
+        this();
+        this.maxDepth = policy.maxDepth;
+        this.blobStore = policy.blobStore;
+        this.blobThreshold = policy.blobThreshold;
+        this.entityClasses = policy.entityClasses;
+        for (Map.Entry<Class, Set<String>> e : policy.excluded.entrySet()) {
+            excluded.put(e.getKey(), new HashSet<String>(e.getValue()));
+        }
+        for (Map.Entry<Class, Set<String>> e : policy.foreignKeyOnly.entrySet()) {
+            foreignKeyOnly.put(e.getKey(), new HashSet<String>(e.getValue()));
+        }
+    }
+
+    /**
+     * @param maxDepth depth of the deepest beans to write, or 0 for no limit
+     * @return this
+     */
+    public SerializationPolicy maxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * @return depth of the deepest beans to write, or 0 for no limit
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Don't write the properties of the class or its subclasses.
+     * @param clazz
+     * @param propertyNames
+     * @return this
+     */
+    public SerializationPolicy exclude(Class clazz, String... propertyNames) {
+        add(excluded, clazz, propertyNames);
+        return this;
+    }
+
+    /**
+     * Write many-to-one navigations of the class or its subclasses as foreign keys only.
+     * @param clazz
+     * @param navigationNames names of the navigation properties, or none for all of them
+     * @return this
+     */
+    public SerializationPolicy foreignKeyOnly(Class clazz, String... navigationNames) {
+        add(foreignKeyOnly, clazz, navigationNames.length == 0 ?
+            new String[] { ALL_NAVIGATIONS } : navigationNames);
+        return this;
+    }
+
+    /**
+     * Write byte arrays of at least minLength bytes as references to the store,
+     * so the client fetches them only when they are needed.  Shorter ones are
+     * written inline as base64.
+     * @param store keeps the bytes, or null to write all byte arrays inline
+     * @param minLength length of the shortest byte array to put in the store
+     * @return this
+     */
+    public SerializationPolicy lazyBinary(BlobStore store, int minLength) {
+        this.blobStore = store;
+        this.blobThreshold = minLength;
+        return this;
+    }
+
+    /**
+     * Set the classes of the entities, so that properties holding beans of
+     * other classes, e.g. components, are written as values, even at maxDepth.
+     * @param classes mapped entity classes
+     * @return this
+     */
+    public SerializationPolicy entityClasses(Collection<Class> classes) {
+        this.entityClasses = new HashSet<Class>(classes);
+        plans.clear();
+        return this;
+    }
+
+    /**
+     * @return the entity classes, or null if they have not been set
+     */
+    public Set<Class> getEntityClasses() {
+        return entityClasses;
+    }
+
+    /**
+     * @return the store for large byte arrays, or null if they are written inline
+     */
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * @return length of the shortest byte array that is put in the blob store
+     */
+    public int getBlobThreshold() {
+        return blobThreshold;
+    }
+
+    private void add(Map<Class, Set<String>> map, Class clazz, String[] names) {
+        Set<String> set = map.get(clazz);
+        if (set == null) {
+            set = new HashSet<String>();
+            map.put(clazz, set);
+        }
+        set.addAll(Arrays.asList(names));
+        plans.clear();
+    }
+
+    /**
+     * @return the plan for writing beans of the class
+     */
+    ClassPlan plan(Class clazz) throws JSONException {
+        ClassPlan plan = plans.get(clazz);
+        if (plan == null) {
+            plan = compile(clazz);
+            plans.put(clazz, plan);
+        }
+        return plan;
+    }
+
+    private ClassPlan compile(Class clazz) throws JSONException {
+        BeanInfo binfo;
+        try {
+            binfo = Introspector.getBeanInfo(clazz);
+        } catch (IntrospectionException iexp) {
+            JSONException jexp = new JSONException(iexp.toString());
+            jexp.initCause(iexp);
+            throw jexp;
+        }
+        Set<String> excludedNames = namesFor(excluded, clazz);
+        Set<String> fkOnlyNames = namesFor(foreignKeyOnly, clazz);
+        boolean allFkOnly = fkOnlyNames != null && fkOnlyNames.contains(ALL_NAVIGATIONS);
+
+        List<String> names = new ArrayList<String>();
+        List<Method> getters = new ArrayList<Method>();
+        List<String> leafNames = new ArrayList<String>();
+        List<Method> leafGetters = new ArrayList<Method>();
+        for (PropertyDescriptor p : binfo.getPropertyDescriptors()) {
+            String name = p.getName();
+            Method method = p.getReadMethod();
+            if (name.equals("class") || method == null) continue;
+            if (excludedNames != null && excludedNames.contains(name)) continue;
+            Class type = p.getPropertyType();
+            boolean navigation = isNavigation(type);
+            if (navigation && isReference(type) && fkOnlyNames != null
+                    && (allFkOnly || fkOnlyNames.contains(name))) continue;
+            names.add(name);
+            getters.add(method);
+            if (!navigation) {
+                leafNames.add(name);
+                leafGetters.add(method);
+            }
+        }
+        ClassPlan leaf = null;
+        if (leafNames.size() < names.size()) {
+            leaf = new ClassPlan(leafNames.toArray(new String[leafNames.size()]),
+                    leafGetters.toArray(new Method[leafGetters.size()]), null);
+        }
+        return new ClassPlan(names.toArray(new String[names.size()]),
+                getters.toArray(new Method[getters.size()]), leaf);
+    }
+
+    /**
+     * @return true if the property is not written, because it was excluded for the class or a superclass
+     */
+    public boolean isExcluded(Class clazz, String propertyName) {
+        Set<String> names = namesFor(excluded, clazz);
+        return names != null && names.contains(propertyName);
+    }
+
+    /**
+     * @return the names registered for the class and its superclasses, or null if there are none
+     */
+    private static Set<String> namesFor(Map<Class, Set<String>> map, Class clazz) {
+        Set<String> names = null;
+        for (Map.Entry<Class, Set<String>> e : map.entrySet()) {
+            if (e.getKey().isAssignableFrom(clazz)) {
+                if (names == null) names = new HashSet<String>();
+                names.addAll(e.getValue());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return true if the type is a collection or an entity, rather than part of the state of its bean
+     */
+    private boolean isNavigation(Class type) {
+        if (isValueType(type)) return false;
+        if (!isReference(type) || entityClasses == null) return true;
+        for (Class entityClass : entityClasses) {
+            // the type may be a superclass of the entity
+            if (type.isAssignableFrom(entityClass)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if values of the type are written as JSON values rather than objects or arrays
+     */
+    private static boolean isValueType(Class type) {
+        return type.isPrimitive() || type.isEnum() || type == byte[].class
+            || Number.class.isAssignableFrom(type) || Boolean.class == type
+            || Character.class == type || String.class == type
+            || Date.class.isAssignableFrom(type) || UUID.class == type;
+    }
+
+    /**
+     * @return true if the navigation type is a single bean, rather than a collection
+     */
+    private static boolean isReference(Class type) {
+        return !(Iterable.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type)
+            || type.isArray() || type == Object.class);
+    }
+}
@@ -1,24 +1,38 @@
 package northwind.service;
 
+import java.io.InputStream;
+
 import javax.ws.rs.BeanParam;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.StreamingOutput;
 
 import northwind.model.Customer;
 import northwind.model.Order;
 
 import com.breezejs.OdataParameters;
+import com.breezejs.hib.BulkService;
 import com.breezejs.hib.QueryService;
 import com.breezejs.hib.SaveService;
 import com.breezejs.hib.StaticConfigurator;
+import com.breezejs.save.SaveReplayCache;
+import com.breezejs.util.BlobCache;
 import com.breezejs.util.Json;
+import com.sun.json.SerializationPolicy;
 
 /**
- * NorthBreeze service returning JSON.
+ * NorthBreeze service returning JSON.  Queries and saves are also available as CBOR,
+ * chosen by the Accept and Content-Type headers.
  * @author Steve
  * @see https://jersey.java.net/documentation/latest/jaxrs-resources.html
  */
@@ -27,13 +41,29 @@ import com.breezejs.util.Json;
 @Produces("application/json; charset=UTF-8")
 public class NorthBreeze {
 	
+	public static final String CBOR = "application/cbor";
+	
 	private QueryService queryService;
 	private SaveService saveService;
+	private BulkService bulkService;
 	private static String metadataJson; 
+	// results of recent saves that had an Idempotency-Key header, so client retries are not saved twice
+	private static SaveReplayCache replayCache = new SaveReplayCache(1000, 10 * 60 * 1000);
+	// images such as Employee.photo, fetched from Blobs/{token} when they are shown
+	private static BlobCache blobCache = new BlobCache("breeze/northbreeze/Blobs/", 64L << 20);
+	// for queries with $policy=lean: up to two levels of $expand, e.g. Order.orderDetails.product,
+	// but not the relations of the deepest entities; byte arrays of 4K or more as URLs in the blobCache.
+	// Other queries return the whole graph, with inline binary data, as Breeze clients expect
+	private static SerializationPolicy leanPolicy = new SerializationPolicy().maxDepth(3).lazyBinary(blobCache, 4096);
 	
 	public NorthBreeze() {
     	queryService = new QueryService(StaticConfigurator.getSessionFactory());
+    	queryService.addSerializationPolicy("lean", leanPolicy);
     	saveService = new SaveService(StaticConfigurator.getSessionFactory(), StaticConfigurator.getMetadata());
+    	saveService.setReplayCache(replayCache);
+    	saveService.setChangedPropertyUpdates(true);
+    	saveService.setBlobStore(blobCache);
+    	bulkService = new BulkService(StaticConfigurator.getSessionFactory(), StaticConfigurator.getMetadata());
 	}
 
 	@GET
@@ -47,21 +77,99 @@ public class NorthBreeze {
 	
 	@POST
 	@Path("SaveChanges")
-	public Response saveChanges(String saveBundle) {
-		return saveService.saveChanges(saveBundle);
+	public Response saveChanges(InputStream saveBundle, @HeaderParam("Idempotency-Key") String saveKey,
+			@Context SecurityContext security) {
+		return saveService.saveChanges(saveBundle, saveKey, security.getUserPrincipal());
+	}
+	
+	@POST
+	@Path("SaveChanges")
+	@Consumes(CBOR)
+	@Produces(CBOR)
+	public Response saveChangesCbor(InputStream saveBundle, @HeaderParam("Idempotency-Key") String saveKey,
+			@Context SecurityContext security) {
+		return saveService.saveChangesCbor(saveBundle, saveKey, security.getUserPrincipal());
 	}
 	
+	@POST
+	@Path("SaveChanges/Session")
+	public Response openSaveSession() {
+		return saveService.openSaveSession();
+	}
+	
+	@POST
+	@Path("SaveChanges/Session/{sessionId}/Chunk/{chunkIndex}")
+	public Response saveChunk(@PathParam("sessionId") String sessionId, @PathParam("chunkIndex") int chunkIndex, InputStream saveBundle) {
+		return saveService.saveChunk(sessionId, chunkIndex, saveBundle);
+	}
+	
+	@POST
+	@Path("SaveChanges/Session/{sessionId}/Commit")
+	public Response commitSaveSession(@PathParam("sessionId") String sessionId) {
+		return saveService.commitSaveSession(sessionId);
+	}
+	
+	@DELETE
+	@Path("SaveChanges/Session/{sessionId}")
+	public Response abortSaveSession(@PathParam("sessionId") String sessionId) {
+		return saveService.abortSaveSession(sessionId);
+	}
+	
+	@GET
+	@Path("Customers")
+	public StreamingOutput getCustomers(@BeanParam OdataParameters odataParameters) {
+		return query(Customer.class, odataParameters);
+	}
+
 	@GET
 	@Path("Customers")
-	public String getCustomers(@BeanParam OdataParameters odataParameters) {
-		return queryService.queryToJson(Customer.class, odataParameters);
+	@Produces(CBOR)
+	public StreamingOutput getCustomersCbor(@BeanParam OdataParameters odataParameters) {
+		return query(Customer.class, odataParameters, true);
 	}
 
 	@GET
 	@Path("Orders")
-	public String getOrders(@BeanParam OdataParameters odataParameters) {
-		return queryService.queryToJson(Order.class, odataParameters);
+	public StreamingOutput getOrders(@BeanParam OdataParameters odataParameters) {
+		return query(Order.class, odataParameters);
 	}	  
+	
+	@GET
+	@Path("Orders")
+	@Produces(CBOR)
+	public StreamingOutput getOrdersCbor(@BeanParam OdataParameters odataParameters) {
+		return query(Order.class, odataParameters, true);
+	}
+	
+	private StreamingOutput query(Class clazz, OdataParameters odataParameters) {
+		return query(clazz, odataParameters, false);
+	}
+	
+	/**
+	 * Run the query, so its errors produce an error response, and return output that streams the JSON or CBOR results
+	 */
+	private StreamingOutput query(Class clazz, OdataParameters odataParameters, boolean cbor) {
+		return queryService.queryToOutput(clazz, odataParameters, cbor);
+	}
+	
+	@GET
+	@Path("Blobs/{token}")
+	@Produces("application/octet-stream")
+	public Response getBlob(@PathParam("token") String token, @HeaderParam("Range") String range) {
+		return blobCache.getBlob(token, range);
+	}
+	
+	@POST
+	@Path("Orders/BulkDelete")
+	public Response bulkDeleteOrders(@BeanParam OdataParameters odataParameters) {
+		return bulkService.bulkDelete(Order.class, odataParameters.filter);
+	}
+	
+	@POST
+	@Path("Orders/BulkUpdate")
+	public Response bulkUpdateOrders(@BeanParam OdataParameters odataParameters, @QueryParam("versioned") boolean versioned, String values) {
+		return bulkService.bulkUpdate(Order.class, odataParameters.filter, values, versioned);
+	}
 	  
 	
 }
@@ -0,0 +1,112 @@
+package org.json;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Base64 encoding, as in RFC 4648 with padding, into a buffer supplied by the
+ * caller.  A byte array can be written as a JSON string a chunk at a time,
+ * so the encoded String is never made.  Also encodes and decodes whole
+ * Strings, for binary values that are read as JSON strings.
+ * @author Steve
+ */
+public final class Base64 {
+    private static final byte[] ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    // value of each character in the ALPHABET, or -1
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    /** Number of bytes encoded in each chunk; a multiple of 3 */
+    static final int CHUNK = 768;
+
+    private Base64() {
+    }
+
+    /**
+     * @return the length of the encoding of len bytes
+     */
+    static int encodedLength(int len) {
+        return (len + 2) / 3 * 4;
+    }
+
+    /**
+     * Encode src[from, to) into dst, starting at pos.  Padding is added if the
+     * length is not a multiple of 3, so only the last chunk may have such a length.
+     * @return the position in dst after the encoding
+     */
+    static int encode(byte[] src, int from, int to, byte[] dst, int pos) {
+        int i = from;
+        for (int end = to - 2; i < end; i += 3) {
+            int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+            dst[pos++] = ALPHABET[bits >>> 18];
+            dst[pos++] = ALPHABET[(bits >>> 12) & 0x3F];
+            dst[pos++] = ALPHABET[(bits >>> 6) & 0x3F];
+            dst[pos++] = ALPHABET[bits & 0x3F];
+        }
+        int rest = to - i;
+        if (rest > 0) {
+            int bits = (src[i] & 0xFF) << 16 | (rest == 2 ? (src[i + 1] & 0xFF) << 8 : 0);
+            dst[pos++] = ALPHABET[bits >>> 18];
+            dst[pos++] = ALPHABET[(bits >>> 12) & 0x3F];
+            dst[pos++] = rest == 2 ? ALPHABET[(bits >>> 6) & 0x3F] : (byte) '=';
+            dst[pos++] = '=';
+        }
+        return pos;
+    }
+
+    /**
+     * @return the encoding of the bytes, with padding
+     */
+    public static String encode(byte[] bytes) {
+        byte[] encoded = new byte[encodedLength(bytes.length)];
+        int n = encode(bytes, 0, bytes.length, encoded, 0);
+        return new String(encoded, 0, n, ASCII);
+    }
+
+    /**
+     * Decode a base64 string.  Whitespace is ignored, and the padding may be left out.
+     * @return the decoded bytes
+     * @throws IllegalArgumentException if the string has a character that is not
+     * in the alphabet, or a length that no encoding has
+     */
+    public static byte[] decode(String s) {
+        byte[] out = new byte[s.length() / 4 * 3 + 3];
+        int pos = 0;
+        int bits = 0;
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '=') break;
+            if (c <= ' ') continue;
+            int d = c < 128 ? DECODE[c] : -1;
+            if (d < 0) {
+                throw new IllegalArgumentException("Invalid base64 character '" + c + "' at " + i);
+            }
+            bits = bits << 6 | d;
+            if (++n == 4) {
+                out[pos++] = (byte) (bits >>> 16);
+                out[pos++] = (byte) (bits >>> 8);
+                out[pos++] = (byte) bits;
+                bits = 0;
+                n = 0;
+            }
+        }
+        if (n == 1) {
+            throw new IllegalArgumentException("Incomplete base64 string of length " + s.length());
+        } else if (n == 2) {
+            out[pos++] = (byte) (bits >>> 4);
+        } else if (n == 3) {
+            out[pos++] = (byte) (bits >>> 10);
+            out[pos++] = (byte) (bits >>> 2);
+        }
+        return pos == out.length ? out : Arrays.copyOf(out, pos);
+    }
+}
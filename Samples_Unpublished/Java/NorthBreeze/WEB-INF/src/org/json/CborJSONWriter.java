@@ -0,0 +1,387 @@
+package org.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * A JSONWriter that writes CBOR (RFC 7049) instead of JSON text. The same
+ * calls produce the same tree: objects become indefinite-length maps with
+ * text string keys, arrays become indefinite-length arrays, and values are
+ * written in their binary form, so numbers need no formatting or parsing.
+ * BigDecimals are written as decimal fractions (tag 4). Other values are
+ * written as strings, as JSONWriter would quote them.
+ * <p>
+ * Because it is a JSONWriter, it can be used by JSONSerializer, which keeps
+ * its $id and $ref handling. Read the result with CborPullParser.
+ * The caller must call <code>flush</code> after the last value.
+ * @author Steve
+ */
+public class CborJSONWriter extends JSONWriter {
+    private static final int maxdepth = 20;
+
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_BYTES = 2;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_TAG = 6;
+    static final int MAJOR_SIMPLE = 7;
+    static final int INDEFINITE = 31;
+    static final int BREAK = 0xFF;
+    static final int FALSE = 0xF4;
+    static final int TRUE = 0xF5;
+    static final int NULL = 0xF6;
+    static final int FLOAT64 = 0xFB;
+    static final int TAG_DECIMAL = 4;
+
+    private OutputStream out;
+    private byte[] buf;
+    private int pos;
+
+    private char stack[];
+    private int top;
+
+    /**
+     * Make a fresh CborJSONWriter with an 8K buffer. It can be used to build
+     * one CBOR item.
+     */
+    public CborJSONWriter(OutputStream out) {
+        this(out, 8192);
+    }
+
+    /**
+     * @param out receives the CBOR
+     * @param bufferSize size of the internal buffer; at least 32
+     */
+    public CborJSONWriter(OutputStream out, int bufferSize) {
+        super(null);
+        this.out = out;
+        this.buf = new byte[Math.max(bufferSize, 32)];
+        this.mode = 'i';
+        this.stack = new char[maxdepth];
+        this.top = 0;
+    }
+
+    /**
+     * Write the buffered bytes to the OutputStream, and flush it.
+     * @throws JSONException If the stream throws an IOException.
+     */
+    public void flush() throws JSONException {
+        drain();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
+
+    private void drain() throws JSONException {
+        if (pos > 0) {
+            try {
+                out.write(buf, 0, pos);
+            } catch (IOException e) {
+                throw new JSONException(e);
+            }
+            pos = 0;
+        }
+    }
+
+    private void ensure(int n) throws JSONException {
+        if (pos + n > buf.length) {
+            drain();
+        }
+    }
+
+    private void writeByte(int b) throws JSONException {
+        if (pos == buf.length) {
+            drain();
+        }
+        buf[pos++] = (byte) b;
+    }
+
+    /**
+     * Write the initial byte of an item, and its argument in the shortest form.
+     */
+    private void writeHead(int major, long arg) throws JSONException {
+        ensure(9);
+        int m = major << 5;
+        if (arg < 24) {
+            buf[pos++] = (byte) (m | (int) arg);
+        } else if (arg < 0x100) {
+            buf[pos++] = (byte) (m | 24);
+            buf[pos++] = (byte) arg;
+        } else if (arg < 0x10000) {
+            buf[pos++] = (byte) (m | 25);
+            buf[pos++] = (byte) (arg >> 8);
+            buf[pos++] = (byte) arg;
+        } else if (arg < 0x100000000L) {
+            buf[pos++] = (byte) (m | 26);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (arg >> shift);
+            }
+        } else {
+            buf[pos++] = (byte) (m | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (arg >> shift);
+            }
+        }
+    }
+
+    private void writeLong(long l) throws JSONException {
+        if (l >= 0) {
+            writeHead(MAJOR_UNSIGNED, l);
+        } else {
+            // -1 - l, which is never negative, even for Long.MIN_VALUE
+            writeHead(MAJOR_NEGATIVE, ~l);
+        }
+    }
+
+    private void writeDouble(double d) throws JSONException {
+        long bits = Double.doubleToLongBits(d);
+        ensure(9);
+        buf[pos++] = (byte) FLOAT64;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (bits >> shift);
+        }
+    }
+
+    /**
+     * Write a text string.  The length in UTF-8 bytes is needed first, so it is computed
+     * from the chars, and then the chars are encoded into the buffer.
+     */
+    private void writeText(String s) throws JSONException {
+        int len = s.length();
+        int bytes = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes += 1;
+            } else {
+                bytes += 3;
+            }
+        }
+        writeHead(MAJOR_TEXT, bytes);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            ensure(4);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void writeBigInteger(BigInteger b) throws JSONException {
+        if (b.bitLength() < 64) {
+            writeLong(b.longValue());
+        } else {
+            // too big for CBOR integers; keep the digits
+            writeText(b.toString());
+        }
+    }
+
+    private void writeDecimal(BigDecimal d) throws JSONException {
+        d = d.stripTrailingZeros();
+        if (d.scale() <= 0 && d.precision() - d.scale() < 19) {
+            writeLong(d.longValueExact());
+            return;
+        }
+        BigInteger mantissa = d.unscaledValue();
+        if (mantissa.bitLength() >= 64) {
+            writeText(d.toString());
+            return;
+        }
+        writeHead(MAJOR_TAG, TAG_DECIMAL);
+        writeHead(MAJOR_ARRAY, 2);
+        writeLong(-d.scale());
+        writeLong(mantissa.longValue());
+    }
+
+    private void beginValue() throws JSONException {
+        if (this.mode != 'o' && this.mode != 'a') {
+            throw new JSONException("Value out of sequence.");
+        }
+    }
+
+    private CborJSONWriter endValue() {
+        if (this.mode == 'o') {
+            this.mode = 'k';
+        }
+        return this;
+    }
+
+    public JSONWriter array() throws JSONException {
+        if (this.mode == 'i' || this.mode == 'o' || this.mode == 'a') {
+            this.push('a');
+            writeByte((MAJOR_ARRAY << 5) | INDEFINITE);
+            return this;
+        }
+        throw new JSONException("Misplaced array.");
+    }
+
+    private JSONWriter end(char m) throws JSONException {
+        if (this.mode != m) {
+            throw new JSONException(m == 'k' ? "Misplaced endObject." :
+                "Misplaced endArray.");
+        }
+        this.pop(m);
+        writeByte(BREAK);
+        return this;
+    }
+
+    public JSONWriter endArray() throws JSONException {
+        return this.end('a');
+    }
+
+    public JSONWriter endObject() throws JSONException {
+        return this.end('k');
+    }
+
+    public JSONWriter key(String s) throws JSONException {
+        if (s == null) {
+            throw new JSONException("Null key.");
+        }
+        if (this.mode == 'k') {
+            writeText(s);
+            this.mode = 'o';
+            return this;
+        }
+        throw new JSONException("Misplaced key.");
+    }
+
+    public JSONWriter object() throws JSONException {
+        if (this.mode == 'i') {
+            this.mode = 'o';
+        }
+        if (this.mode == 'o' || this.mode == 'a') {
+            if (this.mode == 'o') {
+                this.mode = 'k';
+            }
+            writeByte((MAJOR_MAP << 5) | INDEFINITE);
+            this.push('k');
+            return this;
+        }
+        throw new JSONException("Misplaced object.");
+    }
+
+    private void pop(char c) throws JSONException {
+        if (this.top <= 0 || this.stack[this.top - 1] != c) {
+            throw new JSONException("Nesting error.");
+        }
+        this.top -= 1;
+        this.mode = this.top == 0 ? 'd' : this.stack[this.top - 1];
+    }
+
+    private void push(char c) throws JSONException {
+        if (this.top >= maxdepth) {
+            throw new JSONException("Nesting too deep.");
+        }
+        this.stack[this.top] = c;
+        this.mode = c;
+        this.top += 1;
+    }
+
+    public JSONWriter value(boolean b) throws JSONException {
+        beginValue();
+        writeByte(b ? TRUE : FALSE);
+        return endValue();
+    }
+
+    public JSONWriter value(double d) throws JSONException {
+        return this.value(new Double(d));
+    }
+
+    public JSONWriter value(long l) throws JSONException {
+        beginValue();
+        writeLong(l);
+        return endValue();
+    }
+
+    public JSONWriter quotedValue(long l) throws JSONException {
+        if (l < 0) {
+            return super.quotedValue(l);
+        }
+        beginValue();
+        // the digits as a text string
+        int digits = 1;
+        for (long n = l / 10; n != 0; n /= 10) {
+            digits++;
+        }
+        writeHead(MAJOR_TEXT, digits);
+        ensure(digits);
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + (int) (l % 10));
+            l /= 10;
+        }
+        pos += digits;
+        return endValue();
+    }
+
+    /**
+     * Write the bytes as a CBOR byte string, rather than base64.
+     */
+    public JSONWriter binaryValue(byte[] bytes) throws JSONException {
+        return value((Object) bytes);
+    }
+
+    public JSONWriter value(Object o) throws JSONException {
+        beginValue();
+        if (o == null || o.equals(null)) {
+            writeByte(NULL);
+        } else if (o instanceof String) {
+            writeText((String) o);
+        } else if (o instanceof Integer || o instanceof Long
+                || o instanceof Short || o instanceof Byte) {
+            writeLong(((Number) o).longValue());
+        } else if (o instanceof Double || o instanceof Float) {
+            JSONObject.testValidity(o);
+            writeDouble(((Number) o).doubleValue());
+        } else if (o instanceof BigDecimal) {
+            writeDecimal((BigDecimal) o);
+        } else if (o instanceof BigInteger) {
+            writeBigInteger((BigInteger) o);
+        } else if (o instanceof Number) {
+            writeDouble(((Number) o).doubleValue());
+        } else if (o instanceof Boolean) {
+            writeByte(((Boolean) o).booleanValue() ? TRUE : FALSE);
+        } else if (o instanceof byte[]) {
+            byte[] bytes = (byte[]) o;
+            writeHead(MAJOR_BYTES, bytes.length);
+            drain();
+            try {
+                out.write(bytes);
+            } catch (IOException e) {
+                throw new JSONException(e);
+            }
+        } else {
+            writeText(o.toString());
+        }
+        return endValue();
+    }
+}
@@ -0,0 +1,456 @@
+package org.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+
+/**
+ * A JSONPullParser that reads CBOR (RFC 7049) from an InputStream, producing
+ * the same events as JSONPullParser does for the equivalent JSON.  Maps must
+ * have text string keys.  Byte strings are returned as base64 strings,
+ * decimal fractions (tag 4) as BigDecimals, and other tags are ignored.
+ * Both definite and indefinite lengths are accepted, so it reads what
+ * CborJSONWriter writes as well as what other encoders write.
+ * @author Steve
+ */
+public class CborPullParser extends JSONPullParser {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int maxdepth = 256;
+    private static final int bufferSize = 8 * 1024;
+    // longest string whose buffer is allocated before its bytes are read
+    private static final int MAX_PREALLOCATE = 64 * 1024;
+    private static final BigInteger TWO_64 = BigInteger.ONE.shiftLeft(64);
+
+    private InputStream in;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private long offset;
+
+    /**
+     * For each enclosing map or array, the number of items left, or -1 if
+     * the length is indefinite.  For maps, an item is a key/value pair.
+     */
+    private long[] remaining;
+    private boolean[] isMap;
+    private boolean expectKey;
+    private int top;
+    private boolean done;
+
+    private int event;
+    private String string;
+    private Number number;
+
+    /**
+     * @param in source of the CBOR.  It is not closed by the parser.
+     */
+    public CborPullParser(InputStream in) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+        this.remaining = new long[maxdepth];
+        this.isMap = new boolean[maxdepth];
+        this.event = -1;
+    }
+
+    /**
+     * @param bytes the CBOR
+     */
+    public CborPullParser(byte[] bytes) {
+        this.buf = bytes;
+        this.limit = bytes.length;
+        this.remaining = new long[maxdepth];
+        this.isMap = new boolean[maxdepth];
+        this.event = -1;
+    }
+
+    public int next() throws JSONException {
+        if (this.top == 0) {
+            if (this.done) {
+                return this.event = END_DOCUMENT;
+            }
+            this.done = true;
+            return readItem();
+        }
+        int t = this.top - 1;
+        if (this.isMap[t] && !this.expectKey) {
+            this.expectKey = true;
+            return readItem();
+        }
+        if (this.remaining[t] == 0 || (this.remaining[t] < 0 && peek() == CborJSONWriter.BREAK)) {
+            if (this.remaining[t] < 0) {
+                this.pos++;
+            }
+            this.top = t;
+            this.expectKey = t > 0 && this.isMap[t - 1];
+            return this.event = this.isMap[t] ? END_OBJECT : END_ARRAY;
+        }
+        if (this.remaining[t] > 0) {
+            this.remaining[t]--;
+        }
+        if (this.isMap[t]) {
+            this.expectKey = false;
+            int ib = read();
+            if (ib >> 5 != CborJSONWriter.MAJOR_TEXT) {
+                throw syntaxError("Expected a text string key");
+            }
+            this.string = readText(ib & 31);
+            return this.event = KEY;
+        }
+        return readItem();
+    }
+
+    public int getEvent() {
+        return this.event;
+    }
+
+    public int getDepth() {
+        return this.top;
+    }
+
+    public String getString() {
+        if (this.event == VALUE_NUMBER) {
+            return this.number.toString();
+        }
+        return this.string;
+    }
+
+    /**
+     * @return the current VALUE_NUMBER as an Integer or Long if it is an
+     * integer that fits, otherwise as a Double, BigInteger or BigDecimal
+     * @throws JSONException if the current token is not a number
+     */
+    public Number getNumber() throws JSONException {
+        if (this.event != VALUE_NUMBER) {
+            throw syntaxError("Expected a number");
+        }
+        return this.number;
+    }
+
+    public int getInt() throws JSONException {
+        return toInt(toLong(getNumber(), "int"));
+    }
+
+    public long getLong() throws JSONException {
+        return toLong(getNumber(), "long");
+    }
+
+    public double getDouble() throws JSONException {
+        return getNumber().doubleValue();
+    }
+
+    /**
+     * @return the current VALUE_NUMBER as a BigDecimal; a decimal fraction
+     * (tag 4) is returned exactly
+     */
+    public BigDecimal getBigDecimal() throws JSONException {
+        Number n = getNumber();
+        if (n instanceof BigDecimal) {
+            return (BigDecimal) n;
+        } else if (n instanceof BigInteger) {
+            return new BigDecimal((BigInteger) n);
+        } else if (n instanceof Double || n instanceof Float) {
+            return new BigDecimal(n.toString());
+        }
+        return BigDecimal.valueOf(n.longValue());
+    }
+
+    /**
+     * Make a printable string of this CborPullParser.
+     *
+     * @return " at byte [position]"
+     */
+    public String toString() {
+        return " at byte " + (this.offset + this.pos);
+    }
+
+    /**
+     * Read a data item that is a value, setting the event.
+     */
+    private int readItem() throws JSONException {
+        int ib = read();
+        int major = ib >> 5;
+        int info = ib & 31;
+        switch (major) {
+        case CborJSONWriter.MAJOR_UNSIGNED:
+            return setNumber(unsigned(readArgument(info)));
+        case CborJSONWriter.MAJOR_NEGATIVE:
+            long arg = readArgument(info);
+            if (arg < 0) {
+                // beyond the range of long
+                return setNumber(unsignedBig(arg).not());
+            }
+            return setNumber(narrow(-1 - arg));
+        case CborJSONWriter.MAJOR_BYTES:
+            this.string = Base64.encode(readBytes(CborJSONWriter.MAJOR_BYTES, info));
+            return this.event = VALUE_STRING;
+        case CborJSONWriter.MAJOR_TEXT:
+            this.string = readText(info);
+            return this.event = VALUE_STRING;
+        case CborJSONWriter.MAJOR_ARRAY:
+            push(false, info);
+            return this.event = START_ARRAY;
+        case CborJSONWriter.MAJOR_MAP:
+            push(true, info);
+            return this.event = START_OBJECT;
+        case CborJSONWriter.MAJOR_TAG:
+            return readTagged(readArgument(info));
+        default:
+            return readSimple(info);
+        }
+    }
+
+    private int readTagged(long tag) throws JSONException {
+        if (tag == CborJSONWriter.TAG_DECIMAL) {
+            if (read() != ((CborJSONWriter.MAJOR_ARRAY << 5) | 2)) {
+                throw syntaxError("Expected a decimal fraction");
+            }
+            int exponent = readInteger().intValue();
+            BigInteger mantissa = readInteger();
+            return setNumber(new BigDecimal(mantissa, -exponent));
+        }
+        if (tag == 2 || tag == 3) {
+            // bignum
+            int ib = read();
+            if (ib >> 5 != CborJSONWriter.MAJOR_BYTES) {
+                throw syntaxError("Expected a bignum");
+            }
+            BigInteger b = new BigInteger(1, readBytes(CborJSONWriter.MAJOR_BYTES, ib & 31));
+            return setNumber(tag == 2 ? b : b.not());
+        }
+        return readItem();
+    }
+
+    private int readSimple(int info) throws JSONException {
+        switch (info) {
+        case 20:
+            return this.event = VALUE_FALSE;
+        case 21:
+            return this.event = VALUE_TRUE;
+        case 22:
+        case 23:
+            return this.event = VALUE_NULL;
+        case 25:
+            return setNumber(new Double(halfToDouble((int) readUnsigned(2))));
+        case 26:
+            return setNumber(new Double(Float.intBitsToFloat((int) readUnsigned(4))));
+        case 27:
+            return setNumber(new Double(Double.longBitsToDouble(readUnsigned(8))));
+        case 31:
+            throw syntaxError("Unexpected break");
+        default:
+            throw syntaxError("Unsupported simple value " + info);
+        }
+    }
+
+    private int setNumber(Number n) {
+        this.number = n;
+        return this.event = VALUE_NUMBER;
+    }
+
+    /**
+     * Read an integer item, as used in a decimal fraction.
+     */
+    private BigInteger readInteger() throws JSONException {
+        int ib = read();
+        int major = ib >> 5;
+        long arg = readArgument(ib & 31);
+        if (major == CborJSONWriter.MAJOR_UNSIGNED) {
+            return unsignedBig(arg);
+        } else if (major == CborJSONWriter.MAJOR_NEGATIVE) {
+            return unsignedBig(arg).not();
+        } else if (major == CborJSONWriter.MAJOR_TAG && (arg == 2 || arg == 3)) {
+            ib = read();
+            BigInteger b = new BigInteger(1, readBytes(CborJSONWriter.MAJOR_BYTES, ib & 31));
+            return arg == 2 ? b : b.not();
+        }
+        throw syntaxError("Expected an integer");
+    }
+
+    private static BigInteger unsignedBig(long arg) {
+        BigInteger b = BigInteger.valueOf(arg);
+        return arg < 0 ? b.add(TWO_64) : b;
+    }
+
+    private static Number unsigned(long arg) {
+        return arg < 0 ? (Number) unsignedBig(arg) : narrow(arg);
+    }
+
+    /**
+     * @return an Integer if the long fits, as in JSONPullParser.getNumber
+     */
+    private static Number narrow(long l) {
+        if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+            return new Integer((int) l);
+        }
+        return new Long(l);
+    }
+
+    private static double halfToDouble(int half) {
+        int exp = (half >> 10) & 0x1F;
+        int mant = half & 0x3FF;
+        double val;
+        if (exp == 0) {
+            val = mant * Math.pow(2, -24);
+        } else if (exp != 31) {
+            val = (mant + 1024) * Math.pow(2, exp - 25);
+        } else {
+            val = mant == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return (half & 0x8000) != 0 ? -val : val;
+    }
+
+    private void push(boolean map, int info) throws JSONException {
+        if (this.top >= maxdepth) {
+            throw syntaxError("Nesting too deep.");
+        }
+        this.remaining[this.top] = info == 31 ? -1 : readArgument(info);
+        this.isMap[this.top] = map;
+        this.top += 1;
+        this.expectKey = map;
+    }
+
+    /**
+     * Read the argument that follows the initial byte.
+     * @return the argument; it is negative if it is larger than Long.MAX_VALUE
+     */
+    private long readArgument(int info) throws JSONException {
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+        case 24:
+            return readUnsigned(1);
+        case 25:
+            return readUnsigned(2);
+        case 26:
+            return readUnsigned(4);
+        case 27:
+            return readUnsigned(8);
+        default:
+            throw syntaxError("Bad length");
+        }
+    }
+
+    private long readUnsigned(int bytes) throws JSONException {
+        long l = 0;
+        for (int i = 0; i < bytes; i++) {
+            l = (l << 8) | read();
+        }
+        return l;
+    }
+
+    private String readText(int info) throws JSONException {
+        if (info != 31) {
+            int len = length(readArgument(info));
+            if (this.pos + len <= this.limit) {
+                // usual case: decode in place
+                String s = new String(this.buf, this.pos, len, UTF8);
+                this.pos += len;
+                return s;
+            }
+        }
+        return new String(readBytes(CborJSONWriter.MAJOR_TEXT, info), UTF8);
+    }
+
+    /**
+     * Read the content of a byte or text string, joining the chunks if its length is indefinite.
+     * The length is declared by the sender, so a buffer of more than MAX_PREALLOCATE is not made
+     * for it up front; a longer string is collected as its bytes arrive.
+     */
+    private byte[] readBytes(int major, int info) throws JSONException {
+        if (info != 31) {
+            int len = length(readArgument(info));
+            if (len <= MAX_PREALLOCATE) {
+                byte[] bytes = new byte[len];
+                readFully(bytes);
+                return bytes;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_PREALLOCATE);
+            readFully(bytes, len);
+            return bytes.toByteArray();
+        }
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        for (;;) {
+            int ib = read();
+            if (ib == CborJSONWriter.BREAK) {
+                return chunks.toByteArray();
+            }
+            if (ib >> 5 != major || (ib & 31) == 31) {
+                throw syntaxError("Bad string chunk");
+            }
+            readFully(chunks, length(readArgument(ib & 31)));
+        }
+    }
+
+    private int length(long arg) throws JSONException {
+        if (arg < 0 || arg > Integer.MAX_VALUE) {
+            throw syntaxError("String too long");
+        }
+        return (int) arg;
+    }
+
+    private void readFully(byte[] bytes) throws JSONException {
+        int n = 0;
+        while (n < bytes.length) {
+            if (this.pos >= this.limit && !fill()) {
+                throw syntaxError("Unexpected end of input");
+            }
+            int count = Math.min(bytes.length - n, this.limit - this.pos);
+            System.arraycopy(this.buf, this.pos, bytes, n, count);
+            this.pos += count;
+            n += count;
+        }
+    }
+
+    /**
+     * Copy len bytes of input to the stream, which grows only as they arrive
+     */
+    private void readFully(ByteArrayOutputStream out, int len) throws JSONException {
+        while (len > 0) {
+            if (this.pos >= this.limit && !fill()) {
+                throw syntaxError("Unexpected end of input");
+            }
+            int count = Math.min(len, this.limit - this.pos);
+            out.write(this.buf, this.pos, count);
+            this.pos += count;
+            len -= count;
+        }
+    }
+
+    private int peek() throws JSONException {
+        if (this.pos >= this.limit && !fill()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return this.buf[this.pos] & 0xFF;
+    }
+
+    private int read() throws JSONException {
+        int b = peek();
+        this.pos++;
+        return b;
+    }
+
+    private boolean fill() throws JSONException {
+        if (this.in == null) {
+            return false;
+        }
+        try {
+            this.offset += this.limit;
+            this.pos = 0;
+            this.limit = 0;
+            int n = this.in.read(this.buf, 0, this.buf.length);
+            if (n <= 0) {
+                this.in = null;
+                return false;
+            }
+            this.limit = n;
+            return true;
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
+}
@@ -0,0 +1,755 @@
+package org.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Copyright (c) 2002 JSON.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+The Software shall be used for Good, not Evil.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+/**
+ * A JSONPullParser reads JSON text from a Reader one token at a time.
+ * Unlike JSONTokener, it does not need the whole source in memory: characters
+ * are read through a fixed-size buffer that is refilled as needed, and the
+ * caller decides for each value whether to materialize it (<code>readValue</code>),
+ * skip it (<code>skipValue</code>), or walk its tokens with <code>next</code>.
+ * <p>
+ * Typical use: <pre>
+ * JSONPullParser p = new JSONPullParser(reader);
+ * p.next();                       // START_OBJECT
+ * while (p.next() == JSONPullParser.KEY) {
+ *     String name = p.getString();
+ *     p.next();                   // move to the value
+ *     Object value = p.readValue();
+ * }</pre>
+ * The same lenient forms accepted by JSONTokener (single-quoted strings,
+ * comments, unquoted text) are accepted here.
+ * @author JSON.org
+ * @version 2
+ */
+public class JSONPullParser {
+
+    public static final int END_DOCUMENT = 0;
+    public static final int START_OBJECT = 1;
+    public static final int END_OBJECT = 2;
+    public static final int START_ARRAY = 3;
+    public static final int END_ARRAY = 4;
+    public static final int KEY = 5;
+    public static final int VALUE_STRING = 6;
+    public static final int VALUE_NUMBER = 7;
+    public static final int VALUE_TRUE = 8;
+    public static final int VALUE_FALSE = 9;
+    public static final int VALUE_NULL = 10;
+
+    private static final int maxdepth = 256;
+    private static final int bufferSize = 8 * 1024;
+
+    // parser states: what is allowed at the next call to next()
+    private static final int S_VALUE = 0;      // root value
+    private static final int S_DONE = 1;       // root value complete
+    private static final int S_OBJ_FIRST = 2;  // after '{': key or '}'
+    private static final int S_OBJ_KEY = 3;    // after ',': key
+    private static final int S_OBJ_COLON = 4;  // after key: ':' and value
+    private static final int S_OBJ_NEXT = 5;   // after value: ',' or '}'
+    private static final int S_ARR_FIRST = 6;  // after '[': value or ']'
+    private static final int S_ARR_VALUE = 7;  // after ',': value
+    private static final int S_ARR_NEXT = 8;   // after value: ',' or ']'
+
+    /**
+     * The reader supplying the text, or null if the whole text is in buf.
+     */
+    private Reader reader;
+
+    /**
+     * The character buffer, and the bounds of the unread characters in it.
+     */
+    private char[] buf;
+    private int pos;
+    private int limit;
+
+    /**
+     * Number of characters consumed before buf[0], for error messages.
+     */
+    private long offset;
+
+    /**
+     * The text of the current KEY, string or number.  Reused between tokens.
+     */
+    private char[] text;
+    private int textLength;
+
+    /**
+     * The object/array stack.
+     */
+    private char[] stack;
+    private int top;
+
+    private int state;
+    private int event;
+
+    /**
+     * Construct a JSONPullParser reading from the given Reader.
+     * @param reader source of the JSON text.  It is not closed by the parser.
+     */
+    public JSONPullParser(Reader reader) {
+        this.reader = reader;
+        this.buf = new char[bufferSize];
+        this.text = new char[64];
+        this.stack = new char[maxdepth];
+        this.event = -1;
+    }
+
+    /**
+     * Construct a JSONPullParser for a subclass that reads another encoding
+     * of the same tokens, e.g. CborPullParser.  The subclass must override
+     * next, getEvent, getDepth, getString, getNumber, and the typed number
+     * getters getInt, getLong, getDouble and getBigDecimal.
+     */
+    protected JSONPullParser() {
+    }
+
+    /**
+     * Construct a JSONPullParser from a string.
+     * @param s A source string.
+     */
+    public JSONPullParser(String s) {
+        this.buf = s.toCharArray();
+        this.limit = this.buf.length;
+        this.text = new char[64];
+        this.stack = new char[maxdepth];
+        this.event = -1;
+    }
+
+    /**
+     * Advance to the next token.
+     * @return the event for the token: one of the START_, END_, KEY or VALUE_ constants.
+     * @throws JSONException If syntax error.
+     */
+    public int next() throws JSONException {
+        char c;
+        for (;;) {
+            switch (this.state) {
+            case S_DONE:
+                if (nextClean() != 0) {
+                    throw syntaxError("Unexpected text after the end of the JSON value");
+                }
+                return this.event = END_DOCUMENT;
+            case S_OBJ_FIRST:
+            case S_OBJ_KEY:
+                c = nextClean();
+                if (c == '}') {
+                    return endContainer('k');
+                }
+                if (c != '"' && c != '\'') {
+                    throw syntaxError("Expected a key");
+                }
+                readString(c);
+                this.state = S_OBJ_COLON;
+                return this.event = KEY;
+            case S_OBJ_COLON:
+                c = nextClean();
+                if (c == '=') {
+                    if (read() != '>') {
+                        back();
+                    }
+                } else if (c != ':') {
+                    throw syntaxError("Expected a ':' after a key");
+                }
+                return startValue(nextClean());
+            case S_OBJ_NEXT:
+                c = nextClean();
+                if (c == ',' || c == ';') {
+                    this.state = S_OBJ_KEY;
+                    continue;
+                }
+                if (c == '}') {
+                    return endContainer('k');
+                }
+                throw syntaxError("Expected a ',' or '}'");
+            case S_ARR_FIRST:
+            case S_ARR_VALUE:
+                c = nextClean();
+                if (c == ']') {
+                    return endContainer('a');
+                }
+                return startValue(c);
+            case S_ARR_NEXT:
+                c = nextClean();
+                if (c == ',' || c == ';') {
+                    this.state = S_ARR_VALUE;
+                    continue;
+                }
+                if (c == ']') {
+                    return endContainer('a');
+                }
+                throw syntaxError("Expected a ',' or ']'");
+            default:
+                return startValue(nextClean());
+            }
+        }
+    }
+
+    /**
+     * @return the event returned by the last call to next()
+     */
+    public int getEvent() {
+        return this.event;
+    }
+
+    /**
+     * @return the number of objects and arrays enclosing the current token
+     */
+    public int getDepth() {
+        return this.top;
+    }
+
+    /**
+     * @return the text of the current KEY, VALUE_STRING or VALUE_NUMBER
+     */
+    public String getString() {
+        return new String(this.text, 0, this.textLength);
+    }
+
+    /**
+     * Get the current VALUE_NUMBER as an Integer, Long or Double, whichever
+     * is the narrowest type that holds it.  This matches JSONTokener.nextValue.
+     * @return the number
+     * @throws JSONException if the current token is not a number
+     */
+    public Number getNumber() throws JSONException {
+        if (getEvent() != VALUE_NUMBER) {
+            throw syntaxError("Expected a number");
+        }
+        if (isWhole() && fitsLong()) {
+            long l = parseWhole();
+            if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+                return new Integer((int) l);
+            }
+            return new Long(l);
+        }
+        return new Double(parseDouble());
+    }
+
+    /**
+     * Get the current VALUE_NUMBER as an int.  A whole number is parsed from
+     * the characters, without making a String or a boxed number; a fraction
+     * is truncated toward zero.
+     * @return the number
+     * @throws JSONException if the current token is not a number, or is
+     * outside the range of an int
+     */
+    public int getInt() throws JSONException {
+        return toInt(readLong("int"));
+    }
+
+    /**
+     * Get the current VALUE_NUMBER as a long.  A whole number is parsed from
+     * the characters, without making a String or a boxed number; a fraction
+     * is truncated toward zero.
+     * @return the number
+     * @throws JSONException if the current token is not a number, or is
+     * outside the range of a long
+     */
+    public long getLong() throws JSONException {
+        return readLong("long");
+    }
+
+    /**
+     * Get the current VALUE_NUMBER as a double, without making a boxed number.
+     * @return the number
+     * @throws JSONException if the current token is not a number
+     */
+    public double getDouble() throws JSONException {
+        checkNumber();
+        return isWhole() && fitsLong() ? (double) parseWhole() : parseDouble();
+    }
+
+    /**
+     * Get the current VALUE_NUMBER as a BigDecimal, parsed exactly from the
+     * characters, e.g. for money values that a double cannot hold.
+     * @return the number
+     * @throws JSONException if the current token is not a number
+     */
+    public BigDecimal getBigDecimal() throws JSONException {
+        checkNumber();
+        try {
+            return new BigDecimal(this.text, 0, this.textLength);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Bad number " + getString());
+        }
+    }
+
+    /**
+     * @param type name of the type being read, for the error message
+     */
+    private long readLong(String type) throws JSONException {
+        checkNumber();
+        if (isWhole()) {
+            if (!fitsLong()) {
+                throw outOfRange(type);
+            }
+            return parseWhole();
+        }
+        return toLong(parseDouble(), type);
+    }
+
+    /**
+     * Convert a number read by a subclass to a long, truncating a fraction
+     * toward zero, as getLong does.
+     * @param type name of the type being read, for the error message
+     * @throws JSONException if it is outside the range of a long
+     */
+    protected long toLong(Number n, String type) throws JSONException {
+        if (n instanceof BigInteger || n instanceof BigDecimal) {
+            BigInteger whole = n instanceof BigInteger ? (BigInteger) n
+                : ((BigDecimal) n).setScale(0, RoundingMode.DOWN).toBigInteger();
+            if (whole.bitLength() > 63) {
+                throw outOfRange(type);
+            }
+            return whole.longValue();
+        } else if (n instanceof Double || n instanceof Float) {
+            return toLong(n.doubleValue(), type);
+        }
+        return n.longValue();
+    }
+
+    /**
+     * @throws JSONException if the value is outside the range of an int
+     */
+    protected int toInt(long l) throws JSONException {
+        if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) {
+            throw outOfRange("int");
+        }
+        return (int) l;
+    }
+
+    private long toLong(double d, String type) throws JSONException {
+        // 2^63 is the first double above Long.MAX_VALUE; NaN fails both tests
+        if (!(d < 9.223372036854775807E18 && d >= -9.223372036854775808E18)) {
+            throw outOfRange(type);
+        }
+        return (long) d;
+    }
+
+    private JSONException outOfRange(String type) {
+        return syntaxError("Number " + getString() + " is out of range for " + type);
+    }
+
+    private void checkNumber() throws JSONException {
+        if (getEvent() != VALUE_NUMBER) {
+            throw syntaxError("Expected a number");
+        }
+    }
+
+    /**
+     * @return true if the text is a whole number: digits, with an optional sign
+     */
+    private boolean isWhole() {
+        boolean isWhole = true;
+        for (int i = 0; i < this.textLength && isWhole; i++) {
+            char c = this.text[i];
+            isWhole = (c >= '0' && c <= '9') || (i == 0 && (c == '-' || c == '+'));
+        }
+        return isWhole;
+    }
+
+    /**
+     * @return true if the whole number fits in a long: up to 19 digits,
+     * after any leading zeros, and no more than Long.MAX_VALUE or MIN_VALUE
+     */
+    private boolean fitsLong() {
+        boolean negative = this.textLength > 0 && this.text[0] == '-';
+        int i = this.textLength > 0 && (negative || this.text[0] == '+') ? 1 : 0;
+        while (i < this.textLength - 1 && this.text[i] == '0') {
+            i++;
+        }
+        int digits = this.textLength - i;
+        if (digits != 19) {
+            return digits < 19;
+        }
+        String limit = negative ? "9223372036854775808" : "9223372036854775807";
+        for (int j = 0; j < 19; j++) {
+            char c = this.text[i + j];
+            char d = limit.charAt(j);
+            if (c != d) {
+                return c < d;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse a whole number that fitsLong.  The digits are accumulated as a
+     * negative number, which can hold Long.MIN_VALUE.
+     */
+    private long parseWhole() throws JSONException {
+        int i = 0;
+        boolean negative = false;
+        char c = this.text[0];
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            i = 1;
+        }
+        if (i == this.textLength) {
+            throw syntaxError("Bad number " + getString());
+        }
+        long l = 0;
+        for (; i < this.textLength; i++) {
+            l = l * 10 - (this.text[i] - '0');
+        }
+        return negative ? l : -l;
+    }
+
+    private double parseDouble() throws JSONException {
+        String s = getString();
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Bad number " + s);
+        }
+    }
+
+    /**
+     * Materialize the value at the current token, leaving the parser positioned
+     * at its last token.  Objects become HashMaps and arrays become ArrayLists,
+     * as in JSONDeserializer.read(String); JSON null becomes Java null.
+     * @return the value
+     * @throws JSONException If syntax error.
+     */
+    public Object readValue() throws JSONException {
+        switch (getEvent()) {
+        case START_OBJECT:
+            Map map = new HashMap();
+            while (next() == KEY) {
+                String key = getString();
+                next();
+                map.put(key, readValue());
+            }
+            return map;
+        case START_ARRAY:
+            List list = new ArrayList();
+            while (next() != END_ARRAY) {
+                list.add(readValue());
+            }
+            return list;
+        case VALUE_STRING:
+            return getString();
+        case VALUE_NUMBER:
+            return getNumber();
+        case VALUE_TRUE:
+            return Boolean.TRUE;
+        case VALUE_FALSE:
+            return Boolean.FALSE;
+        case VALUE_NULL:
+            return null;
+        default:
+            throw syntaxError("Expected a value");
+        }
+    }
+
+    /**
+     * Skip the value at the current token, leaving the parser positioned at its last token.
+     * @throws JSONException If syntax error.
+     */
+    public void skipValue() throws JSONException {
+        int event = getEvent();
+        if (event == START_OBJECT || event == START_ARRAY) {
+            int depth = getDepth() - 1;
+            while (getDepth() > depth) {
+                if (next() == END_DOCUMENT) {
+                    throw syntaxError("Unexpected end of input");
+                }
+            }
+        } else if (event == KEY || event == END_OBJECT || event == END_ARRAY) {
+            throw syntaxError("Expected a value");
+        }
+    }
+
+    /**
+     * Make a JSONException to signal a syntax error.
+     *
+     * @param message The error message.
+     * @return  A JSONException object, suitable for throwing
+     */
+    public JSONException syntaxError(String message) {
+        return new JSONException(message + toString());
+    }
+
+    /**
+     * Make a printable string of this JSONPullParser.
+     *
+     * @return " at character [position]"
+     */
+    public String toString() {
+        return " at character " + (this.offset + this.pos);
+    }
+
+    private int startValue(char c) throws JSONException {
+        switch (c) {
+        case 0:
+            throw syntaxError("Unexpected end of input");
+        case '{':
+            push('k');
+            this.state = S_OBJ_FIRST;
+            return this.event = START_OBJECT;
+        case '[':
+            push('a');
+            this.state = S_ARR_FIRST;
+            return this.event = START_ARRAY;
+        case '"':
+        case '\'':
+            readString(c);
+            valueDone();
+            return this.event = VALUE_STRING;
+        }
+
+        /*
+         * Handle unquoted text. This could be the values true, false, or
+         * null, or it can be a number.
+         */
+        this.textLength = 0;
+        while (c > ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
+            append(c);
+            c = read();
+        }
+        if (c != 0) {
+            back();
+        }
+        if (this.textLength == 0) {
+            throw syntaxError("Missing value.");
+        }
+        valueDone();
+        char b = this.text[0];
+        if (isWord("true")) {
+            return this.event = VALUE_TRUE;
+        }
+        if (isWord("false")) {
+            return this.event = VALUE_FALSE;
+        }
+        if (isWord("null")) {
+            return this.event = VALUE_NULL;
+        }
+        if ((b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+') {
+            return this.event = VALUE_NUMBER;
+        }
+        return this.event = VALUE_STRING;
+    }
+
+    private boolean isWord(String word) {
+        if (this.textLength != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < this.textLength; i++) {
+            if (Character.toLowerCase(this.text[i]) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int endContainer(char m) throws JSONException {
+        if (this.top <= 0 || this.stack[this.top - 1] != m) {
+            throw syntaxError("Nesting error.");
+        }
+        this.top -= 1;
+        valueDone();
+        return this.event = (m == 'k') ? END_OBJECT : END_ARRAY;
+    }
+
+    private void valueDone() {
+        if (this.top == 0) {
+            this.state = S_DONE;
+        } else {
+            this.state = this.stack[this.top - 1] == 'k' ? S_OBJ_NEXT : S_ARR_NEXT;
+        }
+    }
+
+    private void push(char c) throws JSONException {
+        if (this.top >= maxdepth) {
+            throw syntaxError("Nesting too deep.");
+        }
+        this.stack[this.top] = c;
+        this.top += 1;
+    }
+
+    private void append(char c) {
+        if (this.textLength == this.text.length) {
+            char[] newText = new char[this.text.length * 2];
+            System.arraycopy(this.text, 0, newText, 0, this.textLength);
+            this.text = newText;
+        }
+        this.text[this.textLength++] = c;
+    }
+
+    /**
+     * Read a quoted string into the text buffer.  Backslash processing is done.
+     * @param quote The quoting character.
+     */
+    private void readString(char quote) throws JSONException {
+        this.textLength = 0;
+        for (;;) {
+            char c = read();
+            switch (c) {
+            case 0:
+            case '\n':
+            case '\r':
+                throw syntaxError("Unterminated string");
+            case '\\':
+                c = read();
+                switch (c) {
+                case 'b':
+                    append('\b');
+                    break;
+                case 't':
+                    append('\t');
+                    break;
+                case 'n':
+                    append('\n');
+                    break;
+                case 'f':
+                    append('\f');
+                    break;
+                case 'r':
+                    append('\r');
+                    break;
+                case 'u':
+                    append((char) readHex(4));
+                    break;
+                case 'x':
+                    append((char) readHex(2));
+                    break;
+                default:
+                    append(c);
+                }
+                break;
+            default:
+                if (c == quote) {
+                    return;
+                }
+                append(c);
+            }
+        }
+    }
+
+    private int readHex(int digits) throws JSONException {
+        int value = 0;
+        for (int i = 0; i < digits; i++) {
+            int h = JSONTokener.dehexchar(read());
+            if (h < 0) {
+                throw syntaxError("Illegal escape.");
+            }
+            value = (value << 4) | h;
+        }
+        return value;
+    }
+
+    /**
+     * Get the next char, skipping whitespace and comments (slashslash, slashstar, and hash).
+     * @return  A character, or 0 if there are no more characters.
+     */
+    private char nextClean() throws JSONException {
+        for (;;) {
+            char c = read();
+            if (c == '/') {
+                switch (read()) {
+                case '/':
+                    do {
+                        c = read();
+                    } while (c != '\n' && c != '\r' && c != 0);
+                    break;
+                case '*':
+                    for (;;) {
+                        c = read();
+                        if (c == 0) {
+                            throw syntaxError("Unclosed comment.");
+                        }
+                        if (c == '*') {
+                            if (read() == '/') {
+                                break;
+                            }
+                            back();
+                        }
+                    }
+                    break;
+                default:
+                    back();
+                    return '/';
+                }
+            } else if (c == '#') {
+                do {
+                    c = read();
+                } while (c != '\n' && c != '\r' && c != 0);
+            } else if (c == 0 || c > ' ') {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Get the next character, refilling the buffer from the reader when it is exhausted.
+     * @return The next character, or 0 at the end of the input.
+     */
+    private char read() throws JSONException {
+        if (this.pos >= this.limit && !fill()) {
+            return 0;
+        }
+        return this.buf[this.pos++];
+    }
+
+    /**
+     * Back up one character.  Only valid directly after a read() that returned a character,
+     * which is always still in the buffer.
+     */
+    private void back() {
+        if (this.pos > 0) {
+            this.pos -= 1;
+        }
+    }
+
+    private boolean fill() throws JSONException {
+        if (this.reader == null) {
+            return false;
+        }
+        try {
+            this.offset += this.limit;
+            this.pos = 0;
+            this.limit = 0;
+            int n = this.reader.read(this.buf, 0, this.buf.length);
+            if (n <= 0) {
+                this.reader = null;
+                return false;
+            }
+            this.limit = n;
+            return true;
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
+}
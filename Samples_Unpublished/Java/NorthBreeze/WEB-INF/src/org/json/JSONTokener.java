@@ -1,5 +1,11 @@
 package org.json;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
 /*
 Copyright (c) 2002 JSON.org
 
@@ -28,23 +34,56 @@ SOFTWARE.
  * A JSONTokener takes a source string and extracts characters and tokens from
  * it. It is used by the JSONObject and JSONArray constructors to parse
  * JSON source strings.
+ * <p>
+ * The source can also be a Reader or InputStream, which is read through a
+ * fixed-size buffer that is refilled as needed, so the whole text is never
+ * held in memory.  For a token-by-token (pull) API, see JSONPullParser.
  * @author JSON.org
  * @version 2
  */
 public class JSONTokener {
 
+    private static final int bufferSize = 8 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     /**
-     * The index of the next character.
+     * The index of the next character in myBuffer.
      */
     private int myIndex;
 
 
     /**
-     * The source string being tokenized.
+     * The source string being tokenized, or null if it is read from a Reader.
      */
     private String mySource;
 
 
+    /**
+     * The reader supplying the text, or null if all of it is in myBuffer.
+     */
+    private Reader myReader;
+
+
+    /**
+     * The characters read so far that are still needed, and the number of them.
+     */
+    private char[] myBuffer;
+    private int myLimit;
+
+
+    /**
+     * Number of characters dropped before myBuffer[0], for error messages.
+     */
+    private long myOffset;
+
+
+    /**
+     * Index of the first character that must be kept when the buffer is
+     * refilled, so skipTo can return to it; -1 if there is none.
+     */
+    private int myMark;
+
+
     /**
      * Construct a JSONTokener from a string.
      *
@@ -53,6 +92,32 @@ public class JSONTokener {
     public JSONTokener(String s) {
         this.myIndex = 0;
         this.mySource = s;
+        this.myBuffer = s.toCharArray();
+        this.myLimit = this.myBuffer.length;
+        this.myMark = -1;
+    }
+
+
+    /**
+     * Construct a JSONTokener from a Reader.
+     *
+     * @param reader A source of JSON text.  It is not closed by the tokener.
+     */
+    public JSONTokener(Reader reader) {
+        this.myIndex = 0;
+        this.myReader = reader;
+        this.myBuffer = new char[bufferSize];
+        this.myMark = -1;
+    }
+
+
+    /**
+     * Construct a JSONTokener from an InputStream.
+     *
+     * @param in A source of UTF-8 encoded JSON text.
+     */
+    public JSONTokener(InputStream in) {
+        this(new InputStreamReader(in, UTF8));
     }
 
 
@@ -95,7 +160,7 @@ public class JSONTokener {
      * @return true if not yet at the end of the source.
      */
     public boolean more() {
-        return this.myIndex < this.mySource.length();
+        return this.myIndex < this.myLimit || fill();
     }
 
 
@@ -106,7 +171,7 @@ public class JSONTokener {
      */
     public char next() {
         if (more()) {
-            char c = this.mySource.charAt(this.myIndex);
+            char c = this.myBuffer[this.myIndex];
             this.myIndex += 1;
             return c;
         }
@@ -114,6 +179,45 @@ public class JSONTokener {
     }
 
 
+    /**
+     * Read more of the source into the buffer.  The characters from the mark,
+     * or else the previous character, are kept, so back() still works; the
+     * buffer grows if they fill it.
+     * @return true if characters were read, false at the end of the source.
+     */
+    private boolean fill() {
+        if (this.myReader == null) {
+            return false;
+        }
+        int keep = this.myMark >= 0 ? this.myMark : Math.max(this.myIndex - 1, 0);
+        int kept = this.myLimit - keep;
+        char[] dest = this.myBuffer;
+        if (kept == dest.length) {
+            dest = new char[dest.length * 2];
+        }
+        System.arraycopy(this.myBuffer, keep, dest, 0, kept);
+        this.myBuffer = dest;
+        this.myOffset += keep;
+        this.myIndex -= keep;
+        this.myLimit = kept;
+        if (this.myMark >= 0) {
+            this.myMark = 0;
+        }
+        try {
+            int n = this.myReader.read(this.myBuffer, this.myLimit,
+                    this.myBuffer.length - this.myLimit);
+            if (n <= 0) {
+                this.myReader = null;
+                return false;
+            }
+            this.myLimit += n;
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
     /**
      * Consume the next character, and check that it matches a specified
      * character.
@@ -141,13 +245,14 @@ public class JSONTokener {
      *   n characters remaining in the source string.
      */
      public String next(int n) throws JSONException {
-         int i = this.myIndex;
-         int j = i + n;
-         if (j >= this.mySource.length()) {
-            throw syntaxError("Substring bounds error");
+         char[] chars = new char[n];
+         for (int i = 0; i < n; i++) {
+             if (!more()) {
+                 throw syntaxError("Substring bounds error");
+             }
+             chars[i] = this.myBuffer[this.myIndex++];
          }
-         this.myIndex += n;
-         return this.mySource.substring(i, j);
+         return new String(chars);
      }
 
 
@@ -331,7 +436,7 @@ public class JSONTokener {
          * formatting character.
          */
 
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
         char b = c;
         while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
             sb.append(c);
@@ -366,6 +471,7 @@ public class JSONTokener {
          */
 
         if ((b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+') {
+            int digits = countDigits(s);
             if (b == '0') {
                 if (s.length() > 2 &&
                         (s.charAt(1) == 'x' || s.charAt(1) == 'X')) {
@@ -375,7 +481,7 @@ public class JSONTokener {
                     } catch (Exception e) {
                         /* Ignore the error */
                     }
-                } else {
+                } else if (digits > 0) {
                     try {
                         return new Integer(Integer.parseInt(s, 8));
                     } catch (Exception e) {
@@ -383,17 +489,23 @@ public class JSONTokener {
                     }
                 }
             }
+            if (digits > 0 && digits <= 18) {
+                long l = parseWhole(s);
+                if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+                    return new Integer((int) l);
+                }
+                return new Long(l);
+            }
             try {
-                return new Integer(s);
+                if (digits > 0) {
+                    return new Long(s);
+                }
+                return new Double(s);
             } catch (Exception e) {
                 try {
-                    return new Long(s);
-                } catch (Exception f) {
-                    try {
-                        return new Double(s);
-                    }  catch (Exception g) {
-                        return s;
-                    }
+                    return new Double(s);
+                }  catch (Exception g) {
+                    return s;
                 }
             }
         }
@@ -401,6 +513,39 @@ public class JSONTokener {
     }
 
 
+    /**
+     * Count the digits of a whole number, so it can be parsed without trying
+     * Integer, Long and Double in turn.
+     * @param s Text of a possible number.
+     * @return The number of digits after an optional sign, or 0 if there is
+     * anything else.
+     */
+    private static int countDigits(String s) {
+        int start = (s.charAt(0) == '-' || s.charAt(0) == '+') ? 1 : 0;
+        for (int i = start; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+        }
+        return s.length() - start;
+    }
+
+
+    /**
+     * Parse a whole number of at most 18 digits, which always fits in a long.
+     */
+    private static long parseWhole(String s) {
+        char sign = s.charAt(0);
+        int i = (sign == '-' || sign == '+') ? 1 : 0;
+        long l = 0;
+        for (; i < s.length(); i++) {
+            l = l * 10 + (s.charAt(i) - '0');
+        }
+        return sign == '-' ? -l : l;
+    }
+
+
     /**
      * Skip characters until the next character is the requested character.
      * If the requested character is not found, no characters are skipped.
@@ -410,14 +555,16 @@ public class JSONTokener {
      */
     public char skipTo(char to) {
         char c;
-        int index = this.myIndex;
+        this.myMark = this.myIndex;
         do {
             c = next();
             if (c == 0) {
-                this.myIndex = index;
+                this.myIndex = this.myMark;
+                this.myMark = -1;
                 return c;
             }
         } while (c != to);
+        this.myMark = -1;
         back();
         return c;
     }
@@ -429,11 +576,28 @@ public class JSONTokener {
      * @param to A string to skip past.
      */
     public void skipPast(String to) {
-        this.myIndex = this.mySource.indexOf(to, this.myIndex);
-        if (this.myIndex < 0) {
-            this.myIndex = this.mySource.length();
-        } else {
-            this.myIndex += to.length();
+        int n = to.length();
+        for (;;) {
+            if (!more()) {
+                return;
+            }
+            // try a match at each position, keeping it so we can move on from it
+            this.myMark = this.myIndex;
+            int i = 0;
+            while (i < n && more() && this.myBuffer[this.myIndex] == to.charAt(i)) {
+                this.myIndex += 1;
+                i += 1;
+            }
+            int start = this.myMark;
+            this.myMark = -1;
+            if (i == n) {
+                return;
+            }
+            if (!more()) {
+                // the rest of the source is a partial match
+                return;
+            }
+            this.myIndex = start + 1;
         }
     }
 
@@ -452,9 +616,12 @@ public class JSONTokener {
     /**
      * Make a printable string of this JSONTokener.
      *
-     * @return " at character [this.myIndex] of [this.mySource]"
+     * @return " at character [position] of [this.mySource]", or without the
+     * source if it is read from a Reader
      */
     public String toString() {
-        return " at character " + this.myIndex + " of " + this.mySource;
+        long position = this.myOffset + this.myIndex;
+        return this.mySource == null ? " at character " + position :
+            " at character " + position + " of " + this.mySource;
     }
 }
\ No newline at end of file
@@ -303,6 +303,57 @@ public class JSONWriter {
         return this.append(Long.toString(l));
     }
 
+    /**
+     * Append a long value as a string, e.g. an id that is read as a string.
+     * Subclasses may write it without making a String.
+     * @param l A long.
+     * @return this
+     * @throws JSONException
+     */
+    public JSONWriter quotedValue(long l) throws JSONException {
+        return this.value(Long.toString(l));
+    }
+
+    /**
+     * Append a byte array as a base64 string.  It is encoded and written a
+     * chunk at a time, so the encoded String is never made.
+     * @param bytes The bytes, or null.
+     * @return this
+     * @throws JSONException If the value is out of sequence.
+     */
+    public JSONWriter binaryValue(byte[] bytes) throws JSONException {
+        if (bytes == null) {
+            return this.value((Object) null);
+        }
+        if (this.mode == 'o' || this.mode == 'a') {
+            try {
+                if (this.comma && this.mode == 'a') {
+                    this.writer.write(',');
+                }
+                this.writer.write('"');
+                byte[] encoded = new byte[Base64.encodedLength(Base64.CHUNK)];
+                char[] chars = new char[encoded.length];
+                for (int from = 0; from < bytes.length; from += Base64.CHUNK) {
+                    int to = Math.min(from + Base64.CHUNK, bytes.length);
+                    int n = Base64.encode(bytes, from, to, encoded, 0);
+                    for (int i = 0; i < n; i++) {
+                        chars[i] = (char) encoded[i];
+                    }
+                    this.writer.write(chars, 0, n);
+                }
+                this.writer.write('"');
+            } catch (IOException e) {
+                throw new JSONException(e);
+            }
+            if (this.mode == 'o') {
+                this.mode = 'k';
+            }
+            this.comma = true;
+            return this;
+        }
+        throw new JSONException("Value out of sequence.");
+    }
+
 
     /**
      * Append an object value.
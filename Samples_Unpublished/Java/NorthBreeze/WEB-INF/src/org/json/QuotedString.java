@@ -0,0 +1,41 @@
+package org.json;
+
+import java.nio.charset.Charset;
+
+/**
+ * A string value that has been quoted for JSON, and encoded as UTF-8, once.
+ * It is for strings that are written many times, such as type names: JSONWriter
+ * writes the quoted text through <code>toJSONString</code>, and Utf8JSONWriter
+ * copies the encoded bytes without escaping or encoding them again.
+ * @author Steve
+ */
+public class QuotedString implements JSONString {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String value;
+    private final String quoted;
+    final byte[] utf8;
+
+    /**
+     * @param value the string, unquoted
+     */
+    public QuotedString(String value) {
+        this.value = value;
+        this.quoted = JSONObject.quote(value);
+        this.utf8 = this.quoted.getBytes(UTF8);
+    }
+
+    /**
+     * @return the string in quotes, with any escapes needed
+     */
+    public String toJSONString() {
+        return this.quoted;
+    }
+
+    /**
+     * @return the string, unquoted
+     */
+    public String toString() {
+        return this.value;
+    }
+}
@@ -0,0 +1,407 @@
+package org.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A JSONWriter that encodes UTF-8 directly into an internal byte buffer, which
+ * is written to an OutputStream when it fills and when <code>flush</code> is
+ * called. Strings are escaped through a lookup table as they are encoded, and
+ * integral numbers are formatted into the buffer, so no temporary String is
+ * made for each value. The text produced is the same as JSONWriter's.
+ * <p>
+ * This can be used wherever a JSONWriter is expected, e.g. by JSONSerializer.
+ * The caller must call <code>flush</code> after the last value.
+ * @author Steve
+ */
+public class Utf8JSONWriter extends JSONWriter {
+    private static final int maxdepth = 20;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * For each ASCII character, 0 if it is written as is, 'u' if it is
+     * written as a \\u escape, or the character that follows the backslash.
+     */
+    private static final byte[] ESCAPES = new byte[128];
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+    private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+    private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+    private static final byte[] MIN_LONG = "-9223372036854775808".getBytes();
+
+    static {
+        for (int i = 0; i < ' '; i++) {
+            ESCAPES[i] = 'u';
+        }
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\t'] = 't';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['"'] = '"';
+        ESCAPES['\\'] = '\\';
+    }
+
+    private OutputStream out;
+    private byte[] buf;
+    private int pos;
+
+    private boolean comma;
+    private char stack[];
+    private int top;
+
+    /**
+     * Make a fresh Utf8JSONWriter with an 8K buffer. It can be used to build
+     * one JSON text.
+     */
+    public Utf8JSONWriter(OutputStream out) {
+        this(out, 8192);
+    }
+
+    /**
+     * @param out receives the UTF-8 encoded JSON
+     * @param bufferSize size of the internal buffer; at least 32
+     */
+    public Utf8JSONWriter(OutputStream out, int bufferSize) {
+        super(null);
+        this.out = out;
+        this.buf = new byte[Math.max(bufferSize, 32)];
+        this.comma = false;
+        this.mode = 'i';
+        this.stack = new char[maxdepth];
+        this.top = 0;
+    }
+
+    /**
+     * Write the buffered bytes to the OutputStream, and flush it.
+     * @throws JSONException If the stream throws an IOException.
+     */
+    public void flush() throws JSONException {
+        drain();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new JSONException(e);
+        }
+    }
+
+    /**
+     * Write the buffered bytes to the OutputStream.
+     */
+    private void drain() throws JSONException {
+        if (pos > 0) {
+            try {
+                out.write(buf, 0, pos);
+            } catch (IOException e) {
+                throw new JSONException(e);
+            }
+            pos = 0;
+        }
+    }
+
+    /**
+     * Make room for n bytes in the buffer.
+     */
+    private void ensure(int n) throws JSONException {
+        if (pos + n > buf.length) {
+            drain();
+        }
+    }
+
+    private void writeByte(int b) throws JSONException {
+        if (pos == buf.length) {
+            drain();
+        }
+        buf[pos++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes) throws JSONException {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    /**
+     * Write the string as ASCII; it must not need escaping, e.g. a number.
+     */
+    private void writeAscii(String s) throws JSONException {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    /**
+     * Write the string in quotes, escaped as by JSONObject.quote, encoded as
+     * UTF-8.
+     */
+    private void writeQuoted(String s) throws JSONException {
+        writeByte('"');
+        int len = s.length();
+        char prev = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 128) {
+                byte e = ESCAPES[c];
+                if (e == 0) {
+                    if (c == '/' && prev == '<') {
+                        writeByte('\\');
+                    }
+                    writeByte(c);
+                } else if (e == 'u') {
+                    ensure(6);
+                    buf[pos++] = '\\';
+                    buf[pos++] = 'u';
+                    buf[pos++] = '0';
+                    buf[pos++] = '0';
+                    buf[pos++] = HEX[c >> 4];
+                    buf[pos++] = HEX[c & 0xF];
+                } else {
+                    ensure(2);
+                    buf[pos++] = '\\';
+                    buf[pos++] = e;
+                }
+            } else {
+                ensure(4);
+                if (c < 0x800) {
+                    buf[pos++] = (byte) (0xC0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < len
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // unpaired surrogate; write as String.getBytes would
+                    buf[pos++] = '?';
+                } else {
+                    buf[pos++] = (byte) (0xE0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            prev = c;
+        }
+        writeByte('"');
+    }
+
+    /**
+     * Write the digits of the long into the buffer.
+     */
+    private void writeLong(long l) throws JSONException {
+        if (l == Long.MIN_VALUE) {
+            writeBytes(MIN_LONG);
+            return;
+        }
+        ensure(20);
+        if (l < 0) {
+            buf[pos++] = '-';
+            l = -l;
+        }
+        int start = pos;
+        do {
+            buf[pos++] = (byte) ('0' + (int) (l % 10));
+            l /= 10;
+        } while (l != 0);
+        // the digits were written backwards
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    /**
+     * Begin a value, writing the comma if needed.
+     * @throws JSONException If the value is out of sequence.
+     */
+    private void beginValue() throws JSONException {
+        if (this.mode == 'o' || this.mode == 'a') {
+            if (this.comma && this.mode == 'a') {
+                writeByte(',');
+            }
+            return;
+        }
+        throw new JSONException("Value out of sequence.");
+    }
+
+    /**
+     * End a value begun with beginValue.
+     */
+    private Utf8JSONWriter endValue() {
+        if (this.mode == 'o') {
+            this.mode = 'k';
+        }
+        this.comma = true;
+        return this;
+    }
+
+    public JSONWriter array() throws JSONException {
+        if (this.mode == 'i' || this.mode == 'o' || this.mode == 'a') {
+            this.push('a');
+            this.beginValue();
+            writeByte('[');
+            this.endValue();
+            this.comma = false;
+            return this;
+        }
+        throw new JSONException("Misplaced array.");
+    }
+
+    private JSONWriter end(char m, char c) throws JSONException {
+        if (this.mode != m) {
+            throw new JSONException(m == 'o' ? "Misplaced endObject." :
+                "Misplaced endArray.");
+        }
+        this.pop(m);
+        writeByte(c);
+        this.comma = true;
+        return this;
+    }
+
+    public JSONWriter endArray() throws JSONException {
+        return this.end('a', ']');
+    }
+
+    public JSONWriter endObject() throws JSONException {
+        return this.end('k', '}');
+    }
+
+    public JSONWriter key(String s) throws JSONException {
+        if (s == null) {
+            throw new JSONException("Null key.");
+        }
+        if (this.mode == 'k') {
+            if (this.comma) {
+                writeByte(',');
+            }
+            writeQuoted(s);
+            writeByte(':');
+            this.comma = false;
+            this.mode = 'o';
+            return this;
+        }
+        throw new JSONException("Misplaced key.");
+    }
+
+    public JSONWriter object() throws JSONException {
+        if (this.mode == 'i') {
+            this.mode = 'o';
+        }
+        if (this.mode == 'o' || this.mode == 'a') {
+            this.beginValue();
+            writeByte('{');
+            this.endValue();
+            this.push('k');
+            this.comma = false;
+            return this;
+        }
+        throw new JSONException("Misplaced object.");
+    }
+
+    private void pop(char c) throws JSONException {
+        if (this.top <= 0 || this.stack[this.top - 1] != c) {
+            throw new JSONException("Nesting error.");
+        }
+        this.top -= 1;
+        this.mode = this.top == 0 ? 'd' : this.stack[this.top - 1];
+    }
+
+    private void push(char c) throws JSONException {
+        if (this.top >= maxdepth) {
+            throw new JSONException("Nesting too deep.");
+        }
+        this.stack[this.top] = c;
+        this.mode = c;
+        this.top += 1;
+    }
+
+    public JSONWriter value(boolean b) throws JSONException {
+        beginValue();
+        writeBytes(b ? TRUE : FALSE);
+        return endValue();
+    }
+
+    public JSONWriter value(double d) throws JSONException {
+        return this.value(new Double(d));
+    }
+
+    public JSONWriter value(long l) throws JSONException {
+        beginValue();
+        writeLong(l);
+        return endValue();
+    }
+
+    public JSONWriter quotedValue(long l) throws JSONException {
+        beginValue();
+        writeByte('"');
+        writeLong(l);
+        writeByte('"');
+        return endValue();
+    }
+
+    public JSONWriter binaryValue(byte[] bytes) throws JSONException {
+        if (bytes == null) {
+            return value((Object) null);
+        }
+        beginValue();
+        writeByte('"');
+        // encode straight into the buffer, in chunks that fit it
+        int chunk = Math.min(Base64.CHUNK, buf.length / 4 * 3);
+        for (int from = 0; from < bytes.length; from += chunk) {
+            int to = Math.min(from + chunk, bytes.length);
+            ensure(Base64.encodedLength(to - from));
+            pos = Base64.encode(bytes, from, to, buf, pos);
+        }
+        writeByte('"');
+        return endValue();
+    }
+
+    public JSONWriter value(Object o) throws JSONException {
+        if (o instanceof Integer || o instanceof Long || o instanceof Short
+                || o instanceof Byte) {
+            return value(((Number) o).longValue());
+        }
+        beginValue();
+        if (o == null || o.equals(null)) {
+            writeBytes(NULL);
+        } else if (o instanceof String) {
+            writeQuoted((String) o);
+        } else if (o instanceof Number) {
+            writeAscii(JSONObject.numberToString((Number) o));
+        } else if (o instanceof Boolean) {
+            writeBytes(((Boolean) o).booleanValue() ? TRUE : FALSE);
+        } else if (o instanceof QuotedString) {
+            writeRaw(((QuotedString) o).utf8);
+        } else if (o instanceof JSONString || o instanceof JSONObject
+                || o instanceof JSONArray) {
+            writeRaw(JSONObject.valueToString(o));
+        } else {
+            writeQuoted(o.toString());
+        }
+        return endValue();
+    }
+
+    /**
+     * Write raw JSON text, encoded as UTF-8.
+     */
+    private void writeRaw(String s) throws JSONException {
+        writeRaw(s.getBytes(UTF8));
+    }
+
+    private void writeRaw(byte[] bytes) throws JSONException {
+        if (bytes.length > buf.length) {
+            drain();
+            try {
+                out.write(bytes);
+            } catch (IOException e) {
+                throw new JSONException(e);
+            }
+        } else {
+            writeBytes(bytes);
+        }
+    }
+}